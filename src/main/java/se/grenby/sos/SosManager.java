@@ -26,63 +26,271 @@ package se.grenby.sos;
 import se.grenby.sos.byteblock.ByteBlockAllocator;
 import se.grenby.sos.json.JsonDataList;
 import se.grenby.sos.json.JsonDataMap;
+import se.grenby.sos.object.SosKey;
+import se.grenby.sos.object.SosKeyDictionary;
 import se.grenby.sos.object.SosList;
 import se.grenby.sos.object.SosMap;
 import se.grenby.sos.object.SosObject;
+import se.grenby.sos.object.SosShape;
+import se.grenby.sos.util.UnsafeUtil;
+import se.grenby.sos.util.Utf8Util;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import static se.grenby.sos.constant.PrimitiveConstants.INT_VALUE_FOR_NULL;
 import static se.grenby.sos.constant.SosConstants.*;
+import static se.grenby.sos.util.BitUtil.putVarint;
+import static se.grenby.sos.util.BitUtil.sizeOfVarint;
 
 /**
  * Created by peteri on 30/01/16.
+ *
+ * Objects are built in format version 2 unless version 1 is given, version 1 is limited to
+ * 32 KB objects and strings of 255 bytes. With a key dictionary the keys of maps are written
+ * as ids of the dictionary, and the objects can only be read with that dictionary. If the
+ * dictionary allows shapes, maps are built with a shape of the dictionary, where every value
+ * is at a fixed offset.
+ *
+ * In version 2 without a key dictionary, maps with more fields than the sorted map field count
+ * are built with their keys in order and a table of entry offsets, so a key is found by a
+ * binary search instead of a scan. Maps with more fields than the hashed map field count are
+ * built with an open addressing table of key hashes and entry offsets instead. In version 2,
+ * lists with more elements than the indexed list element count get a table of element offsets
+ * for random access. Lists where every element is an int, or every element a long, a float
+ * or a double, are built as packed arrays in version 2.
  */
 public class SosManager {
 
-    private static final int MAX_BYTES_SOS_OBJECT = Short.MAX_VALUE;
+    private static final int MAX_BYTES_SOS_OBJECT_V1 = Short.MAX_VALUE;
+    private static final int MAX_BYTES_STRING_V1 = 0xFF;
+    private static final int INITIAL_BYTES_BUFFER = Short.MAX_VALUE;
+    public static final int DEFAULT_SORTED_MAP_FIELD_COUNT = 16;
+    public static final int DEFAULT_HASHED_MAP_FIELD_COUNT = 256;
+    public static final int DEFAULT_INDEXED_LIST_ELEMENT_COUNT = 16;
+    private static final int HASH_SLOT_BYTES = Integer.BYTES + Integer.BYTES;
     private final ByteBlockAllocator allocator;
+    private final boolean directWrite;
+    private final int formatVersion;
+    private final SosKeyDictionary keyDictionary;
+    private final int sortedMapFieldCount;
+    private final int hashedMapFieldCount;
+    private final int indexedListElementCount;
     private ThreadLocal<ByteBuffer> buffers = new ThreadLocal<>();
-    private Map<SosObject, Integer> objectToBlockMap = new HashMap<>();
+    // Shapes of the maps found when sizing a value, they are added to the dictionary before the value is built
+    private ThreadLocal<Map<JsonDataMap, SosShape>> shapes = ThreadLocal.withInitial(IdentityHashMap::new);
+    private Map<SosObject, Integer> objectToBlockMap = new ConcurrentHashMap<>();
 
     public SosManager(ByteBlockAllocator allocator) {
+        this(allocator, FORMAT_VERSION_2);
+    }
+
+    public SosManager(ByteBlockAllocator allocator, int formatVersion) {
+        this(allocator, formatVersion, null, DEFAULT_SORTED_MAP_FIELD_COUNT, DEFAULT_HASHED_MAP_FIELD_COUNT, DEFAULT_INDEXED_LIST_ELEMENT_COUNT);
+    }
+
+    public SosManager(ByteBlockAllocator allocator, int formatVersion, int sortedMapFieldCount) {
+        this(allocator, formatVersion, null, sortedMapFieldCount, Math.max(sortedMapFieldCount, DEFAULT_HASHED_MAP_FIELD_COUNT),
+                DEFAULT_INDEXED_LIST_ELEMENT_COUNT);
+    }
+
+    public SosManager(ByteBlockAllocator allocator, int formatVersion, int sortedMapFieldCount, int hashedMapFieldCount) {
+        this(allocator, formatVersion, null, sortedMapFieldCount, hashedMapFieldCount, DEFAULT_INDEXED_LIST_ELEMENT_COUNT);
+    }
+
+    public SosManager(ByteBlockAllocator allocator, int formatVersion, int sortedMapFieldCount, int hashedMapFieldCount,
+                      int indexedListElementCount) {
+        this(allocator, formatVersion, null, sortedMapFieldCount, hashedMapFieldCount, indexedListElementCount);
+    }
+
+    public SosManager(ByteBlockAllocator allocator, SosKeyDictionary keyDictionary) {
+        this(allocator, FORMAT_VERSION_2, keyDictionary, DEFAULT_SORTED_MAP_FIELD_COUNT, DEFAULT_HASHED_MAP_FIELD_COUNT,
+                DEFAULT_INDEXED_LIST_ELEMENT_COUNT);
+    }
+
+    private SosManager(ByteBlockAllocator allocator, int formatVersion, SosKeyDictionary keyDictionary,
+                       int sortedMapFieldCount, int hashedMapFieldCount, int indexedListElementCount) {
+        if (formatVersion != FORMAT_VERSION_1 && formatVersion != FORMAT_VERSION_2) {
+            throw new IllegalArgumentException("Unknown format version " + formatVersion);
+        }
+        if (sortedMapFieldCount < 0) {
+            throw new IllegalArgumentException("Sorted map field count can not be negative");
+        }
+        if (hashedMapFieldCount < 0) {
+            throw new IllegalArgumentException("Hashed map field count can not be negative");
+        }
+        this.sortedMapFieldCount = sortedMapFieldCount;
+        if (indexedListElementCount < 0) {
+            throw new IllegalArgumentException("Indexed list element count can not be negative");
+        }
+        this.hashedMapFieldCount = hashedMapFieldCount;
+        this.indexedListElementCount = indexedListElementCount;
         this.allocator = allocator;
+        this.directWrite = allocator.supportsWritableBlocks();
+        this.formatVersion = formatVersion;
+        this.keyDictionary = keyDictionary;
     }
 
-    public SosMap createSosMap(JsonDataMap map) {
-        ByteBuffer buffer = getByteBuffer();
+    public int getFormatVersion() {
+        return formatVersion;
+    }
 
-        buildSosMap(buffer, map);
-        buffer.flip();
+    public SosKeyDictionary getKeyDictionary() {
+        return keyDictionary;
+    }
 
-        int blockPointer = allocator.allocateAndClone(buffer);
-        SosMap so = new SosMap(allocator, blockPointer);
+    public int getSortedMapFieldCount() {
+        return sortedMapFieldCount;
+    }
+
+    public int getHashedMapFieldCount() {
+        return hashedMapFieldCount;
+    }
+
+    public int getIndexedListElementCount() {
+        return indexedListElementCount;
+    }
+
+    public SosMap createSosMap(JsonDataMap map) {
+        int blockPointer = allocateAndBuild(map);
+        SosMap so = new SosMap(allocator, blockPointer, keyDictionary);
         objectToBlockMap.put(so, blockPointer);
         return so;
     }
 
     public SosList createSosList(JsonDataList list) {
-        ByteBuffer buffer = getByteBuffer();
+        int blockPointer = allocateAndBuild(list);
+        SosList so = new SosList(allocator, blockPointer, keyDictionary);
+        objectToBlockMap.put(so, blockPointer);
+        return so;
+    }
 
-        buildSosList(buffer, list);
-        buffer.flip();
+    /**
+     * Copies the map finished in the writer into a block, the writer can then be reset and reused.
+     */
+    public SosMap createSosMap(SosWriter writer) {
+        if (!writer.isComplete() || !writer.isMap()) {
+            throw new IllegalStateException("Writer does not hold a finished map");
+        }
+        checkKeyDictionary(writer);
+        int blockPointer = allocateAndCopy(writer.getEncoded());
+        SosMap so = new SosMap(allocator, blockPointer, keyDictionary);
+        objectToBlockMap.put(so, blockPointer);
+        return so;
+    }
 
-        int blockPointer = allocator.allocateAndClone(buffer);
-        SosList so = new SosList(allocator, blockPointer);
+    /**
+     * Copies the list finished in the writer into a block, the writer can then be reset and reused.
+     */
+    public SosList createSosList(SosWriter writer) {
+        if (!writer.isComplete() || !writer.isList()) {
+            throw new IllegalStateException("Writer does not hold a finished list");
+        }
+        checkKeyDictionary(writer);
+        int blockPointer = allocateAndCopy(writer.getEncoded());
+        SosList so = new SosList(allocator, blockPointer, keyDictionary);
         objectToBlockMap.put(so, blockPointer);
         return so;
     }
 
+    private void checkKeyDictionary(SosWriter writer) {
+        if (writer.getKeyDictionary() != null && writer.getKeyDictionary() != keyDictionary) {
+            throw new IllegalArgumentException("Writer uses another key dictionary than the manager");
+        }
+    }
+
+    private int allocateAndCopy(ByteBuffer encoded) {
+        int blockPointer;
+        if (directWrite) {
+            blockPointer = allocator.allocate(encoded.limit());
+            if (blockPointer != INT_VALUE_FOR_NULL) {
+                allocator.getWritableBlock(blockPointer).put(encoded);
+            }
+        } else {
+            blockPointer = allocator.allocateAndClone(encoded);
+        }
+
+        if (blockPointer == INT_VALUE_FOR_NULL) {
+            throw new RuntimeException("Block of size " + encoded.limit() + " could not be allocated");
+        }
+        return blockPointer;
+    }
+
+    /**
+     * Allocates a block of the encoded size and builds the map or list straight into it.
+     * Allocators that can not give write access to a block get it built in the thread local
+     * buffer and cloned. New shapes are added to the dictionary after the block is allocated,
+     * if the dictionary has run out of shapes by then the value is sized again.
+     */
+    private int allocateAndBuild(Object mapOrList) {
+        Map<JsonDataMap, SosShape> mapShapes = shapes.get();
+        try {
+            while (true) {
+                int size = sizeOfValue(mapOrList);
+                if (formatVersion == FORMAT_VERSION_1 && size > MAX_BYTES_SOS_OBJECT_V1) {
+                    throw new IllegalArgumentException("Encoded size " + size + " is larger than " + MAX_BYTES_SOS_OBJECT_V1 + " bytes of format version 1");
+                }
+
+                int blockPointer;
+                if (directWrite) {
+                    blockPointer = allocator.allocate(size);
+                    if (blockPointer != INT_VALUE_FOR_NULL) {
+                        if (!addShapes(mapShapes)) {
+                            allocator.deallocate(blockPointer);
+                            mapShapes.clear();
+                            continue;
+                        }
+                        buildValue(allocator.getWritableBlock(blockPointer), mapOrList);
+                    }
+                } else {
+                    if (!addShapes(mapShapes)) {
+                        mapShapes.clear();
+                        continue;
+                    }
+                    ByteBuffer buffer = getByteBuffer(size);
+                    buildValue(buffer, mapOrList);
+                    buffer.flip();
+                    blockPointer = allocator.allocateAndClone(buffer);
+                }
+
+                if (blockPointer == INT_VALUE_FOR_NULL) {
+                    throw new RuntimeException("Block of size " + size + " could not be allocated");
+                }
+                return blockPointer;
+            }
+        } finally {
+            mapShapes.clear();
+        }
+    }
+
+    /**
+     * Adds the shapes that are not in the dictionary, returns false if the dictionary is full.
+     */
+    private boolean addShapes(Map<JsonDataMap, SosShape> mapShapes) {
+        for (Map.Entry<JsonDataMap, SosShape> e : mapShapes.entrySet()) {
+            if (!e.getValue().isAdded()) {
+                SosShape shape = keyDictionary.addShape(e.getValue());
+                if (shape == null) {
+                    return false;
+                }
+                e.setValue(shape);
+            }
+        }
+        return true;
+    }
+
     public void removeSosObject(SosObject sosObject) {
-        allocator.deallocate(objectToBlockMap.get(sosObject));
+        allocator.deallocate(objectToBlockMap.remove(sosObject));
     }
 
-    private ByteBuffer getByteBuffer() {
+    private ByteBuffer getByteBuffer(int size) {
         ByteBuffer buffer = buffers.get();
-        if (buffer == null) {
-            buffer = ByteBuffer.allocate(MAX_BYTES_SOS_OBJECT);
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, INITIAL_BYTES_BUFFER));
             buffers.set(buffer);
         }
         buffer.clear();
@@ -90,28 +298,312 @@ public class SosManager {
     }
 
     private void buildSosMap(ByteBuffer dst, JsonDataMap map) {
-        dst.put(MAP_VALUE);
+        SosShape shape = keyDictionary != null && keyDictionary.supportsShapes() ? shapes.get().get(map) : null;
+        if (shape != null) {
+            buildShapeSosMap(dst, map, shape);
+            return;
+        } else if (isHashedSosMap(map)) {
+            buildHashedSosMap(dst, map);
+            return;
+        } else if (isSortedSosMap(map)) {
+            buildSortedSosMap(dst, map);
+            return;
+        }
+
+        dst.put(formatVersion == FORMAT_VERSION_1 ? MAP_VALUE : keyDictionary != null ? MAP_DICT_VALUE : MAP_V2_VALUE);
+        // Move position so we can set size later on
+        int mapSizePosition = dst.position();
+        dst.position(mapSizePosition + sizeOfMapOrListLength());
+        for (Map.Entry<String, Object> o : map) {
+            putKeyInByteBuffer(dst, o.getKey());
+            buildValue(dst, o.getValue());
+        }
+
+        putMapOrListLength(dst, mapSizePosition);
+    }
+
+    private void buildShapeSosMap(ByteBuffer dst, JsonDataMap map, SosShape shape) {
+        dst.put(MAP_SHAPE_VALUE);
+        // Move position so we can set size later on
+        int mapSizePosition = dst.position();
+        dst.position(mapSizePosition + sizeOfMapOrListLength());
+        putVarint(dst, shape.getId());
+        int slotsPosition = dst.position();
+        dst.position(slotsPosition + shape.getSlotsSize());
+        for (Map.Entry<String, Object> o : map) {
+            int fieldIndex = shape.getFieldIndex(o.getKey());
+            int slotPosition = slotsPosition + shape.getOffset(fieldIndex);
+            Object value = o.getValue();
+            switch (shape.getValueType(fieldIndex)) {
+                case BYTE_VALUE:
+                    dst.put(slotPosition, (Byte) value);
+                    break;
+                case SHORT_VALUE:
+                    dst.putShort(slotPosition, (Short) value);
+                    break;
+                case INTEGER_VALUE:
+                    dst.putInt(slotPosition, (Integer) value);
+                    break;
+                case LONG_VALUE:
+                    dst.putLong(slotPosition, (Long) value);
+                    break;
+                case FLOAT_VALUE:
+                    dst.putFloat(slotPosition, (Float) value);
+                    break;
+                case DOUBLE_VALUE:
+                    dst.putDouble(slotPosition, (Double) value);
+                    break;
+                default:
+                    // Strings, maps and lists are written after the slots
+                    dst.putInt(slotPosition, dst.position() - slotsPosition);
+                    buildValue(dst, value);
+            }
+        }
+
+        putMapOrListLength(dst, mapSizePosition);
+    }
+
+    private void buildSortedSosMap(ByteBuffer dst, JsonDataMap map) {
+        byte[][] keys = new byte[map.size()][];
+        Object[] values = new Object[map.size()];
+        Integer[] order = new Integer[map.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> o : map) {
+            keys[i] = o.getKey().getBytes(StandardCharsets.UTF_8);
+            values[i] = o.getValue();
+            order[i] = i;
+            i++;
+        }
+        Arrays.sort(order, (a, b) -> Utf8Util.compare(keys[a], keys[b]));
+
+        dst.put(MAP_SORTED_VALUE);
         // Move position so we can set size later on
         int mapSizePosition = dst.position();
-        dst.position(mapSizePosition + Short.BYTES);
+        dst.position(mapSizePosition + sizeOfMapOrListLength());
+        dst.putInt(order.length);
+        int offsetTablePosition = dst.position();
+        int entriesPosition = offsetTablePosition + order.length * Integer.BYTES;
+        dst.position(entriesPosition);
+        for (i = 0; i < order.length; i++) {
+            dst.putInt(offsetTablePosition + i * Integer.BYTES, dst.position() - entriesPosition);
+            byte[] key = keys[order[i]];
+            putVarint(dst, key.length);
+            dst.put(key);
+            buildValue(dst, values[order[i]]);
+        }
+
+        putMapOrListLength(dst, mapSizePosition);
+    }
+
+    private boolean isSortedSosMap(JsonDataMap map) {
+        return formatVersion == FORMAT_VERSION_2 && keyDictionary == null && map.size() > sortedMapFieldCount;
+    }
+
+    private void buildHashedSosMap(ByteBuffer dst, JsonDataMap map) {
+        int numberOfSlots = numberOfHashSlots(map.size());
+        int slotMask = numberOfSlots - 1;
+
+        dst.put(MAP_HASHED_VALUE);
+        // Move position so we can set size later on
+        int mapSizePosition = dst.position();
+        dst.position(mapSizePosition + sizeOfMapOrListLength());
+        dst.putInt(map.size());
+        dst.putInt(numberOfSlots);
+        int slotsPosition = dst.position();
+        for (int i = 0; i < numberOfSlots; i++) {
+            dst.putInt(0);
+            dst.putInt(INT_VALUE_FOR_NULL);
+        }
+        int entriesPosition = dst.position();
         for (Map.Entry<String, Object> o : map) {
-            putStringInByteBuffer(dst, o.getKey());
+            byte[] key = o.getKey().getBytes(StandardCharsets.UTF_8);
+            int hash = SosKey.hash(key);
+            int slot = hash & slotMask;
+            while (dst.getInt(slotsPosition + slot * HASH_SLOT_BYTES + Integer.BYTES) != INT_VALUE_FOR_NULL) {
+                slot = (slot + 1) & slotMask;
+            }
+            dst.putInt(slotsPosition + slot * HASH_SLOT_BYTES, hash);
+            dst.putInt(slotsPosition + slot * HASH_SLOT_BYTES + Integer.BYTES, dst.position() - entriesPosition);
+            putVarint(dst, key.length);
+            dst.put(key);
             buildValue(dst, o.getValue());
         }
 
-        dst.putShort(mapSizePosition, (short) (dst.position() - Short.BYTES - mapSizePosition));
+        putMapOrListLength(dst, mapSizePosition);
+    }
+
+    private boolean isHashedSosMap(JsonDataMap map) {
+        return formatVersion == FORMAT_VERSION_2 && keyDictionary == null && map.size() > hashedMapFieldCount;
+    }
+
+    /**
+     * Returns the power of two that is at least twice the number of entries, so at most half of the slots are used.
+     */
+    private static int numberOfHashSlots(int numberOfEntries) {
+        return Integer.highestOneBit(Math.max(numberOfEntries, 1) * 2 - 1) << 1;
+    }
+
+    /**
+     * Returns the shape of the map in the key dictionary, or a new shape that is added before
+     * the map is built. Returns null if the map is built without a shape.
+     */
+    private SosShape shapeOf(JsonDataMap map) {
+        if (keyDictionary == null || !keyDictionary.supportsShapes() || map.size() == 0) {
+            return null;
+        }
+
+        String[] keys = new String[map.size()];
+        byte[] valueTypes = new byte[map.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> o : map) {
+            byte valueType = shapeValueType(o.getValue());
+            if (valueType == 0) {
+                return null;
+            }
+            keys[i] = o.getKey();
+            valueTypes[i] = valueType;
+            i++;
+        }
+        return keyDictionary.findOrCreateShape(keys, valueTypes);
+    }
+
+    private static byte shapeValueType(Object value) {
+        if (value instanceof JsonDataMap) {
+            return MAP_VALUE;
+        } else if (value instanceof JsonDataList) {
+            return LIST_VALUE;
+        } else if (value instanceof Byte) {
+            return BYTE_VALUE;
+        } else if (value instanceof Short) {
+            return SHORT_VALUE;
+        } else if (value instanceof Integer) {
+            return INTEGER_VALUE;
+        } else if (value instanceof Long) {
+            return LONG_VALUE;
+        } else if (value instanceof String) {
+            return STRING_VALUE;
+        } else if (value instanceof Float) {
+            return FLOAT_VALUE;
+        } else if (value instanceof Double) {
+            return DOUBLE_VALUE;
+        }
+        return 0;
     }
 
     private void buildSosList(ByteBuffer dst, JsonDataList list) {
-        dst.put(LIST_VALUE);
+        byte arrayValueType = packedArrayValueType(list);
+        if (arrayValueType != 0) {
+            buildPackedArray(dst, list, arrayValueType);
+            return;
+        } else if (isIndexedSosList(list)) {
+            buildIndexedSosList(dst, list);
+            return;
+        }
+
+        dst.put(formatVersion == FORMAT_VERSION_1 ? LIST_VALUE : LIST_V2_VALUE);
         // Move position so we can set size later on
         int listSizePosition = dst.position();
-        dst.position(listSizePosition + Short.BYTES);
+        dst.position(listSizePosition + sizeOfMapOrListLength());
         for (Object v : list) {
             buildValue(dst, v);
         }
 
-        dst.putShort(listSizePosition, (short) (dst.position() - Short.BYTES - listSizePosition));
+        putMapOrListLength(dst, listSizePosition);
+    }
+
+    private void buildIndexedSosList(ByteBuffer dst, JsonDataList list) {
+        dst.put(LIST_INDEXED_VALUE);
+        // Move position so we can set size later on
+        int listSizePosition = dst.position();
+        dst.position(listSizePosition + sizeOfMapOrListLength());
+        dst.putInt(list.size());
+        int offsetTablePosition = dst.position();
+        int elementsPosition = offsetTablePosition + list.size() * Integer.BYTES;
+        dst.position(elementsPosition);
+        int i = 0;
+        for (Object v : list) {
+            dst.putInt(offsetTablePosition + i * Integer.BYTES, dst.position() - elementsPosition);
+            buildValue(dst, v);
+            i++;
+        }
+
+        putMapOrListLength(dst, listSizePosition);
+    }
+
+    private void buildPackedArray(ByteBuffer dst, JsonDataList list, byte arrayValueType) {
+        dst.put(arrayValueType);
+        // Move position so we can set size later on
+        int listSizePosition = dst.position();
+        dst.position(listSizePosition + sizeOfMapOrListLength());
+        dst.putInt(list.size());
+        int elementSize = SosObject.arrayElementSize(arrayValueType);
+        // The values are aligned to their size in memory, the number of padding bytes is written
+        // first so the values are found also when the block is copied to another alignment. A
+        // value built in the staging buffer is cloned to an address that is not known, so it gets
+        // no padding.
+        int padding = directWrite ? (int) (-(UnsafeUtil.alignmentOffsetOf(dst) + dst.position() + Byte.BYTES) & (elementSize - 1)) : 0;
+        dst.put((byte) padding);
+        for (int i = 0; i < padding; i++) {
+            dst.put((byte) 0);
+        }
+        for (Object v : list) {
+            if (arrayValueType == INT_ARRAY_VALUE) {
+                dst.putInt((Integer) v);
+            } else if (arrayValueType == LONG_ARRAY_VALUE) {
+                dst.putLong((Long) v);
+            } else if (arrayValueType == FLOAT_ARRAY_VALUE) {
+                dst.putFloat((Float) v);
+            } else {
+                dst.putDouble((Double) v);
+            }
+        }
+
+        putMapOrListLength(dst, listSizePosition);
+    }
+
+    /**
+     * Returns the packed array value type of a list of only ints, longs, floats or doubles, or 0 if the list is not packed.
+     */
+    private byte packedArrayValueType(JsonDataList list) {
+        if (formatVersion != FORMAT_VERSION_2 || list.size() == 0) {
+            return 0;
+        }
+
+        Class<?> elementClass = null;
+        for (Object v : list) {
+            if (v == null || (elementClass != null && v.getClass() != elementClass)) {
+                return 0;
+            }
+            elementClass = v.getClass();
+        }
+
+        if (elementClass == Integer.class) {
+            return INT_ARRAY_VALUE;
+        } else if (elementClass == Long.class) {
+            return LONG_ARRAY_VALUE;
+        } else if (elementClass == Float.class) {
+            return FLOAT_ARRAY_VALUE;
+        } else if (elementClass == Double.class) {
+            return DOUBLE_ARRAY_VALUE;
+        }
+        return 0;
+    }
+
+    private boolean isIndexedSosList(JsonDataList list) {
+        return formatVersion == FORMAT_VERSION_2 && list.size() > indexedListElementCount;
+    }
+
+    private int sizeOfMapOrListLength() {
+        return formatVersion == FORMAT_VERSION_1 ? Short.BYTES : Integer.BYTES;
+    }
+
+    private void putMapOrListLength(ByteBuffer dst, int sizePosition) {
+        int length = dst.position() - sizePosition - sizeOfMapOrListLength();
+        if (formatVersion == FORMAT_VERSION_1) {
+            dst.putShort(sizePosition, (short) length);
+        } else {
+            dst.putInt(sizePosition, length);
+        }
     }
 
     private void buildValue(ByteBuffer dst, Object value) {
@@ -145,10 +637,101 @@ public class SosManager {
         }
     }
 
+    private int sizeOfSosMap(JsonDataMap map) {
+        int size = Byte.BYTES + sizeOfMapOrListLength();
+        SosShape shape = shapeOf(map);
+        if (shape != null) {
+            shapes.get().put(map, shape);
+            // A new shape gets its id when it is added, the largest id it can get is counted
+            size += sizeOfVarint(shape.isAdded() ? shape.getId() : keyDictionary.getMaxNumberOfShapes() - 1) + shape.getSlotsSize();
+            for (Map.Entry<String, Object> o : map) {
+                if (!SosShape.isSlotValue(shape.getValueType(shape.getFieldIndex(o.getKey())))) {
+                    size += sizeOfValue(o.getValue());
+                }
+            }
+            return size;
+        } else if (isHashedSosMap(map)) {
+            size += Integer.BYTES + Integer.BYTES + numberOfHashSlots(map.size()) * HASH_SLOT_BYTES;
+        } else if (isSortedSosMap(map)) {
+            size += Integer.BYTES + map.size() * Integer.BYTES;
+        }
+
+        for (Map.Entry<String, Object> o : map) {
+            size += sizeOfKey(o.getKey()) + sizeOfValue(o.getValue());
+        }
+        return size;
+    }
+
+    private int sizeOfSosList(JsonDataList list) {
+        int size = Byte.BYTES + sizeOfMapOrListLength();
+        byte arrayValueType = packedArrayValueType(list);
+        if (arrayValueType != 0) {
+            int elementSize = SosObject.arrayElementSize(arrayValueType);
+            // The padding depends on the address of the array, the most that can be needed is counted
+            return size + Integer.BYTES + Byte.BYTES + elementSize - 1 + list.size() * elementSize;
+        }
+        if (isIndexedSosList(list)) {
+            size += Integer.BYTES + list.size() * Integer.BYTES;
+        }
+        for (Object v : list) {
+            size += sizeOfValue(v);
+        }
+        return size;
+    }
+
+    private int sizeOfValue(Object value) {
+        if (value instanceof JsonDataMap) {
+            return sizeOfSosMap((JsonDataMap) value);
+        } else if (value instanceof JsonDataList) {
+            return sizeOfSosList((JsonDataList) value);
+        } else if (value instanceof Byte) {
+            return Byte.BYTES + Byte.BYTES;
+        } else if (value instanceof Short) {
+            return Byte.BYTES + Short.BYTES;
+        } else if (value instanceof Integer) {
+            return Byte.BYTES + Integer.BYTES;
+        } else if (value instanceof Long) {
+            return Byte.BYTES + Long.BYTES;
+        } else if (value instanceof String) {
+            return Byte.BYTES + sizeOfString((String) value);
+        } else if (value instanceof Float) {
+            return Byte.BYTES + Float.BYTES;
+        } else if (value instanceof Double) {
+            return Byte.BYTES + Double.BYTES;
+        }
+        return 0;
+    }
+
+    private int sizeOfKey(String key) {
+        return keyDictionary != null ? sizeOfVarint(keyDictionary.getOrAddId(key)) : sizeOfString(key);
+    }
+
+    private int sizeOfString(String s) {
+        int length = Utf8Util.length(s);
+        if (formatVersion == FORMAT_VERSION_1) {
+            if (length > MAX_BYTES_STRING_V1) {
+                throw new IllegalArgumentException("String of " + length + " bytes is longer than " + MAX_BYTES_STRING_V1 + " bytes of format version 1");
+            }
+            return Byte.BYTES + length;
+        }
+        return sizeOfVarint(length) + length;
+    }
+
+    private void putKeyInByteBuffer(ByteBuffer dst, String key) {
+        if (keyDictionary != null) {
+            putVarint(dst, keyDictionary.getOrAddId(key));
+        } else {
+            putStringInByteBuffer(dst, key);
+        }
+    }
+
     private void putStringInByteBuffer(ByteBuffer dst, String s) {
-        byte[] bs = s.getBytes(StandardCharsets.UTF_8);
-        dst.put((byte) bs.length);
-        dst.put(bs);
+        if (formatVersion == FORMAT_VERSION_1) {
+            dst.put((byte) Utf8Util.length(s));
+        } else {
+            putVarint(dst, Utf8Util.length(s));
+        }
+        Utf8Util.put(dst, s);
     }
 
 }
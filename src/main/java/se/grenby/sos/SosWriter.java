@@ -0,0 +1,451 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos;
+
+import se.grenby.sos.object.SosKeyDictionary;
+import se.grenby.sos.util.Utf8Util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static se.grenby.sos.constant.SosConstants.*;
+import static se.grenby.sos.util.BitUtil.putVarint;
+import static se.grenby.sos.util.BitUtil.sizeOfVarint;
+
+/**
+ * Streaming writer of one SOS map or list, values are written straight into the encoding
+ * without building a JsonDataMap or JsonDataList first. The size of a map or list is written
+ * when it is ended.
+ *
+ * Values of a map are written with the put methods and values of a list with the add methods.
+ * A value of a map can also be written with key followed by an add or begin method, which is
+ * how a parser gives keys and strings it already holds as UTF-8.
+ * The finished map or list is handed to SosManager, and the writer can then be reset and
+ * reused. A reused writer does not allocate once its buffer has grown to the largest object.
+ */
+public class SosWriter {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+    private static final int MAX_BYTES_SOS_OBJECT_V1 = Short.MAX_VALUE;
+    private static final int MAX_BYTES_STRING_V1 = 0xFF;
+    private static final int INITIAL_DEPTH = 8;
+
+    private final int formatVersion;
+    private final SosKeyDictionary keyDictionary;
+    private ByteBuffer buffer;
+
+    // Size positions and kinds of the maps and lists that have been begun but not ended
+    private int[] sizePositions = new int[INITIAL_DEPTH];
+    private boolean[] isMaps = new boolean[INITIAL_DEPTH];
+    private int depth = 0;
+    private boolean pendingKey = false;
+
+    private byte rootValueType = 0;
+    private int encodedSize = -1;
+
+    public SosWriter() {
+        this(DEFAULT_INITIAL_CAPACITY, FORMAT_VERSION_2);
+    }
+
+    public SosWriter(final int initialCapacity, final int formatVersion) {
+        this(initialCapacity, formatVersion, null);
+    }
+
+    /**
+     * Writer of format version 2 where the keys of maps are written as ids of the dictionary,
+     * the result must be given to a SosManager with the same dictionary.
+     */
+    public SosWriter(final int initialCapacity, final SosKeyDictionary keyDictionary) {
+        this(initialCapacity, FORMAT_VERSION_2, keyDictionary);
+    }
+
+    private SosWriter(final int initialCapacity, final int formatVersion, final SosKeyDictionary keyDictionary) {
+        if (formatVersion != FORMAT_VERSION_1 && formatVersion != FORMAT_VERSION_2) {
+            throw new IllegalArgumentException("Unknown format version " + formatVersion);
+        }
+        this.formatVersion = formatVersion;
+        this.keyDictionary = keyDictionary;
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    public SosKeyDictionary getKeyDictionary() {
+        return keyDictionary;
+    }
+
+    private byte mapValueType() {
+        return formatVersion == FORMAT_VERSION_1 ? MAP_VALUE : keyDictionary != null ? MAP_DICT_VALUE : MAP_V2_VALUE;
+    }
+
+    /**
+     * Clears the writer so a new map or list can be written.
+     */
+    public SosWriter reset() {
+        buffer.clear();
+        depth = 0;
+        pendingKey = false;
+        rootValueType = 0;
+        encodedSize = -1;
+        return this;
+    }
+
+    public SosWriter beginMap() {
+        checkRootOrValueWithoutKey();
+        begin(mapValueType(), true);
+        return this;
+    }
+
+    public SosWriter beginMap(String key) {
+        putKey(key);
+        begin(mapValueType(), true);
+        return this;
+    }
+
+    public SosWriter endMap() {
+        end(true);
+        return this;
+    }
+
+    public SosWriter beginList() {
+        checkRootOrValueWithoutKey();
+        begin(formatVersion == FORMAT_VERSION_1 ? LIST_VALUE : LIST_V2_VALUE, false);
+        return this;
+    }
+
+    public SosWriter beginList(String key) {
+        putKey(key);
+        begin(formatVersion == FORMAT_VERSION_1 ? LIST_VALUE : LIST_V2_VALUE, false);
+        return this;
+    }
+
+    public SosWriter endList() {
+        end(false);
+        return this;
+    }
+
+    /**
+     * Writes the key of the next value in a map, the value is then written with an add or begin method.
+     */
+    public SosWriter key(String key) {
+        putKey(key);
+        pendingKey = true;
+        return this;
+    }
+
+    /**
+     * Writes a key given as UTF-8 bytes, the value is then written with an add or begin method.
+     */
+    public SosWriter key(byte[] utf8, int offset, int length) {
+        checkKey();
+        if (keyDictionary != null) {
+            writeKeyId(keyDictionary.getOrAddId(utf8, offset, length));
+        } else {
+            writeUtf8WithoutValueType(utf8, offset, length);
+        }
+        pendingKey = true;
+        return this;
+    }
+
+    public SosWriter putByte(String key, byte value) {
+        putKey(key);
+        return writeByte(value);
+    }
+
+    public SosWriter putShort(String key, short value) {
+        putKey(key);
+        return writeShort(value);
+    }
+
+    public SosWriter putInt(String key, int value) {
+        putKey(key);
+        return writeInt(value);
+    }
+
+    public SosWriter putLong(String key, long value) {
+        putKey(key);
+        return writeLong(value);
+    }
+
+    public SosWriter putFloat(String key, float value) {
+        putKey(key);
+        return writeFloat(value);
+    }
+
+    public SosWriter putDouble(String key, double value) {
+        putKey(key);
+        return writeDouble(value);
+    }
+
+    public SosWriter putString(String key, String value) {
+        putKey(key);
+        return writeString(value);
+    }
+
+    public SosWriter addByte(byte value) {
+        checkValueWithoutKey();
+        return writeByte(value);
+    }
+
+    public SosWriter addShort(short value) {
+        checkValueWithoutKey();
+        return writeShort(value);
+    }
+
+    public SosWriter addInt(int value) {
+        checkValueWithoutKey();
+        return writeInt(value);
+    }
+
+    public SosWriter addLong(long value) {
+        checkValueWithoutKey();
+        return writeLong(value);
+    }
+
+    public SosWriter addFloat(float value) {
+        checkValueWithoutKey();
+        return writeFloat(value);
+    }
+
+    public SosWriter addDouble(double value) {
+        checkValueWithoutKey();
+        return writeDouble(value);
+    }
+
+    public SosWriter addString(String value) {
+        checkValueWithoutKey();
+        return writeString(value);
+    }
+
+    /**
+     * Adds a string given as UTF-8 bytes.
+     */
+    public SosWriter addString(byte[] utf8, int offset, int length) {
+        checkValueWithoutKey();
+        ensureCapacity(Byte.BYTES);
+        buffer.put(STRING_VALUE);
+        writeUtf8WithoutValueType(utf8, offset, length);
+        return this;
+    }
+
+    /**
+     * True when the map or list begun first has been ended.
+     */
+    public boolean isComplete() {
+        return encodedSize >= 0;
+    }
+
+    public boolean isMap() {
+        return rootValueType == MAP_VALUE || rootValueType == MAP_V2_VALUE || rootValueType == MAP_DICT_VALUE;
+    }
+
+    public boolean isList() {
+        return rootValueType == LIST_VALUE || rootValueType == LIST_V2_VALUE;
+    }
+
+    public int getEncodedSize() {
+        checkComplete();
+        return encodedSize;
+    }
+
+    /**
+     * Returns the buffer of the writer with the finished map or list between position 0 and
+     * the limit. The buffer is only valid until the writer is reset.
+     */
+    public ByteBuffer getEncoded() {
+        checkComplete();
+        buffer.limit(encodedSize);
+        buffer.position(0);
+        return buffer;
+    }
+
+    private void begin(byte valueType, boolean isMap) {
+        if (depth == 0) {
+            rootValueType = valueType;
+        }
+        if (depth == sizePositions.length) {
+            sizePositions = Arrays.copyOf(sizePositions, depth << 1);
+            isMaps = Arrays.copyOf(isMaps, depth << 1);
+        }
+        ensureCapacity(Byte.BYTES + sizeOfMapOrListLength());
+        buffer.put(valueType);
+        // Move position so we can set size later on
+        sizePositions[depth] = buffer.position();
+        isMaps[depth] = isMap;
+        depth++;
+        buffer.position(buffer.position() + sizeOfMapOrListLength());
+    }
+
+    private void end(boolean isMap) {
+        if (depth == 0 || isMaps[depth - 1] != isMap) {
+            throw new IllegalStateException("There is no " + (isMap ? "map" : "list") + " to end");
+        }
+        if (pendingKey) {
+            throw new IllegalStateException("Key has no value");
+        }
+        depth--;
+        int sizePosition = sizePositions[depth];
+        int length = buffer.position() - sizePosition - sizeOfMapOrListLength();
+        if (formatVersion == FORMAT_VERSION_1) {
+            if (buffer.position() > MAX_BYTES_SOS_OBJECT_V1) {
+                throw new IllegalStateException("Encoded size " + buffer.position() + " is larger than " + MAX_BYTES_SOS_OBJECT_V1 + " bytes of format version 1");
+            }
+            buffer.putShort(sizePosition, (short) length);
+        } else {
+            buffer.putInt(sizePosition, length);
+        }
+        if (depth == 0) {
+            encodedSize = buffer.position();
+        }
+    }
+
+    private int sizeOfMapOrListLength() {
+        return formatVersion == FORMAT_VERSION_1 ? Short.BYTES : Integer.BYTES;
+    }
+
+    private void checkRootOrValueWithoutKey() {
+        if (depth == 0) {
+            if (encodedSize >= 0) {
+                throw new IllegalStateException("Writer holds a finished object, it must be reset");
+            }
+        } else {
+            checkValueWithoutKey();
+        }
+    }
+
+    private void checkValueWithoutKey() {
+        if (depth == 0 || (isMaps[depth - 1] && !pendingKey)) {
+            throw new IllegalStateException("Values without a key can only be added to a list");
+        }
+        pendingKey = false;
+    }
+
+    private void checkKey() {
+        if (depth == 0 || !isMaps[depth - 1] || pendingKey) {
+            throw new IllegalStateException("Values with a key can only be put in a map");
+        }
+    }
+
+    private void checkComplete() {
+        if (encodedSize < 0) {
+            throw new IllegalStateException("Writer does not hold a finished map or list");
+        }
+    }
+
+    private void putKey(String key) {
+        checkKey();
+        if (keyDictionary != null) {
+            writeKeyId(keyDictionary.getOrAddId(key));
+        } else {
+            writeStringWithoutValueType(key);
+        }
+    }
+
+    private void writeKeyId(int id) {
+        ensureCapacity(sizeOfVarint(id));
+        putVarint(buffer, id);
+    }
+
+    private SosWriter writeByte(byte value) {
+        ensureCapacity(Byte.BYTES + Byte.BYTES);
+        buffer.put(BYTE_VALUE).put(value);
+        return this;
+    }
+
+    private SosWriter writeShort(short value) {
+        ensureCapacity(Byte.BYTES + Short.BYTES);
+        buffer.put(SHORT_VALUE).putShort(value);
+        return this;
+    }
+
+    private SosWriter writeInt(int value) {
+        ensureCapacity(Byte.BYTES + Integer.BYTES);
+        buffer.put(INTEGER_VALUE).putInt(value);
+        return this;
+    }
+
+    private SosWriter writeLong(long value) {
+        ensureCapacity(Byte.BYTES + Long.BYTES);
+        buffer.put(LONG_VALUE).putLong(value);
+        return this;
+    }
+
+    private SosWriter writeFloat(float value) {
+        ensureCapacity(Byte.BYTES + Float.BYTES);
+        buffer.put(FLOAT_VALUE).putFloat(value);
+        return this;
+    }
+
+    private SosWriter writeDouble(double value) {
+        ensureCapacity(Byte.BYTES + Double.BYTES);
+        buffer.put(DOUBLE_VALUE).putDouble(value);
+        return this;
+    }
+
+    private SosWriter writeString(String value) {
+        ensureCapacity(Byte.BYTES);
+        buffer.put(STRING_VALUE);
+        writeStringWithoutValueType(value);
+        return this;
+    }
+
+    private void writeStringWithoutValueType(String s) {
+        int length = Utf8Util.length(s);
+        writeStringLength(length);
+        Utf8Util.put(buffer, s);
+    }
+
+    private void writeUtf8WithoutValueType(byte[] utf8, int offset, int length) {
+        writeStringLength(length);
+        buffer.put(utf8, offset, length);
+    }
+
+    /**
+     * Writes the length and makes room for the string after it.
+     */
+    private void writeStringLength(int length) {
+        if (formatVersion == FORMAT_VERSION_1) {
+            if (length > MAX_BYTES_STRING_V1) {
+                throw new IllegalArgumentException("String of " + length + " bytes is longer than " + MAX_BYTES_STRING_V1 + " bytes of format version 1");
+            }
+            ensureCapacity(Byte.BYTES + length);
+            buffer.put((byte) length);
+        } else {
+            ensureCapacity(sizeOfVarint(length) + length);
+            putVarint(buffer, length);
+        }
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() < bytes) {
+            int capacity = (int) Math.min(Integer.MAX_VALUE, Math.max((long) buffer.capacity() << 1, (long) buffer.position() + bytes));
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+}
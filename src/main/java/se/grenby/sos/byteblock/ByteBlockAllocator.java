@@ -25,6 +25,8 @@ package se.grenby.sos.byteblock;
 
 import java.nio.ByteBuffer;
 
+import static se.grenby.sos.constant.PrimitiveConstants.INT_VALUE_FOR_NULL;
+
 /**
  * Created by peteri on 21/02/16.
  */
@@ -36,4 +38,69 @@ public interface ByteBlockAllocator extends ByteBlockReader {
     int allocateAndClone(ByteBuffer buffer);
 
     void deallocate(int blockPointer);
+
+    /**
+     * Allocates one block for every payload size, the pointers are put in blockPointers.
+     * Either all blocks are allocated or none, false is returned if there was not enough space.
+     * sizesOfPayload and blockPointers may be the same array.
+     */
+    default boolean allocateBatch(int[] sizesOfPayload, int[] blockPointers) {
+        for (int i = 0; i < sizesOfPayload.length; i++) {
+            int blockPointer = allocate(sizesOfPayload[i]);
+            if (blockPointer == INT_VALUE_FOR_NULL) {
+                for (int j = 0; j < i; j++) {
+                    deallocate(blockPointers[j]);
+                    blockPointers[j] = INT_VALUE_FOR_NULL;
+                }
+                return false;
+            }
+            blockPointers[i] = blockPointer;
+        }
+        return true;
+    }
+
+    /**
+     * Allocates one block for every buffer and copies the buffer into it, the pointers are put
+     * in blockPointers. Either all blocks are allocated or none, false is returned if there was
+     * not enough space.
+     */
+    default boolean allocateAndCloneBatch(ByteBuffer[] buffers, int[] blockPointers) {
+        for (int i = 0; i < buffers.length; i++) {
+            int blockPointer = allocateAndClone(buffers[i]);
+            if (blockPointer == INT_VALUE_FOR_NULL) {
+                for (int j = 0; j < i; j++) {
+                    deallocate(blockPointers[j]);
+                    blockPointers[j] = INT_VALUE_FOR_NULL;
+                }
+                return false;
+            }
+            blockPointers[i] = blockPointer;
+        }
+        return true;
+    }
+
+    /**
+     * True if the payload of an allocated block can be written through getWritableBlock.
+     */
+    default boolean supportsWritableBlocks() {
+        return false;
+    }
+
+    /**
+     * Returns a buffer over the payload of an allocated block, where position 0 is the first
+     * byte of the payload and the limit is the allocated size. The block can then be filled
+     * in place instead of being staged in another buffer and cloned.
+     */
+    default ByteBuffer getWritableBlock(int blockPointer) {
+        throw new UnsupportedOperationException("Blocks can not be written directly");
+    }
+
+    /**
+     * Deallocates all blocks. Implementations may sort blockPointers in place.
+     */
+    default void deallocateBatch(int[] blockPointers) {
+        for (int blockPointer : blockPointers) {
+            deallocate(blockPointer);
+        }
+    }
 }
@@ -23,6 +23,8 @@
  */
 package se.grenby.sos.byteblock;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by peteri on 5/31/16.
  */
@@ -44,4 +46,12 @@ public interface ByteBlockReadPointer {
 
     int getAllocatedSize();
 
+    /**
+     * Returns a read-only big-endian buffer of a part of the block, from position 0 to the length.
+     * Pointers to a buffer return a view of it, others a copy of the bytes.
+     */
+    default ByteBuffer getReadOnlyBuffer(int position, int length) {
+        return ByteBuffer.wrap(getBytes(position, length)).asReadOnlyBuffer();
+    }
+
 }
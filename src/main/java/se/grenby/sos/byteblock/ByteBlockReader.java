@@ -23,6 +23,8 @@
  */
 package se.grenby.sos.byteblock;
 
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockReadPointer;
+
 /**
  * Created by peteri on 15/02/16.
  */
@@ -42,4 +44,12 @@ public interface ByteBlockReader {
     double getDouble(int blockPointer, int position);
 
     int allocatedSize(int blockPointer);
+
+    /**
+     * Returns a read pointer to a block. Managers may validate the block once here and
+     * return a pointer that reads the block without further checks.
+     */
+    default ByteBlockReadPointer getBlock(int blockPointer) {
+        return new SharedBufferByteBlockReadPointer(this, blockPointer);
+    }
 }
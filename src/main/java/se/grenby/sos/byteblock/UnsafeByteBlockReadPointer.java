@@ -0,0 +1,105 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock;
+
+import java.nio.ByteBuffer;
+
+import static se.grenby.sos.util.UnsafeUtil.BYTE_ARRAY_BASE_OFFSET;
+import static se.grenby.sos.util.UnsafeUtil.NATIVE_BIG_ENDIAN;
+import static se.grenby.sos.util.UnsafeUtil.UNSAFE;
+import static se.grenby.sos.util.UnsafeUtil.addressOf;
+
+/**
+ * Read pointer that reads a block at its raw memory address without any bounds checks.
+ * The block must be validated by the block manager when the pointer is created, and the
+ * block must not be deallocated while the pointer is used. Values are read in big-endian
+ * order like a ByteBuffer does.
+ */
+public class UnsafeByteBlockReadPointer implements ByteBlockReadPointer {
+
+    // Keeps the direct buffer reachable, its memory is freed when it is garbage collected
+    private final ByteBuffer buffer;
+    private final long address;
+    private final int allocatedSize;
+
+    public UnsafeByteBlockReadPointer(ByteBuffer buffer, long address, int allocatedSize) {
+        this.buffer = buffer;
+        this.address = address;
+        this.allocatedSize = allocatedSize;
+    }
+
+    @Override
+    public byte[] getBytes(int position, int length) {
+        byte[] bs = new byte[length];
+        UNSAFE.copyMemory(null, address + position, bs, BYTE_ARRAY_BASE_OFFSET, length);
+        return bs;
+    }
+
+    @Override
+    public byte getByte(int position) {
+        return UNSAFE.getByte(address + position);
+    }
+
+    @Override
+    public short getShort(int position) {
+        short value = UNSAFE.getShort(address + position);
+        return NATIVE_BIG_ENDIAN ? value : Short.reverseBytes(value);
+    }
+
+    @Override
+    public int getInt(int position) {
+        int value = UNSAFE.getInt(address + position);
+        return NATIVE_BIG_ENDIAN ? value : Integer.reverseBytes(value);
+    }
+
+    @Override
+    public long getLong(int position) {
+        long value = UNSAFE.getLong(address + position);
+        return NATIVE_BIG_ENDIAN ? value : Long.reverseBytes(value);
+    }
+
+    @Override
+    public float getFloat(int position) {
+        return Float.intBitsToFloat(getInt(position));
+    }
+
+    @Override
+    public double getDouble(int position) {
+        return Double.longBitsToDouble(getLong(position));
+    }
+
+    @Override
+    public int getAllocatedSize() {
+        return allocatedSize;
+    }
+
+    @Override
+    public ByteBuffer getReadOnlyBuffer(int position, int length) {
+        int blockPosition = (int) (address - addressOf(buffer));
+        ByteBuffer view = buffer.duplicate();
+        view.limit(blockPosition + position + length);
+        view.position(blockPosition + position);
+        return view.slice().asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.arenabuffer;
+
+import se.grenby.sos.byteblock.ByteBlockAllocator;
+import se.grenby.sos.byteblock.ByteBlockReadPointer;
+import se.grenby.sos.byteblock.ByteBlockReader;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+import se.grenby.sos.util.BitUtil;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static se.grenby.sos.constant.PrimitiveConstants.INT_VALUE_FOR_NULL;
+
+/**
+ * Thread safe block manager that splits its capacity into arenas, each arena being
+ * a shared buffer manager with its own bins and its own lock.
+ *
+ * A thread is bound to one arena and allocates from it as long as it has space, then
+ * it falls back to the other arenas. The arena index is kept in the high bits of the
+ * block pointer, so a block freed by another thread is returned to the arena owning it.
+ * Reads of an allocated block are done without locking, the block headers of allocated
+ * blocks are not changed until the block is deallocated.
+ */
+public class ArenaBufferByteBlockManager implements ByteBlockAllocator, ByteBlockReader {
+
+    private final SharedBufferByteBlockManager[] arenas;
+    private final int arenaPointerBits;
+    private final int arenaPointerMask;
+
+    private final AtomicInteger nextArena = new AtomicInteger();
+    private final ThreadLocal<Integer> threadArena;
+
+    public ArenaBufferByteBlockManager(final int capacity) {
+        this(capacity, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ArenaBufferByteBlockManager(final int capacity, final int numberOfArenas) {
+        if (numberOfArenas < 1) {
+            throw new IllegalArgumentException("There must be at least one arena");
+        }
+
+        int arenaCapacity = capacity / numberOfArenas;
+        arenaPointerBits = BitUtil.numberOfBitsNeeded(arenaCapacity);
+        arenaPointerMask = (1 << arenaPointerBits) - 1;
+        if (((long) numberOfArenas << arenaPointerBits) > (1L << Integer.SIZE - 1)) {
+            throw new IllegalArgumentException("Arena index and block pointer can not be held in an int, use fewer arenas or less capacity");
+        }
+
+        arenas = new SharedBufferByteBlockManager[numberOfArenas];
+        for (int i = 0; i < numberOfArenas; i++) {
+            arenas[i] = new SharedBufferByteBlockManager(arenaCapacity);
+        }
+
+        threadArena = ThreadLocal.withInitial(() -> nextArena.getAndIncrement() % arenas.length);
+    }
+
+    public int getNumberOfArenas() {
+        return arenas.length;
+    }
+
+    @Override
+    public int allocate(final int sizeOfPayload) {
+        int firstArena = threadArena.get();
+        for (int i = 0; i < arenas.length; i++) {
+            int arenaIndex = (firstArena + i) % arenas.length;
+            SharedBufferByteBlockManager arena = arenas[arenaIndex];
+            int arenaPointer;
+            synchronized (arena) {
+                arenaPointer = arena.allocate(sizeOfPayload);
+            }
+            if (arenaPointer != INT_VALUE_FOR_NULL) {
+                return toBlockPointer(arenaIndex, arenaPointer);
+            }
+        }
+        return INT_VALUE_FOR_NULL;
+    }
+
+    @Override
+    public int allocateAndClear(final int sizeOfPayload) {
+        int firstArena = threadArena.get();
+        for (int i = 0; i < arenas.length; i++) {
+            int arenaIndex = (firstArena + i) % arenas.length;
+            SharedBufferByteBlockManager arena = arenas[arenaIndex];
+            int arenaPointer;
+            synchronized (arena) {
+                arenaPointer = arena.allocateAndClear(sizeOfPayload);
+            }
+            if (arenaPointer != INT_VALUE_FOR_NULL) {
+                return toBlockPointer(arenaIndex, arenaPointer);
+            }
+        }
+        return INT_VALUE_FOR_NULL;
+    }
+
+    @Override
+    public int allocateAndClone(final ByteBuffer buffer) {
+        int blockPointer = allocate(buffer.limit());
+        if (blockPointer != INT_VALUE_FOR_NULL) {
+            // The block is owned by this thread, so it can be filled outside the arena lock
+            arena(blockPointer).putByteBuffer(arenaPointer(blockPointer), 0, buffer);
+        }
+        return blockPointer;
+    }
+
+    @Override
+    public void deallocate(int blockPointer) {
+        if (blockPointer == INT_VALUE_FOR_NULL) {
+            throw new RuntimeException("Block can not be deallocated: pointer " + blockPointer);
+        }
+
+        SharedBufferByteBlockManager arena = arena(blockPointer);
+        synchronized (arena) {
+            arena.deallocate(arenaPointer(blockPointer));
+        }
+    }
+
+    private int toBlockPointer(int arenaIndex, int arenaPointer) {
+        return (arenaIndex << arenaPointerBits) | arenaPointer;
+    }
+
+    private SharedBufferByteBlockManager arena(int blockPointer) {
+        return arenas[blockPointer >>> arenaPointerBits];
+    }
+
+    private int arenaPointer(int blockPointer) {
+        return blockPointer & arenaPointerMask;
+    }
+
+    public String getDetailsAsString() {
+        StringBuilder sb = new StringBuilder("Arena manager details \n");
+        sb.append("Number of arenas: " + arenas.length + "\n");
+        for (int i = 0; i < arenas.length; i++) {
+            sb.append("Arena " + i + ": ");
+            synchronized (arenas[i]) {
+                sb.append(arenas[i].getDetailsAsString());
+            }
+        }
+        return sb.toString();
+    }
+
+    public boolean verfiyIntegrity() {
+        boolean correct = true;
+        for (int i = 0; i < arenas.length && correct; i++) {
+            synchronized (arenas[i]) {
+                correct = arenas[i].verfiyIntegrity();
+            }
+        }
+        return correct;
+    }
+
+    public int getTotalAvailableSpace() {
+        int space = 0;
+        for (SharedBufferByteBlockManager arena : arenas) {
+            synchronized (arena) {
+                space += arena.getTotalAvailableSpace();
+            }
+        }
+        return space;
+    }
+
+    @Override
+    public byte[] getBytes(int blockPointer, int position, int length) {
+        return arena(blockPointer).getBytes(arenaPointer(blockPointer), position, length);
+    }
+
+    @Override
+    public byte getByte(int blockPointer, int position) {
+        return arena(blockPointer).getByte(arenaPointer(blockPointer), position);
+    }
+
+    @Override
+    public short getShort(int blockPointer, int position) {
+        return arena(blockPointer).getShort(arenaPointer(blockPointer), position);
+    }
+
+    @Override
+    public int getInt(int blockPointer, int position) {
+        return arena(blockPointer).getInt(arenaPointer(blockPointer), position);
+    }
+
+    @Override
+    public long getLong(int blockPointer, int position) {
+        return arena(blockPointer).getLong(arenaPointer(blockPointer), position);
+    }
+
+    @Override
+    public float getFloat(int blockPointer, int position) {
+        return arena(blockPointer).getFloat(arenaPointer(blockPointer), position);
+    }
+
+    @Override
+    public double getDouble(int blockPointer, int position) {
+        return arena(blockPointer).getDouble(arenaPointer(blockPointer), position);
+    }
+
+    @Override
+    public int allocatedSize(int blockPointer) {
+        return arena(blockPointer).allocatedSize(arenaPointer(blockPointer));
+    }
+
+    @Override
+    public boolean supportsWritableBlocks() {
+        return true;
+    }
+
+    @Override
+    public ByteBuffer getWritableBlock(int blockPointer) {
+        return arena(blockPointer).getWritableBlock(arenaPointer(blockPointer));
+    }
+
+    @Override
+    public ByteBlockReadPointer getBlock(int blockPointer) {
+        return arena(blockPointer).getBlock(arenaPointer(blockPointer));
+    }
+}
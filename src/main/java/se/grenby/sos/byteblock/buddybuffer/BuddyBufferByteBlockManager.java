@@ -0,0 +1,372 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.buddybuffer;
+
+import se.grenby.sos.byteblock.ByteBlockAllocator;
+import se.grenby.sos.byteblock.ByteBlockReader;
+
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+import static se.grenby.sos.constant.PrimitiveConstants.INT_VALUE_FOR_NULL;
+
+/**
+ * Block manager using the buddy system. The buffer is split into blocks with a size that
+ * is a power of two, and a block is split into two buddies when a smaller block is needed.
+ * A freed block is merged with its buddy as long as the buddy is free, so split and merge
+ * take at most one step per order and no neighbouring block headers are walked.
+ *
+ * Every order has a list of free blocks and a bitmap with one bit per block of that order,
+ * set when the block is free, so a buddy is checked without reading it. A bitmap of orders
+ * with free blocks finds the smallest block big enough with one bit scan.
+ *
+ * The first byte of every block holds its order and whether it is allocated, the payload
+ * follows it. Free blocks hold the previous and next pointers of their list after that byte.
+ */
+public class BuddyBufferByteBlockManager implements ByteBlockAllocator, ByteBlockReader {
+
+    private final static Logger logger = Logger.getLogger(BuddyBufferByteBlockManager.class.getName());
+
+    private final static int MAX_ALLOWED_ORDER = 30;
+    private final static int MIN_ORDER = 4;
+
+    private final static byte HEADER_ALLOCATED = 0x40;
+    private final static byte HEADER_ORDER_MASK = 0x3F;
+
+    private final static int RELATIVE_POINTER_HEADER = 0;
+    private final static int RELATIVE_POINTER_PAYLOAD = RELATIVE_POINTER_HEADER + Byte.BYTES;
+    private final static int RELATIVE_POINTER_PREVIOUS = RELATIVE_POINTER_HEADER + Byte.BYTES;
+    private final static int RELATIVE_POINTER_NEXT = RELATIVE_POINTER_PREVIOUS + Integer.BYTES;
+
+    public final static int MANAGED_BLOCK_OVERHEAD_IN_BYTES = RELATIVE_POINTER_PAYLOAD;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int maxOrder;
+
+    // Head of the free list and bitmap of free blocks for every order, and a bitmap of orders with free blocks
+    private final int[] freeLists;
+    private final long[][] freeBitmaps;
+    private int orderBitmap = 0;
+
+    private int numberOfAllocatedBlocks = 0;
+    private int totalSizeOfAllocatedBlocks = 0;
+    private int numberOfFreeBlocks = 0;
+    private int totalSizeOfFreeBlocks = 0;
+
+    public BuddyBufferByteBlockManager(final int capacity) {
+        if (capacity < (1 << MIN_ORDER)) {
+            throw new IllegalArgumentException("Requested capacity can not be less than " + (1 << MIN_ORDER));
+        }
+
+        // Capacity is rounded down to a power of two
+        maxOrder = Math.min(MAX_ALLOWED_ORDER, Integer.SIZE - 1 - Integer.numberOfLeadingZeros(capacity));
+        this.capacity = 1 << maxOrder;
+        buffer = ByteBuffer.allocateDirect(this.capacity);
+
+        freeLists = new int[maxOrder + 1];
+        freeBitmaps = new long[maxOrder + 1][];
+        for (int order = MIN_ORDER; order <= maxOrder; order++) {
+            freeLists[order] = INT_VALUE_FOR_NULL;
+            freeBitmaps[order] = new long[Math.max(1, (this.capacity >>> order) / Long.SIZE)];
+        }
+
+        attachBlockToFreeList(0, maxOrder);
+
+        logger.info(getDetailsAsString());
+    }
+
+    public String getDetailsAsString() {
+        StringBuilder sb = new StringBuilder("Buddy manager details \n");
+        sb.append("Total capacity: " + capacity + "\n");
+        sb.append("Smallest block size: " + (1 << MIN_ORDER) + "\n");
+        sb.append("# allocated blocks: " + numberOfAllocatedBlocks + "\n");
+        sb.append("Total allocated size: " + totalSizeOfAllocatedBlocks + "\n");
+        sb.append("# free blocks: " + numberOfFreeBlocks + "\n");
+        sb.append("Total free size: " + totalSizeOfFreeBlocks + "\n");
+        return sb.toString();
+    }
+
+    private static int orderFromSize(int sizeOfBlock) {
+        return Math.max(MIN_ORDER, Integer.SIZE - Integer.numberOfLeadingZeros(sizeOfBlock - 1));
+    }
+
+    @Override
+    public int allocate(final int sizeOfPayload) {
+        if (sizeOfPayload < 0 || sizeOfPayload > capacity - RELATIVE_POINTER_PAYLOAD) {
+            return INT_VALUE_FOR_NULL;
+        }
+
+        int order = orderFromSize(sizeOfPayload + RELATIVE_POINTER_PAYLOAD);
+        int orders = orderBitmap & (-1 << order);
+        if (orders == 0) {
+            return INT_VALUE_FOR_NULL;
+        }
+
+        int freeOrder = Integer.numberOfTrailingZeros(orders);
+        int blockPointer = freeLists[freeOrder];
+        detachBlockFromFreeList(blockPointer, freeOrder);
+
+        // Split the block and put the upper buddies in the free lists
+        while (freeOrder > order) {
+            freeOrder--;
+            attachBlockToFreeList(blockPointer + (1 << freeOrder), freeOrder);
+        }
+
+        buffer.put(blockPointer + RELATIVE_POINTER_HEADER, (byte) (HEADER_ALLOCATED | order));
+        numberOfAllocatedBlocks++;
+        totalSizeOfAllocatedBlocks += 1 << order;
+        return blockPointer;
+    }
+
+    @Override
+    public int allocateAndClear(final int sizeOfPayload) {
+        int blockPointer = allocate(sizeOfPayload);
+        if (blockPointer != INT_VALUE_FOR_NULL) {
+            int size = allocatedSize(blockPointer);
+            for (int p = 0; p < size; p++) {
+                buffer.put(blockPointer + RELATIVE_POINTER_PAYLOAD + p, (byte) 0);
+            }
+        }
+        return blockPointer;
+    }
+
+    @Override
+    public int allocateAndClone(final ByteBuffer src) {
+        int blockPointer = allocate(src.limit());
+        if (blockPointer != INT_VALUE_FOR_NULL) {
+            putByteBuffer(blockPointer, 0, src);
+        }
+        return blockPointer;
+    }
+
+    @Override
+    public void deallocate(int blockPointer) {
+        if (blockPointer < 0 || blockPointer >= capacity || (blockPointer & ((1 << MIN_ORDER) - 1)) != 0 ||
+                (buffer.get(blockPointer + RELATIVE_POINTER_HEADER) & HEADER_ALLOCATED) == 0) {
+            throw new RuntimeException("Block can not be deallocated: pointer " + blockPointer);
+        }
+
+        int order = buffer.get(blockPointer + RELATIVE_POINTER_HEADER) & HEADER_ORDER_MASK;
+        // Clear the allocated flag at once, the block may be merged into a buddy below it
+        buffer.put(blockPointer + RELATIVE_POINTER_HEADER, (byte) order);
+        numberOfAllocatedBlocks--;
+        totalSizeOfAllocatedBlocks -= 1 << order;
+
+        // Merge with the buddy as long as it is free
+        while (order < maxOrder) {
+            int buddyPointer = blockPointer ^ (1 << order);
+            if (!isFree(buddyPointer, order)) {
+                break;
+            }
+            detachBlockFromFreeList(buddyPointer, order);
+            blockPointer = Math.min(blockPointer, buddyPointer);
+            order++;
+        }
+
+        attachBlockToFreeList(blockPointer, order);
+    }
+
+    private boolean isFree(int blockPointer, int order) {
+        int index = blockPointer >>> order;
+        return (freeBitmaps[order][index >>> 6] & (1L << index)) != 0;
+    }
+
+    private void attachBlockToFreeList(int blockPointer, int order) {
+        int nextPointer = freeLists[order];
+        if (nextPointer != INT_VALUE_FOR_NULL) {
+            buffer.putInt(nextPointer + RELATIVE_POINTER_PREVIOUS, blockPointer);
+        }
+        buffer.put(blockPointer + RELATIVE_POINTER_HEADER, (byte) order);
+        buffer.putInt(blockPointer + RELATIVE_POINTER_PREVIOUS, INT_VALUE_FOR_NULL);
+        buffer.putInt(blockPointer + RELATIVE_POINTER_NEXT, nextPointer);
+        freeLists[order] = blockPointer;
+
+        int index = blockPointer >>> order;
+        freeBitmaps[order][index >>> 6] |= 1L << index;
+        orderBitmap |= 1 << order;
+
+        numberOfFreeBlocks++;
+        totalSizeOfFreeBlocks += 1 << order;
+    }
+
+    private void detachBlockFromFreeList(int blockPointer, int order) {
+        int previousPointer = buffer.getInt(blockPointer + RELATIVE_POINTER_PREVIOUS);
+        int nextPointer = buffer.getInt(blockPointer + RELATIVE_POINTER_NEXT);
+        if (previousPointer == INT_VALUE_FOR_NULL) {
+            freeLists[order] = nextPointer;
+            if (nextPointer == INT_VALUE_FOR_NULL) {
+                orderBitmap &= ~(1 << order);
+            }
+        } else {
+            buffer.putInt(previousPointer + RELATIVE_POINTER_NEXT, nextPointer);
+        }
+        if (nextPointer != INT_VALUE_FOR_NULL) {
+            buffer.putInt(nextPointer + RELATIVE_POINTER_PREVIOUS, previousPointer);
+        }
+
+        int index = blockPointer >>> order;
+        freeBitmaps[order][index >>> 6] &= ~(1L << index);
+
+        numberOfFreeBlocks--;
+        totalSizeOfFreeBlocks -= 1 << order;
+    }
+
+    public String memStructureToString() {
+        StringBuilder sb = new StringBuilder();
+        for (int order = MIN_ORDER; order <= maxOrder; order++) {
+            sb.append("order[" + order + "] : ");
+            for (int p = freeLists[order]; p != INT_VALUE_FOR_NULL; p = buffer.getInt(p + RELATIVE_POINTER_NEXT)) {
+                sb.append("{p=").append(p).append(" bs=").append(1 << order).append("}");
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    public boolean verfiyIntegrity() {
+        boolean correct = true;
+
+        int vNum = 0;
+        int vSize = 0;
+        for (int order = MIN_ORDER; order <= maxOrder && correct; order++) {
+            if (((orderBitmap & (1 << order)) != 0) != (freeLists[order] != INT_VALUE_FOR_NULL)) {
+                logger.severe("Bitmap of order " + order + " does not match its free list");
+                correct = false;
+            }
+
+            int previous = INT_VALUE_FOR_NULL;
+            int numberInList = 0;
+            for (int p = freeLists[order]; p != INT_VALUE_FOR_NULL && correct; p = buffer.getInt(p + RELATIVE_POINTER_NEXT)) {
+                if ((p & ((1 << order) - 1)) != 0 || buffer.get(p + RELATIVE_POINTER_HEADER) != order ||
+                        buffer.getInt(p + RELATIVE_POINTER_PREVIOUS) != previous || !isFree(p, order)) {
+                    logger.severe("Block " + p + " is not correctly placed in free list of order " + order);
+                    correct = false;
+                } else if (order < maxOrder && isFree(p ^ (1 << order), order)) {
+                    logger.severe("Block " + p + " of order " + order + " has not been merged with its free buddy");
+                    correct = false;
+                }
+                previous = p;
+                numberInList++;
+                vSize += 1 << order;
+            }
+            vNum += numberInList;
+
+            int numberInBitmap = 0;
+            for (long bits : freeBitmaps[order]) {
+                numberInBitmap += Long.bitCount(bits);
+            }
+            if (correct && numberInBitmap != numberInList) {
+                logger.severe("Bitmap of order " + order + " has " + numberInBitmap + " free blocks, but the list has " + numberInList);
+                correct = false;
+            }
+        }
+
+        if (!correct) {
+            // Reason has already been logged
+        } else if (numberOfFreeBlocks != vNum) {
+            logger.severe("Blocks have been lost from free lists, expected " + numberOfFreeBlocks + " but found " + vNum + " number of blocks");
+            correct = false;
+        } else if (totalSizeOfFreeBlocks != vSize) {
+            logger.severe("Space has been lost from free lists, expected " + totalSizeOfFreeBlocks + " actual " + vSize);
+            correct = false;
+        } else if (totalSizeOfFreeBlocks + totalSizeOfAllocatedBlocks != capacity) {
+            logger.severe("Total capacity is " + capacity + ", this space should be free (" + totalSizeOfFreeBlocks + ") or allocated (" + totalSizeOfAllocatedBlocks + ")");
+            correct = false;
+        }
+
+        return correct;
+    }
+
+    public int getTotalAvailableSpace() {
+        return totalSizeOfFreeBlocks;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private int blockSize(int blockPointer) {
+        return 1 << (buffer.get(blockPointer + RELATIVE_POINTER_HEADER) & HEADER_ORDER_MASK);
+    }
+
+    private int checkBoundsOfBlock(int blockPointer, int position, int numberOfBytes) {
+        int blockPosition = position + RELATIVE_POINTER_PAYLOAD;
+        if (position < 0 || blockPosition + numberOfBytes > blockSize(blockPointer)) {
+            throw new IndexOutOfBoundsException();
+        }
+        return blockPointer + blockPosition;
+    }
+
+    public void putByteBuffer(int blockPointer, int position, ByteBuffer src) {
+        src.position(0);
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(checkBoundsOfBlock(blockPointer, position, src.remaining()));
+        dst.put(src);
+    }
+
+    @Override
+    public byte[] getBytes(int blockPointer, int position, int length) {
+        byte[] bs = new byte[length];
+        ByteBuffer src = buffer.duplicate();
+        src.position(checkBoundsOfBlock(blockPointer, position, length));
+        src.get(bs, 0, length);
+        return bs;
+    }
+
+    @Override
+    public byte getByte(int blockPointer, int position) {
+        return buffer.get(checkBoundsOfBlock(blockPointer, position, Byte.BYTES));
+    }
+
+    @Override
+    public short getShort(int blockPointer, int position) {
+        return buffer.getShort(checkBoundsOfBlock(blockPointer, position, Short.BYTES));
+    }
+
+    @Override
+    public int getInt(int blockPointer, int position) {
+        return buffer.getInt(checkBoundsOfBlock(blockPointer, position, Integer.BYTES));
+    }
+
+    @Override
+    public long getLong(int blockPointer, int position) {
+        return buffer.getLong(checkBoundsOfBlock(blockPointer, position, Long.BYTES));
+    }
+
+    @Override
+    public float getFloat(int blockPointer, int position) {
+        return buffer.getFloat(checkBoundsOfBlock(blockPointer, position, Float.BYTES));
+    }
+
+    @Override
+    public double getDouble(int blockPointer, int position) {
+        return buffer.getDouble(checkBoundsOfBlock(blockPointer, position, Double.BYTES));
+    }
+
+    @Override
+    public int allocatedSize(int blockPointer) {
+        return blockSize(blockPointer) - RELATIVE_POINTER_PAYLOAD;
+    }
+}
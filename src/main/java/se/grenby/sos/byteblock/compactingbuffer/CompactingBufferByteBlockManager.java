@@ -0,0 +1,227 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.compactingbuffer;
+
+import se.grenby.sos.byteblock.ByteBlockAllocator;
+import se.grenby.sos.byteblock.ByteBlockReader;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static se.grenby.sos.constant.PrimitiveConstants.INT_VALUE_FOR_NULL;
+
+/**
+ * Block manager that hands out handles instead of raw block pointers, so the blocks
+ * can be moved by a compactor. A handle is an index into a table holding the current
+ * pointer of the block in a shared buffer manager, and every block starts with the
+ * handle that refers to it.
+ *
+ * The compactor slides allocated blocks towards the start of the buffer, so that free
+ * blocks are merged into bigger ones. It runs incrementally, every call to compact
+ * visits a bounded number of blocks and continues where the previous call stopped.
+ * Readers holding a handle, like a SosMap or SosList, stay valid when blocks are moved.
+ */
+public class CompactingBufferByteBlockManager implements ByteBlockAllocator, ByteBlockReader {
+
+    private final static int HANDLE_SIZE_IN_BYTES = Integer.BYTES;
+    private final static int INITIAL_NUMBER_OF_HANDLES = 64;
+
+    private final SharedBufferByteBlockManager blockManager;
+
+    // Pointer of every handle, or INT_VALUE_FOR_NULL for handles that are free
+    private int[] handlePointers = new int[INITIAL_NUMBER_OF_HANDLES];
+    private int numberOfHandles = 0;
+    private int[] freeHandles = new int[INITIAL_NUMBER_OF_HANDLES];
+    private int numberOfFreeHandles = 0;
+
+    // Block where the next call to compact continues
+    private int compactionPointer = INT_VALUE_FOR_NULL;
+
+    public CompactingBufferByteBlockManager(final int capacity) {
+        blockManager = new SharedBufferByteBlockManager(capacity);
+    }
+
+    @Override
+    public int allocate(final int sizeOfPayload) {
+        return attachHandle(blockManager.allocate(sizeOfPayload + HANDLE_SIZE_IN_BYTES));
+    }
+
+    @Override
+    public int allocateAndClear(final int sizeOfPayload) {
+        return attachHandle(blockManager.allocateAndClear(sizeOfPayload + HANDLE_SIZE_IN_BYTES));
+    }
+
+    @Override
+    public int allocateAndClone(final ByteBuffer buffer) {
+        int handle = allocate(buffer.limit());
+        if (handle != INT_VALUE_FOR_NULL) {
+            blockManager.putByteBuffer(handlePointers[handle], HANDLE_SIZE_IN_BYTES, buffer);
+        }
+        return handle;
+    }
+
+    private int attachHandle(int blockPointer) {
+        if (blockPointer == INT_VALUE_FOR_NULL) {
+            return INT_VALUE_FOR_NULL;
+        }
+
+        int handle;
+        if (numberOfFreeHandles > 0) {
+            handle = freeHandles[--numberOfFreeHandles];
+        } else {
+            if (numberOfHandles == handlePointers.length) {
+                handlePointers = Arrays.copyOf(handlePointers, numberOfHandles*2);
+            }
+            handle = numberOfHandles++;
+        }
+
+        handlePointers[handle] = blockPointer;
+        blockManager.putInt(blockPointer, 0, handle);
+        return handle;
+    }
+
+    @Override
+    public void deallocate(int handle) {
+        int blockPointer = pointer(handle);
+
+        // The block where compaction continues may be merged away, continue from the block before it
+        if (compactionPointer != INT_VALUE_FOR_NULL &&
+                (compactionPointer == blockPointer || compactionPointer == blockManager.nextBlock(blockPointer))) {
+            compactionPointer = blockManager.previousBlock(blockPointer);
+        }
+
+        blockManager.deallocate(blockPointer);
+
+        handlePointers[handle] = INT_VALUE_FOR_NULL;
+        if (numberOfFreeHandles == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, numberOfFreeHandles*2);
+        }
+        freeHandles[numberOfFreeHandles++] = handle;
+    }
+
+    private int pointer(int handle) {
+        if (handle < 0 || handle >= numberOfHandles || handlePointers[handle] == INT_VALUE_FOR_NULL) {
+            throw new RuntimeException("Handle is not allocated: handle " + handle);
+        }
+        return handlePointers[handle];
+    }
+
+    /**
+     * Visits at most the given number of blocks and moves the allocated blocks found after
+     * free blocks. Returns true when a pass over all blocks has been completed.
+     */
+    public boolean compact(final int maxNumberOfBlocks) {
+        int p = compactionPointer == INT_VALUE_FOR_NULL ? blockManager.firstBlock() : compactionPointer;
+        for (int i = 0; i < maxNumberOfBlocks && p != INT_VALUE_FOR_NULL; i++) {
+            if (blockManager.isFreeBlock(p)) {
+                int next = blockManager.nextBlock(p);
+                if (next == INT_VALUE_FOR_NULL) {
+                    p = INT_VALUE_FOR_NULL;
+                } else {
+                    int handle = blockManager.getInt(next, 0);
+                    int freePointer = blockManager.moveBlockIntoFreeBlock(p);
+                    handlePointers[handle] = p;
+                    p = freePointer;
+                }
+            } else {
+                p = blockManager.nextBlock(p);
+            }
+        }
+
+        compactionPointer = p;
+        return p == INT_VALUE_FOR_NULL;
+    }
+
+    /**
+     * Compacts all blocks, the free space is left in one block at the end of the buffer.
+     */
+    public void compact() {
+        while (!compact(Integer.MAX_VALUE)) {
+        }
+    }
+
+    public int getTotalAvailableSpace() {
+        return blockManager.getTotalAvailableSpace();
+    }
+
+    public boolean verfiyIntegrity() {
+        boolean correct = blockManager.verfiyIntegrity();
+        for (int handle = 0; handle < numberOfHandles && correct; handle++) {
+            int blockPointer = handlePointers[handle];
+            if (blockPointer != INT_VALUE_FOR_NULL && blockManager.getInt(blockPointer, 0) != handle) {
+                correct = false;
+            }
+        }
+        return correct;
+    }
+
+    public String getDetailsAsString() {
+        StringBuilder sb = new StringBuilder("Compacting manager details \n");
+        sb.append("Number of handles: " + numberOfHandles + "\n");
+        sb.append("Number of free handles: " + numberOfFreeHandles + "\n");
+        sb.append(blockManager.getDetailsAsString());
+        return sb.toString();
+    }
+
+    @Override
+    public byte[] getBytes(int handle, int position, int length) {
+        return blockManager.getBytes(pointer(handle), position + HANDLE_SIZE_IN_BYTES, length);
+    }
+
+    @Override
+    public byte getByte(int handle, int position) {
+        return blockManager.getByte(pointer(handle), position + HANDLE_SIZE_IN_BYTES);
+    }
+
+    @Override
+    public short getShort(int handle, int position) {
+        return blockManager.getShort(pointer(handle), position + HANDLE_SIZE_IN_BYTES);
+    }
+
+    @Override
+    public int getInt(int handle, int position) {
+        return blockManager.getInt(pointer(handle), position + HANDLE_SIZE_IN_BYTES);
+    }
+
+    @Override
+    public long getLong(int handle, int position) {
+        return blockManager.getLong(pointer(handle), position + HANDLE_SIZE_IN_BYTES);
+    }
+
+    @Override
+    public float getFloat(int handle, int position) {
+        return blockManager.getFloat(pointer(handle), position + HANDLE_SIZE_IN_BYTES);
+    }
+
+    @Override
+    public double getDouble(int handle, int position) {
+        return blockManager.getDouble(pointer(handle), position + HANDLE_SIZE_IN_BYTES);
+    }
+
+    @Override
+    public int allocatedSize(int handle) {
+        return blockManager.allocatedSize(pointer(handle)) - HANDLE_SIZE_IN_BYTES;
+    }
+}
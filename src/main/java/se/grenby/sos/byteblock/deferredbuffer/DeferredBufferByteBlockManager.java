@@ -0,0 +1,295 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.deferredbuffer;
+
+import se.grenby.sos.byteblock.ByteBlockAllocator;
+import se.grenby.sos.byteblock.ByteBlockReadPointer;
+import se.grenby.sos.byteblock.ByteBlockReader;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static se.grenby.sos.constant.PrimitiveConstants.INT_VALUE_FOR_NULL;
+
+/**
+ * Thread safe block manager where deallocation is deferred. A deallocated block is only put
+ * in a lock-free queue, and a background reclaimer takes the blocks from the queue in batches
+ * and merges them into the bins of a shared buffer manager.
+ *
+ * A block is marked as pending deallocation when it is queued, so it can not be read or
+ * deallocated again. When the free space in the bins falls below the low-water mark, the
+ * thread deallocating drains the queue itself, and an allocation that does not find space
+ * drains the queue before it gives up. Reads of an allocated block are done without locking.
+ */
+public class DeferredBufferByteBlockManager implements ByteBlockAllocator, ByteBlockReader, AutoCloseable {
+
+    private final static Logger logger = Logger.getLogger(DeferredBufferByteBlockManager.class.getName());
+
+    private final static int RECLAIM_BATCH_SIZE = 256;
+
+    private final SharedBufferByteBlockManager blockManager;
+    // Size of the payload in the high 32 bits and pointer in the low 32 bits of each entry
+    private final ConcurrentLinkedQueue<Long> deallocatedBlocks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong sizeOfDeallocatedBlocks = new AtomicLong();
+    private final int lowWaterMark;
+    private final long reclaimIntervalInMillis;
+    private final Thread reclaimer;
+    private volatile boolean running = true;
+
+    // Only used while the lock of the block manager is held
+    private final int[] reclaimBatch = new int[RECLAIM_BATCH_SIZE];
+
+    public DeferredBufferByteBlockManager(final int capacity) {
+        this(capacity, capacity / 4, 1);
+    }
+
+    /**
+     * The queue is drained by the thread deallocating when the free space in the bins is less
+     * than lowWaterMark bytes, and by the reclaimer every reclaimIntervalInMillis.
+     */
+    public DeferredBufferByteBlockManager(final int capacity, final int lowWaterMark, final long reclaimIntervalInMillis) {
+        blockManager = new SharedBufferByteBlockManager(capacity);
+        this.lowWaterMark = lowWaterMark;
+        this.reclaimIntervalInMillis = reclaimIntervalInMillis;
+
+        reclaimer = new Thread(this::reclaim, "sos-block-reclaimer");
+        reclaimer.setDaemon(true);
+        reclaimer.start();
+    }
+
+    private void reclaim() {
+        while (running) {
+            try {
+                Thread.sleep(reclaimIntervalInMillis);
+            } catch (InterruptedException e) {
+                // Woken up to stop or to drain at once
+            }
+            try {
+                drain();
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Deallocated blocks could not be reclaimed", e);
+            }
+        }
+    }
+
+    /**
+     * Merges all blocks waiting in the queue into the bins. The lock is taken once per batch,
+     * so allocations can go on in between. Returns the number of blocks reclaimed.
+     */
+    public int drain() {
+        int reclaimed = 0;
+        int polled;
+        do {
+            synchronized (blockManager) {
+                Long entry;
+                polled = 0;
+                long size = 0;
+                int n = 0;
+                while (polled < RECLAIM_BATCH_SIZE && (entry = deallocatedBlocks.poll()) != null) {
+                    polled++;
+                    size += (int) (entry >>> 32);
+                    int blockPointer = (int) entry.longValue();
+                    // Only a block marked when it was queued is merged, the rest of the batch is still reclaimed
+                    if (blockManager.isPendingDeallocation(blockPointer)) {
+                        reclaimBatch[n++] = blockPointer;
+                    } else {
+                        logger.severe("Block in queue is not pending deallocation and is dropped: pointer " + blockPointer);
+                    }
+                }
+                sizeOfDeallocatedBlocks.addAndGet(-size);
+                if (n > 0) {
+                    blockManager.deallocatePendingBatch(n == RECLAIM_BATCH_SIZE ? reclaimBatch : Arrays.copyOf(reclaimBatch, n));
+                }
+                reclaimed += n;
+            }
+        } while (polled == RECLAIM_BATCH_SIZE);
+        return reclaimed;
+    }
+
+    @Override
+    public int allocate(final int sizeOfPayload) {
+        int blockPointer;
+        synchronized (blockManager) {
+            blockPointer = blockManager.allocate(sizeOfPayload);
+        }
+        if (blockPointer == INT_VALUE_FOR_NULL) {
+            // Retried even if nothing was drained, another thread may have drained the queue meanwhile
+            drain();
+            synchronized (blockManager) {
+                blockPointer = blockManager.allocate(sizeOfPayload);
+            }
+        }
+        return blockPointer;
+    }
+
+    @Override
+    public int allocateAndClear(final int sizeOfPayload) {
+        int blockPointer;
+        synchronized (blockManager) {
+            blockPointer = blockManager.allocateAndClear(sizeOfPayload);
+        }
+        if (blockPointer == INT_VALUE_FOR_NULL) {
+            drain();
+            synchronized (blockManager) {
+                blockPointer = blockManager.allocateAndClear(sizeOfPayload);
+            }
+        }
+        return blockPointer;
+    }
+
+    @Override
+    public int allocateAndClone(final ByteBuffer buffer) {
+        int blockPointer = allocate(buffer.limit());
+        if (blockPointer != INT_VALUE_FOR_NULL) {
+            // The block is owned by this thread, so it can be filled outside the lock
+            blockManager.putByteBuffer(blockPointer, 0, buffer);
+        }
+        return blockPointer;
+    }
+
+    /**
+     * Marks the block as pending deallocation and queues it. A block that is not allocated, or
+     * is already in the queue, throws here in the caller.
+     */
+    @Override
+    public void deallocate(int blockPointer) {
+        int size;
+        boolean lowOnSpace;
+        synchronized (blockManager) {
+            if (!blockManager.markPendingDeallocation(blockPointer)) {
+                throw new RuntimeException("Block can not be deallocated: pointer " + blockPointer);
+            }
+            // The size is read first, the reclaimer may merge the block as soon as it is in the queue
+            size = blockManager.allocatedSize(blockPointer);
+            lowOnSpace = blockManager.getTotalAvailableSpace() < lowWaterMark;
+        }
+
+        sizeOfDeallocatedBlocks.addAndGet(size);
+        deallocatedBlocks.add(((long) size << 32) | (blockPointer & 0xFFFFFFFFL));
+        if (lowOnSpace) {
+            drain();
+        }
+    }
+
+    public int getNumberOfDeallocatedBlocksInQueue() {
+        return deallocatedBlocks.size();
+    }
+
+    public int getTotalAvailableSpace() {
+        synchronized (blockManager) {
+            return blockManager.getTotalAvailableSpace();
+        }
+    }
+
+    public boolean verfiyIntegrity() {
+        synchronized (blockManager) {
+            return blockManager.verfiyIntegrity();
+        }
+    }
+
+    public String getDetailsAsString() {
+        StringBuilder sb = new StringBuilder("Deferred manager details \n");
+        sb.append("Low-water mark of free space: " + lowWaterMark + "\n");
+        sb.append("Size of blocks in queue: " + sizeOfDeallocatedBlocks.get() + "\n");
+        synchronized (blockManager) {
+            sb.append(blockManager.getDetailsAsString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Stops the reclaimer and drains the queue.
+     */
+    @Override
+    public void close() {
+        running = false;
+        reclaimer.interrupt();
+        try {
+            reclaimer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drain();
+    }
+
+    @Override
+    public byte[] getBytes(int blockPointer, int position, int length) {
+        return blockManager.getBytes(blockPointer, position, length);
+    }
+
+    @Override
+    public byte getByte(int blockPointer, int position) {
+        return blockManager.getByte(blockPointer, position);
+    }
+
+    @Override
+    public short getShort(int blockPointer, int position) {
+        return blockManager.getShort(blockPointer, position);
+    }
+
+    @Override
+    public int getInt(int blockPointer, int position) {
+        return blockManager.getInt(blockPointer, position);
+    }
+
+    @Override
+    public long getLong(int blockPointer, int position) {
+        return blockManager.getLong(blockPointer, position);
+    }
+
+    @Override
+    public float getFloat(int blockPointer, int position) {
+        return blockManager.getFloat(blockPointer, position);
+    }
+
+    @Override
+    public double getDouble(int blockPointer, int position) {
+        return blockManager.getDouble(blockPointer, position);
+    }
+
+    @Override
+    public int allocatedSize(int blockPointer) {
+        return blockManager.allocatedSize(blockPointer);
+    }
+
+    @Override
+    public boolean supportsWritableBlocks() {
+        return true;
+    }
+
+    @Override
+    public ByteBuffer getWritableBlock(int blockPointer) {
+        return blockManager.getWritableBlock(blockPointer);
+    }
+
+    @Override
+    public ByteBlockReadPointer getBlock(int blockPointer) {
+        return blockManager.getBlock(blockPointer);
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.mappedbuffer;
+
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+import static se.grenby.sos.constant.PrimitiveConstants.INT_VALUE_FOR_NULL;
+
+/**
+ * Block manager kept in a memory mapped file. The blocks, their size headers and footers
+ * and the bin block are all stored in the file, so a process can reopen the file and read
+ * the blocks written by an earlier process without rebuilding them.
+ *
+ * The file starts with a header holding the capacity, a clean flag, the allocation counters
+ * and a root block pointer that can be used to find the objects again. The clean flag is
+ * cleared when the file is opened and set when it is closed. If a file is opened that was
+ * not closed cleanly, the bins are rebuilt by walking all blocks.
+ *
+ * The mapping can not be released explicitly, it is released when the manager is garbage
+ * collected. A manager must not be used after it has been closed.
+ */
+public class MappedBufferByteBlockManager extends SharedBufferByteBlockManager implements Closeable {
+
+    private final static Logger logger = Logger.getLogger(MappedBufferByteBlockManager.class.getName());
+
+    private final static int FILE_MAGIC = 0x534F5342; // "SOSB"
+    private final static int FILE_VERSION = 1;
+
+    private final static byte FILE_STATUS_OPEN = 0;
+    private final static byte FILE_STATUS_CLEAN = 1;
+
+    private final static int HEADER_POINTER_MAGIC = 0;
+    private final static int HEADER_POINTER_VERSION = HEADER_POINTER_MAGIC + Integer.BYTES;
+    private final static int HEADER_POINTER_CAPACITY = HEADER_POINTER_VERSION + Integer.BYTES;
+    private final static int HEADER_POINTER_STATUS = HEADER_POINTER_CAPACITY + Integer.BYTES;
+    private final static int HEADER_POINTER_ALLOCATED_BLOCKS = HEADER_POINTER_STATUS + Integer.BYTES;
+    private final static int HEADER_POINTER_ALLOCATED_SIZE = HEADER_POINTER_ALLOCATED_BLOCKS + Integer.BYTES;
+    private final static int HEADER_POINTER_ROOT_BLOCK = HEADER_POINTER_ALLOCATED_SIZE + Integer.BYTES;
+
+    public final static int FILE_HEADER_SIZE_IN_BYTES = 64;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mappedBuffer;
+
+    private MappedBufferByteBlockManager(final FileChannel channel, final MappedByteBuffer mappedBuffer, final boolean initialize) {
+        super(blockArea(mappedBuffer), initialize);
+        this.channel = channel;
+        this.mappedBuffer = mappedBuffer;
+
+        if (!initialize) {
+            if (mappedBuffer.get(HEADER_POINTER_STATUS) == FILE_STATUS_CLEAN) {
+                restoreBins(mappedBuffer.getInt(HEADER_POINTER_ALLOCATED_BLOCKS), mappedBuffer.getInt(HEADER_POINTER_ALLOCATED_SIZE));
+            } else {
+                logger.warning("File was not closed cleanly, bins are rebuilt");
+                rebuildBins();
+            }
+        }
+
+        mappedBuffer.put(HEADER_POINTER_STATUS, FILE_STATUS_OPEN);
+        mappedBuffer.force();
+    }
+
+    private static ByteBuffer blockArea(MappedByteBuffer mappedBuffer) {
+        ByteBuffer area = mappedBuffer.duplicate();
+        area.position(FILE_HEADER_SIZE_IN_BYTES);
+        return area.slice();
+    }
+
+    /**
+     * Opens a block file, the file is created with the requested capacity if it does not
+     * exist. An existing file must have the requested capacity. The file is locked while the
+     * manager is open, an IOException is thrown if it is already open by another manager.
+     */
+    public static MappedBufferByteBlockManager open(final Path file, final int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IOException("File " + file + " is already open");
+            }
+
+            boolean initialize = channel.size() == 0;
+            if (!initialize && channel.size() != (long) FILE_HEADER_SIZE_IN_BYTES + capacity) {
+                throw new IllegalArgumentException("File " + file + " does not have capacity " + capacity);
+            }
+
+            MappedByteBuffer mappedBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_SIZE_IN_BYTES + capacity);
+            if (initialize) {
+                mappedBuffer.putInt(HEADER_POINTER_MAGIC, FILE_MAGIC);
+                mappedBuffer.putInt(HEADER_POINTER_VERSION, FILE_VERSION);
+                mappedBuffer.putInt(HEADER_POINTER_CAPACITY, capacity);
+                mappedBuffer.putInt(HEADER_POINTER_ROOT_BLOCK, INT_VALUE_FOR_NULL);
+            } else if (mappedBuffer.getInt(HEADER_POINTER_MAGIC) != FILE_MAGIC ||
+                    mappedBuffer.getInt(HEADER_POINTER_VERSION) != FILE_VERSION ||
+                    mappedBuffer.getInt(HEADER_POINTER_CAPACITY) != capacity) {
+                throw new IOException("File " + file + " is not a block file of version " + FILE_VERSION);
+            }
+
+            return new MappedBufferByteBlockManager(channel, mappedBuffer, initialize);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getRootBlock() {
+        return mappedBuffer.getInt(HEADER_POINTER_ROOT_BLOCK);
+    }
+
+    public void setRootBlock(int blockPointer) {
+        mappedBuffer.putInt(HEADER_POINTER_ROOT_BLOCK, blockPointer);
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Forces all changes of the blocks to be written to the file.
+     */
+    public void flush() {
+        mappedBuffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            mappedBuffer.putInt(HEADER_POINTER_ALLOCATED_BLOCKS, getNumberOfAllocatedBlocks());
+            mappedBuffer.putInt(HEADER_POINTER_ALLOCATED_SIZE, getTotalSizeOfAllocatedBlocks());
+            mappedBuffer.force();
+            // The status is written last, so the file is never marked clean with stale counters
+            mappedBuffer.put(HEADER_POINTER_STATUS, FILE_STATUS_CLEAN);
+            mappedBuffer.force();
+            channel.close();
+        }
+    }
+}
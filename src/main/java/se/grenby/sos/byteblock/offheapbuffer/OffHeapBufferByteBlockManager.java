@@ -0,0 +1,91 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.offheapbuffer;
+
+import se.grenby.sos.byteblock.segmentedbuffer.SegmentedBufferByteBlockManager;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Thread safe segmented block manager in off-heap memory with long block pointers.
+ *
+ * This is the Java 8 version, its segments are direct buffers and their memory is freed
+ * by the garbage collector after the manager has been closed. On Java 22 and later the
+ * multi-release jar holds a version where the segments are allocated from a shared
+ * Arena, and closing the manager frees the off-heap memory at once.
+ */
+public class OffHeapBufferByteBlockManager extends SegmentedBufferByteBlockManager implements AutoCloseable {
+
+    private boolean closed = false;
+
+    public OffHeapBufferByteBlockManager(final int segmentCapacity) {
+        super(segmentCapacity);
+    }
+
+    public OffHeapBufferByteBlockManager(final int segmentCapacity, final int maxNumberOfSegments) {
+        super(segmentCapacity, maxNumberOfSegments);
+    }
+
+    @Override
+    protected SharedBufferByteBlockManager createSegment(final int segmentCapacity) {
+        if (closed) {
+            throw new IllegalStateException("Manager has been closed");
+        }
+        return new SharedBufferByteBlockManager(ByteBuffer.allocateDirect(segmentCapacity));
+    }
+
+    @Override
+    public synchronized long allocate(final int sizeOfPayload) {
+        return super.allocate(sizeOfPayload);
+    }
+
+    @Override
+    public synchronized long allocateAndClear(final int sizeOfPayload) {
+        return super.allocateAndClear(sizeOfPayload);
+    }
+
+    @Override
+    public synchronized long allocateAndClone(final ByteBuffer buffer) {
+        return super.allocateAndClone(buffer);
+    }
+
+    @Override
+    public synchronized void deallocate(final long blockPointer) {
+        super.deallocate(blockPointer);
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Removes all segments, every block pointer becomes invalid.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        removeAllSegments();
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.regionbuffer;
+
+import se.grenby.sos.byteblock.ByteBlockAllocator;
+import se.grenby.sos.byteblock.ByteBlockReader;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+import se.grenby.sos.util.BitUtil;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static se.grenby.sos.constant.PrimitiveConstants.INT_VALUE_FOR_NULL;
+
+/**
+ * Block manager for objects that live and die together, for example during one request.
+ * Blocks are allocated by bumping a pointer in large chunks taken from a shared buffer
+ * manager, and all blocks are freed at once by releasing the region. Single blocks are
+ * never freed.
+ *
+ * A block pointer holds the generation of the region, the chunk index and the offset of
+ * the block in the chunk. The generation is increased when the region is released, so a
+ * SosMap or SosList still reading a released block gets an IllegalStateException instead
+ * of reading recycled memory. The generation has 8 bits, a pointer that is 256 releases old
+ * is not detected.
+ */
+public class RegionBufferByteBlockManager implements ByteBlockAllocator, ByteBlockReader {
+
+    private final static int GENERATION_BITS = 8;
+    private final static int GENERATION_MASK = (1 << GENERATION_BITS) - 1;
+    private final static int BLOCK_SIZE_IN_BYTES = Integer.BYTES;
+    private final static int INITIAL_NUMBER_OF_CHUNKS = 4;
+
+    private final SharedBufferByteBlockManager blockManager;
+    private final int chunkSize;
+    private final int offsetBits;
+    private final int chunkBits;
+    private final int maxNumberOfChunks;
+
+    private int[] chunkPointers = new int[INITIAL_NUMBER_OF_CHUNKS];
+    private int numberOfChunks = 0;
+    private int currentOffset = 0;
+    private int currentChunkSize = 0;
+    private int generation = 0;
+
+    public RegionBufferByteBlockManager(final SharedBufferByteBlockManager blockManager, final int chunkSize) {
+        this.blockManager = blockManager;
+        this.chunkSize = chunkSize;
+        offsetBits = BitUtil.numberOfBitsNeeded(chunkSize);
+        chunkBits = Integer.SIZE - 1 - GENERATION_BITS - offsetBits;
+        if (chunkBits < 1) {
+            throw new IllegalArgumentException("Chunk size " + chunkSize + " is too big for the block pointers of a region");
+        }
+        maxNumberOfChunks = 1 << chunkBits;
+    }
+
+    @Override
+    public int allocate(final int sizeOfPayload) {
+        int sizeOfBlock = sizeOfPayload + BLOCK_SIZE_IN_BYTES;
+        if (numberOfChunks == 0 || currentOffset + sizeOfBlock > currentChunkSize) {
+            if (!addChunk(sizeOfBlock)) {
+                return INT_VALUE_FOR_NULL;
+            }
+        }
+
+        int offset = currentOffset;
+        currentOffset += sizeOfBlock;
+        if (currentChunkSize > chunkSize) {
+            // A chunk of its own is full, offsets beyond the chunk size can not be held in a pointer
+            currentOffset = currentChunkSize;
+        }
+        blockManager.putInt(chunkPointers[numberOfChunks - 1], offset, sizeOfPayload);
+
+        return (generation << (chunkBits + offsetBits)) | ((numberOfChunks - 1) << offsetBits) | offset;
+    }
+
+    private boolean addChunk(int sizeOfBlock) {
+        if (numberOfChunks == maxNumberOfChunks) {
+            return false;
+        }
+
+        // A block bigger than a chunk gets a chunk of its own, its offset is always zero
+        int size = Math.max(chunkSize, sizeOfBlock);
+        int chunkPointer = blockManager.allocate(size);
+        if (chunkPointer == INT_VALUE_FOR_NULL) {
+            return false;
+        }
+
+        if (numberOfChunks == chunkPointers.length) {
+            chunkPointers = Arrays.copyOf(chunkPointers, numberOfChunks*2);
+        }
+        chunkPointers[numberOfChunks++] = chunkPointer;
+        currentOffset = 0;
+        currentChunkSize = size;
+        return true;
+    }
+
+    @Override
+    public int allocateAndClear(final int sizeOfPayload) {
+        int blockPointer = allocate(sizeOfPayload);
+        if (blockPointer != INT_VALUE_FOR_NULL) {
+            int chunkPointer = chunkPointer(blockPointer);
+            int position = offset(blockPointer) + BLOCK_SIZE_IN_BYTES;
+            for (int p = 0; p < sizeOfPayload; p++) {
+                blockManager.putByte(chunkPointer, position + p, (byte) 0);
+            }
+        }
+        return blockPointer;
+    }
+
+    @Override
+    public int allocateAndClone(final ByteBuffer buffer) {
+        int blockPointer = allocate(buffer.limit());
+        if (blockPointer != INT_VALUE_FOR_NULL) {
+            blockManager.putByteBuffer(chunkPointer(blockPointer), offset(blockPointer) + BLOCK_SIZE_IN_BYTES, buffer);
+        }
+        return blockPointer;
+    }
+
+    /**
+     * Single blocks are not freed, the space is reclaimed when the region is released.
+     */
+    @Override
+    public void deallocate(int blockPointer) {
+        chunkPointer(blockPointer);
+    }
+
+    /**
+     * Frees all blocks of the region. The first chunk is kept for the next blocks, the other
+     * chunks are returned to the shared buffer manager.
+     */
+    public void release() {
+        for (int i = 1; i < numberOfChunks; i++) {
+            blockManager.deallocate(chunkPointers[i]);
+        }
+        if (numberOfChunks > 0) {
+            numberOfChunks = 1;
+            currentOffset = 0;
+            currentChunkSize = Math.min(chunkSize, blockManager.allocatedSize(chunkPointers[0]));
+        }
+        generation = (generation + 1) & GENERATION_MASK;
+    }
+
+    /**
+     * Frees all blocks and returns all chunks to the shared buffer manager.
+     */
+    public void dispose() {
+        release();
+        if (numberOfChunks > 0) {
+            blockManager.deallocate(chunkPointers[0]);
+            numberOfChunks = 0;
+        }
+    }
+
+    public int getNumberOfChunks() {
+        return numberOfChunks;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    private int chunkPointer(int blockPointer) {
+        int chunkIndex = (blockPointer >>> offsetBits) & (maxNumberOfChunks - 1);
+        if (blockPointer < 0 || (blockPointer >>> (chunkBits + offsetBits)) != generation || chunkIndex >= numberOfChunks) {
+            throw new IllegalStateException("Block pointer " + blockPointer + " does not belong to generation " + generation + " of the region");
+        }
+        return chunkPointers[chunkIndex];
+    }
+
+    private int offset(int blockPointer) {
+        return blockPointer & ((1 << offsetBits) - 1);
+    }
+
+    private int position(int chunkPointer, int blockPointer, int position, int numberOfBytes) {
+        int offset = offset(blockPointer);
+        if (position < 0 || position + numberOfBytes > blockManager.getInt(chunkPointer, offset)) {
+            throw new IndexOutOfBoundsException();
+        }
+        return offset + BLOCK_SIZE_IN_BYTES + position;
+    }
+
+    @Override
+    public byte[] getBytes(int blockPointer, int position, int length) {
+        int chunkPointer = chunkPointer(blockPointer);
+        return blockManager.getBytes(chunkPointer, position(chunkPointer, blockPointer, position, length), length);
+    }
+
+    @Override
+    public byte getByte(int blockPointer, int position) {
+        int chunkPointer = chunkPointer(blockPointer);
+        return blockManager.getByte(chunkPointer, position(chunkPointer, blockPointer, position, Byte.BYTES));
+    }
+
+    @Override
+    public short getShort(int blockPointer, int position) {
+        int chunkPointer = chunkPointer(blockPointer);
+        return blockManager.getShort(chunkPointer, position(chunkPointer, blockPointer, position, Short.BYTES));
+    }
+
+    @Override
+    public int getInt(int blockPointer, int position) {
+        int chunkPointer = chunkPointer(blockPointer);
+        return blockManager.getInt(chunkPointer, position(chunkPointer, blockPointer, position, Integer.BYTES));
+    }
+
+    @Override
+    public long getLong(int blockPointer, int position) {
+        int chunkPointer = chunkPointer(blockPointer);
+        return blockManager.getLong(chunkPointer, position(chunkPointer, blockPointer, position, Long.BYTES));
+    }
+
+    @Override
+    public float getFloat(int blockPointer, int position) {
+        int chunkPointer = chunkPointer(blockPointer);
+        return blockManager.getFloat(chunkPointer, position(chunkPointer, blockPointer, position, Float.BYTES));
+    }
+
+    @Override
+    public double getDouble(int blockPointer, int position) {
+        int chunkPointer = chunkPointer(blockPointer);
+        return blockManager.getDouble(chunkPointer, position(chunkPointer, blockPointer, position, Double.BYTES));
+    }
+
+    @Override
+    public int allocatedSize(int blockPointer) {
+        return blockManager.getInt(chunkPointer(blockPointer), offset(blockPointer));
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.segmentedbuffer;
+
+import se.grenby.sos.byteblock.LongByteBlockAllocator;
+import se.grenby.sos.byteblock.LongByteBlockReader;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+import static se.grenby.sos.constant.PrimitiveConstants.INT_VALUE_FOR_NULL;
+import static se.grenby.sos.constant.PrimitiveConstants.LONG_VALUE_FOR_NULL;
+
+/**
+ * Block manager made of segments, where every segment is a shared buffer manager
+ * of its own. A new segment is added when no segment has room for an allocation,
+ * so the total capacity is not limited by the size of one buffer.
+ *
+ * Block pointers are longs with the segment index in the high int and the pointer
+ * within the segment in the low int.
+ */
+public class SegmentedBufferByteBlockManager implements LongByteBlockAllocator, LongByteBlockReader {
+
+    private final static Logger logger = Logger.getLogger(SegmentedBufferByteBlockManager.class.getName());
+
+    private final static int SEGMENT_POINTER_BITS = Integer.SIZE;
+    private final static long SEGMENT_POINTER_MASK = 0xFFFFFFFFL;
+
+    private final int segmentCapacity;
+    private final int maxNumberOfSegments;
+    // Segments are added seldom and read on every access, possibly from other threads
+    private final List<SharedBufferByteBlockManager> segments = new CopyOnWriteArrayList<>();
+
+    // Segment that last had room for an allocation, it is tried first
+    private int currentSegment = 0;
+    // Larger payloads never fit in a segment
+    private final int maxSizeOfPayload;
+
+    public SegmentedBufferByteBlockManager(final int segmentCapacity) {
+        this(segmentCapacity, Integer.MAX_VALUE);
+    }
+
+    public SegmentedBufferByteBlockManager(final int segmentCapacity, final int maxNumberOfSegments) {
+        if (maxNumberOfSegments < 1) {
+            throw new IllegalArgumentException("There must be at least one segment");
+        }
+        this.segmentCapacity = segmentCapacity;
+        this.maxNumberOfSegments = maxNumberOfSegments;
+        this.maxSizeOfPayload = SharedBufferByteBlockManager.maxSizeOfPayload(segmentCapacity);
+    }
+
+    /**
+     * Creates the manager of a new segment, the first segment is created at the first allocation.
+     */
+    protected SharedBufferByteBlockManager createSegment(final int segmentCapacity) {
+        return new SharedBufferByteBlockManager(segmentCapacity);
+    }
+
+    /**
+     * Removes all segments, every block pointer becomes invalid.
+     */
+    protected void removeAllSegments() {
+        segments.clear();
+        currentSegment = 0;
+    }
+
+    @Override
+    public long allocate(final int sizeOfPayload) {
+        if (sizeOfPayload > maxSizeOfPayload) {
+            // Can never fit in a segment, so no segment is created for it
+            return LONG_VALUE_FOR_NULL;
+        }
+
+        int segmentPointer;
+        if (currentSegment < segments.size()) {
+            segmentPointer = segments.get(currentSegment).allocate(sizeOfPayload);
+            if (segmentPointer != INT_VALUE_FOR_NULL) {
+                return toBlockPointer(currentSegment, segmentPointer);
+            }
+        }
+
+        // Try the other segments that have enough space left before adding a new one
+        for (int i = 0; i < segments.size(); i++) {
+            SharedBufferByteBlockManager segment = segments.get(i);
+            if (i != currentSegment && segment.getTotalAvailableSpace() > sizeOfPayload) {
+                segmentPointer = segment.allocate(sizeOfPayload);
+                if (segmentPointer != INT_VALUE_FOR_NULL) {
+                    currentSegment = i;
+                    return toBlockPointer(i, segmentPointer);
+                }
+            }
+        }
+
+        if (segments.size() < maxNumberOfSegments) {
+            SharedBufferByteBlockManager segment = createSegment(segmentCapacity);
+            segmentPointer = segment.allocate(sizeOfPayload);
+            if (segmentPointer != INT_VALUE_FOR_NULL) {
+                segments.add(segment);
+                currentSegment = segments.size() - 1;
+                logger.info("Segment " + currentSegment + " has been added");
+                return toBlockPointer(currentSegment, segmentPointer);
+            }
+        }
+
+        return LONG_VALUE_FOR_NULL;
+    }
+
+    @Override
+    public long allocateAndClear(final int sizeOfPayload) {
+        long blockPointer = allocate(sizeOfPayload);
+        if (blockPointer != LONG_VALUE_FOR_NULL) {
+            int size = allocatedSize(blockPointer);
+            SharedBufferByteBlockManager segment = segment(blockPointer);
+            int segmentPointer = segmentPointer(blockPointer);
+            for (int p = 0; p < size; p++) {
+                segment.putByte(segmentPointer, p, (byte) 0);
+            }
+        }
+        return blockPointer;
+    }
+
+    @Override
+    public long allocateAndClone(final ByteBuffer buffer) {
+        long blockPointer = allocate(buffer.limit());
+        if (blockPointer != LONG_VALUE_FOR_NULL) {
+            segment(blockPointer).putByteBuffer(segmentPointer(blockPointer), 0, buffer);
+        }
+        return blockPointer;
+    }
+
+    @Override
+    public void deallocate(long blockPointer) {
+        if (blockPointer == LONG_VALUE_FOR_NULL) {
+            throw new RuntimeException("Block can not be deallocated: pointer " + blockPointer);
+        }
+        segment(blockPointer).deallocate(segmentPointer(blockPointer));
+    }
+
+    private static long toBlockPointer(int segmentIndex, int segmentPointer) {
+        return ((long) segmentIndex << SEGMENT_POINTER_BITS) | (segmentPointer & SEGMENT_POINTER_MASK);
+    }
+
+    private SharedBufferByteBlockManager segment(long blockPointer) {
+        int segmentIndex = (int) (blockPointer >>> SEGMENT_POINTER_BITS);
+        if (segmentIndex >= segments.size()) {
+            throw new IllegalStateException("Block pointer " + blockPointer + " does not point to a segment");
+        }
+        return segments.get(segmentIndex);
+    }
+
+    private static int segmentPointer(long blockPointer) {
+        return (int) (blockPointer & SEGMENT_POINTER_MASK);
+    }
+
+    public int getMaxSizeOfPayload() {
+        return maxSizeOfPayload;
+    }
+
+    public int getNumberOfSegments() {
+        return segments.size();
+    }
+
+    public long getTotalAvailableSpace() {
+        long space = 0;
+        for (SharedBufferByteBlockManager segment : segments) {
+            space += segment.getTotalAvailableSpace();
+        }
+        return space;
+    }
+
+    public boolean verfiyIntegrity() {
+        boolean correct = true;
+        for (int i = 0; i < segments.size() && correct; i++) {
+            correct = segments.get(i).verfiyIntegrity();
+        }
+        return correct;
+    }
+
+    public String getDetailsAsString() {
+        StringBuilder sb = new StringBuilder("Segmented manager details \n");
+        sb.append("Segment capacity: " + segmentCapacity + "\n");
+        sb.append("Number of segments: " + segments.size() + "\n");
+        for (int i = 0; i < segments.size(); i++) {
+            sb.append("Segment " + i + ": ");
+            sb.append(segments.get(i).getDetailsAsString());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public byte[] getBytes(long blockPointer, int position, int length) {
+        return segment(blockPointer).getBytes(segmentPointer(blockPointer), position, length);
+    }
+
+    @Override
+    public byte getByte(long blockPointer, int position) {
+        return segment(blockPointer).getByte(segmentPointer(blockPointer), position);
+    }
+
+    @Override
+    public short getShort(long blockPointer, int position) {
+        return segment(blockPointer).getShort(segmentPointer(blockPointer), position);
+    }
+
+    @Override
+    public int getInt(long blockPointer, int position) {
+        return segment(blockPointer).getInt(segmentPointer(blockPointer), position);
+    }
+
+    @Override
+    public long getLong(long blockPointer, int position) {
+        return segment(blockPointer).getLong(segmentPointer(blockPointer), position);
+    }
+
+    @Override
+    public float getFloat(long blockPointer, int position) {
+        return segment(blockPointer).getFloat(segmentPointer(blockPointer), position);
+    }
+
+    @Override
+    public double getDouble(long blockPointer, int position) {
+        return segment(blockPointer).getDouble(segmentPointer(blockPointer), position);
+    }
+
+    @Override
+    public int allocatedSize(long blockPointer) {
+        return segment(blockPointer).allocatedSize(segmentPointer(blockPointer));
+    }
+}
@@ -24,10 +24,14 @@
 package se.grenby.sos.byteblock.sharedbuffer;
 
 import se.grenby.sos.byteblock.ByteBlockAllocator;
+import se.grenby.sos.byteblock.ByteBlockReadPointer;
 import se.grenby.sos.byteblock.ByteBlockReader;
+import se.grenby.sos.byteblock.UnsafeByteBlockReadPointer;
 import se.grenby.sos.util.BitUtil;
+import se.grenby.sos.util.UnsafeUtil;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 import static se.grenby.sos.constant.PrimitiveConstants.INT_VALUE_FOR_NULL;
@@ -45,40 +49,93 @@ public class SharedBufferByteBlockManager implements ByteBlockAllocator, ByteBlo
 
     private final static byte BYTE_STATUS_FREE = 0;
     private final static byte BYTE_STATUS_OCCUPIED = 127;
+    // Allocated block that has been handed over to be deallocated later, see markPendingDeallocation
+    private final static byte BYTE_STATUS_PENDING_DEALLOCATION = 63;
 
     private final static int RELATIVE_POINTER_STATUS = 0;
     private final static int RELATIVE_POINTER_PAYLOAD = RELATIVE_POINTER_STATUS + Byte.BYTES;
 
     private final static int RELATIVE_POINTER_PREVIOUS = RELATIVE_POINTER_STATUS + Byte.BYTES;
     private final static int RELATIVE_POINTER_NEXT = RELATIVE_POINTER_PREVIOUS + Integer.BYTES;
-    private final static int RELATIVE_POINTER_VOID_SPACE = RELATIVE_POINTER_NEXT + Byte.BYTES;
+    // Space needed by a free block for its status and bin list pointers
+    private final static int RELATIVE_POINTER_VOID_SPACE = RELATIVE_POINTER_NEXT + Integer.BYTES;
+
+    // Bins are split into linear sub-bins (two-level segregated fit). Small managers use
+    // fewer sub-bins, so that the bin block does not take more than a fraction of the capacity.
+    private final static int MAX_SUB_BIN_BITS = 3;
+    private final static int BIN_BLOCK_CAPACITY_FRACTION = 32;
 
     public final static int MANAGED_BLOCK_OVERHEAD_IN_BYTES = RELATIVE_POINTER_PAYLOAD + SharedBufferByteBlocks.BLOCK_OVERHEAD_IN_BYTES;
 
+    // Set to true to get read pointers that read at raw memory addresses without bounds checks.
+    // A read through a stale pointer is then not detected and may crash the JVM.
+    public final static String UNCHECKED_READ_POINTERS_PROPERTY = "se.grenby.sos.uncheckedReadPointers";
+
     private final SharedBufferByteBlocks blockBuffer;
     private final int sizeOfBinBlock;
     private final int numberOfBins;
+    private final int subBinBits;
+    private final int numberOfSubBins;
     private final int binBlockPointer;
 
+    // Bit i is set when bin i has a free block, and bit j of sub-bin bitmap i is set
+    // when sub-bin j of bin i has a free block.
+    private int binBitmap = 0;
+    private final int[] subBinBitmaps;
+
+    // Memory address of the buffer for unchecked read pointers, or -1 if they can not be used
+    private final long bufferAddress;
+    private boolean checkedReadPointers = !Boolean.getBoolean(UNCHECKED_READ_POINTERS_PROPERTY);
+
     private int numberOfAllocatedBlocks = 0;
     private int totalSizeOfAllocatedBlocks = 0;
     private int numberOfBlocksInBins = 0;
     private int totalSizeOfBlocksInBins = 0;
 
     public SharedBufferByteBlockManager(final int capacity) {
-        blockBuffer = new SharedBufferByteBlocks(capacity);
+        this(new SharedBufferByteBlocks(capacity), true);
+    }
+
+    /**
+     * Creates a new manager in a supplied buffer, for example a buffer of off-heap memory
+     * that is freed by its owner.
+     */
+    public SharedBufferByteBlockManager(final ByteBuffer buffer) {
+        this(new SharedBufferByteBlocks(buffer, true), true);
+    }
+
+    /**
+     * Creates a manager in a supplied buffer. When initialize is false the buffer already
+     * holds the blocks and bin block of a manager, and the sub class must call either
+     * restoreBins or rebuildBins before the manager is used.
+     */
+    protected SharedBufferByteBlockManager(final ByteBuffer buffer, final boolean initialize) {
+        this(new SharedBufferByteBlocks(buffer, initialize), initialize);
+    }
+
+    private SharedBufferByteBlockManager(final SharedBufferByteBlocks blockBuffer, final boolean initialize) {
+        this.blockBuffer = blockBuffer;
 
         numberOfBins = BitUtil.numberOfBitsNeeded(blockBuffer.getCapacity());
+        subBinBits = subBinBits(numberOfBins, blockBuffer.getCapacity());
+        numberOfSubBins = 1 << subBinBits;
+        subBinBitmaps = new int[numberOfBins];
         binBlockPointer = blockBuffer.getFirstBlock();
+        sizeOfBinBlock = numberOfBins*numberOfSubBins*Integer.BYTES;
+        bufferAddress = UnsafeUtil.isAvailable() && blockBuffer.getBuffer().isDirect() ? UnsafeUtil.addressOf(blockBuffer.getBuffer()) : -1;
+
+        if (!initialize) {
+            if (blockBuffer.getBlockSize(binBlockPointer) != sizeOfBinBlock) {
+                throw new IllegalStateException("Buffer does not hold a bin block of size " + sizeOfBinBlock);
+            }
+            return;
+        }
 
         // Spilt first block to bin-block and void-block
-        int voidPointer = blockBuffer.splitBlock(binBlockPointer, numberOfBins*Integer.BYTES);
-        sizeOfBinBlock = numberOfBins*Integer.BYTES;
+        int voidPointer = blockBuffer.splitBlock(binBlockPointer, sizeOfBinBlock);
 
         // Set all bins to NULL
-        for (int i=0; i<numberOfBins; i++) {
-            blockBuffer.putInt(binBlockPointer, i*Integer.BYTES, INT_VALUE_FOR_NULL);
-        }
+        clearBins();
 
         // Set values in empty block (size of block, pointer to previous block, pointer to next block)
         // Remove size value from size of block
@@ -94,11 +151,170 @@ public class SharedBufferByteBlockManager implements ByteBlockAllocator, ByteBlo
         logger.info(details);
     }
 
+    private static int subBinBits(final int numberOfBins, final int capacity) {
+        int bits = MAX_SUB_BIN_BITS;
+        while (bits > 0 && (numberOfBins << bits)*Integer.BYTES > capacity/BIN_BLOCK_CAPACITY_FRACTION) {
+            bits--;
+        }
+        return bits;
+    }
+
+    /**
+     * Returns the largest payload that can be allocated in a new manager of the capacity, that
+     * is the capacity less the bin block and the overhead of the bin block and the free block.
+     */
+    public static int maxSizeOfPayload(final int capacity) {
+        int numberOfBins = BitUtil.numberOfBitsNeeded(capacity);
+        int sizeOfBinBlock = (numberOfBins << subBinBits(numberOfBins, capacity))*Integer.BYTES;
+        return capacity - sizeOfBinBlock - SharedBufferByteBlocks.BLOCK_OVERHEAD_IN_BYTES*2 - RELATIVE_POINTER_PAYLOAD;
+    }
+
+    private void clearBins() {
+        for (int i=0; i<numberOfBins*numberOfSubBins; i++) {
+            blockBuffer.putInt(binBlockPointer, i*Integer.BYTES, INT_VALUE_FOR_NULL);
+        }
+        binBitmap = 0;
+        Arrays.fill(subBinBitmaps, 0);
+        numberOfBlocksInBins = 0;
+        totalSizeOfBlocksInBins = 0;
+    }
+
+    /**
+     * Restores the state of a manager whose bin block is known to be consistent,
+     * only the lists of free blocks are walked.
+     */
+    protected void restoreBins(final int numberOfAllocatedBlocks, final int totalSizeOfAllocatedBlocks) {
+        binBitmap = 0;
+        Arrays.fill(subBinBitmaps, 0);
+        numberOfBlocksInBins = 0;
+        totalSizeOfBlocksInBins = 0;
+        for (int bi = 0; bi < numberOfBins; bi++) {
+            for (int sbi = 0; sbi < numberOfSubBins; sbi++) {
+                int p = blockBuffer.getInt(binBlockPointer, binPosition(bi, sbi));
+                if (p != INT_VALUE_FOR_NULL) {
+                    binBitmap |= 1 << bi;
+                    subBinBitmaps[bi] |= 1 << sbi;
+                }
+                while (p != INT_VALUE_FOR_NULL) {
+                    numberOfBlocksInBins++;
+                    totalSizeOfBlocksInBins += blockBuffer.getBlockSize(p);
+                    p = blockBuffer.getInt(p, RELATIVE_POINTER_NEXT);
+                }
+            }
+        }
+
+        this.numberOfAllocatedBlocks = numberOfAllocatedBlocks;
+        this.totalSizeOfAllocatedBlocks = totalSizeOfAllocatedBlocks;
+        blockBuffer.setNumberOfBlocks(numberOfBlocksInBins + numberOfAllocatedBlocks + 1);
+    }
+
+    /**
+     * Rebuilds the bins by walking all blocks, for a buffer where an operation may have been
+     * interrupted. Only occupied blocks are kept, every other block is merged with adjacent
+     * free blocks and attached to the bins. A block whose size header and footer do not match
+     * is torn, its space up to the next intact block is turned into a free block.
+     */
+    protected void rebuildBins() {
+        clearBins();
+        numberOfAllocatedBlocks = 0;
+        totalSizeOfAllocatedBlocks = 0;
+
+        int numberOfBlocks = 1;
+        int p = blockBuffer.nextBlock(binBlockPointer);
+        while (p != INT_VALUE_FOR_NULL) {
+            repairTornBlock(p);
+            int next = blockBuffer.nextBlock(p);
+            if (blockBuffer.getByte(p, RELATIVE_POINTER_STATUS) == BYTE_STATUS_OCCUPIED) {
+                numberOfAllocatedBlocks++;
+                totalSizeOfAllocatedBlocks += blockBuffer.getBlockSize(p);
+            } else {
+                // Merge free blocks left behind by an interrupted deallocation
+                while (next != INT_VALUE_FOR_NULL && (repairTornBlock(next) ||
+                        blockBuffer.getByte(next, RELATIVE_POINTER_STATUS) != BYTE_STATUS_OCCUPIED)) {
+                    blockBuffer.mergeBlocks(p, next);
+                    next = blockBuffer.nextBlock(p);
+                }
+                attachBlockToBins(p);
+            }
+            numberOfBlocks++;
+            p = next;
+        }
+
+        blockBuffer.setNumberOfBlocks(numberOfBlocks);
+    }
+
+    private boolean repairTornBlock(int pointer) {
+        if (blockBuffer.isCorrectBlock(pointer)) {
+            return false;
+        }
+        logger.warning("Block " + pointer + " is torn and is turned into a free block");
+        blockBuffer.repairBlock(pointer);
+        blockBuffer.putByte(pointer, RELATIVE_POINTER_STATUS, BYTE_STATUS_FREE);
+        return true;
+    }
+
+    /**
+     * Returns the first block after the bin block.
+     */
+    public int firstBlock() {
+        return blockBuffer.nextBlock(binBlockPointer);
+    }
+
+    public int nextBlock(int blockPointer) {
+        return blockBuffer.nextBlock(blockPointer);
+    }
+
+    /**
+     * Returns the block before a block, or INT_VALUE_FOR_NULL if it is the first block.
+     */
+    public int previousBlock(int blockPointer) {
+        int blockPointerPrevious = blockBuffer.previousBlock(blockPointer);
+        return blockPointerPrevious == binBlockPointer ? INT_VALUE_FOR_NULL : blockPointerPrevious;
+    }
+
+    public boolean isFreeBlock(int blockPointer) {
+        return blockBuffer.getByte(blockPointer, RELATIVE_POINTER_STATUS) == BYTE_STATUS_FREE;
+    }
+
+    /**
+     * Moves the allocated block that follows a free block to the start of the free block,
+     * the free space ends up after the moved block and is merged with a following free block.
+     * The moved block gets the pointer of the free block, the pointer of the free block
+     * after the moved block is returned.
+     */
+    public int moveBlockIntoFreeBlock(int freePointer) {
+        int blockPointer = blockBuffer.nextBlock(freePointer);
+        if (!isFreeBlock(freePointer) || blockPointer == INT_VALUE_FOR_NULL || isFreeBlock(blockPointer)) {
+            throw new IllegalArgumentException("An allocated block must follow free block " + freePointer);
+        }
+
+        detachBlockFromBins(freePointer);
+        int movedFreePointer = blockBuffer.swapBlocks(freePointer, blockPointer);
+
+        int blockPointerNext = blockBuffer.nextBlock(movedFreePointer);
+        if (blockPointerNext != INT_VALUE_FOR_NULL && isFreeBlock(blockPointerNext)) {
+            detachBlockFromBins(blockPointerNext);
+            blockBuffer.mergeBlocks(movedFreePointer, blockPointerNext);
+        }
+        attachBlockToBins(movedFreePointer);
+
+        return movedFreePointer;
+    }
+
+    protected int getNumberOfAllocatedBlocks() {
+        return numberOfAllocatedBlocks;
+    }
+
+    protected int getTotalSizeOfAllocatedBlocks() {
+        return totalSizeOfAllocatedBlocks;
+    }
+
     public String getDetailsAsString() {
         // Print manager details
         StringBuilder sb = new StringBuilder("BBB manager details \n");
         sb.append("Total capacity: " + blockBuffer.getCapacity() + "\n");
         sb.append("Number of bins: " + numberOfBins + "\n");
+        sb.append("Number of sub-bins per bin: " + numberOfSubBins + "\n");
         sb.append("Bin-block pointer: " + binBlockPointer + "\n");
         sb.append("# allocated blocks: " + numberOfAllocatedBlocks + "\n");
         sb.append("Total allocated size: " + totalSizeOfAllocatedBlocks + "\n");
@@ -107,29 +323,77 @@ public class SharedBufferByteBlockManager implements ByteBlockAllocator, ByteBlo
         return sb.toString();
     }
 
+    private static int sizeOfBlockNeeded(final int sizeOfPayload) {
+        // A block must be able to hold the bin list pointers when it is deallocated
+        return Math.max(sizeOfPayload + RELATIVE_POINTER_PAYLOAD, RELATIVE_POINTER_VOID_SPACE);
+    }
+
     @Override
     public int allocate(final int sizeOfPayload) {
+        int sizeOfBlockNeeded = sizeOfBlockNeeded(sizeOfPayload);
+
         // find smallest block that is big enough in the bin
-        int blockPointer = findLeastSizedBlockBins(sizeOfPayload + RELATIVE_POINTER_PAYLOAD);
+        int blockPointer = findLeastSizedBlockBins(sizeOfBlockNeeded);
         if (blockPointer != INT_VALUE_FOR_NULL) {
             detachBlockFromBins(blockPointer);
+            occupyBlock(blockPointer, sizeOfBlockNeeded);
+            return blockPointer;
+        } else {
+            return INT_VALUE_FOR_NULL;
+        }
+    }
 
-            // allocate memory from the block and return excessive memory to bins
-            int sizeOfBlock = blockBuffer.getBlockSize(blockPointer);
-            if ((sizeOfBlock-sizeOfPayload) > (RELATIVE_POINTER_VOID_SPACE + RELATIVE_POINTER_PAYLOAD + SMALLEST_BLOCK_SIZE)) {
-                sizeOfBlock = sizeOfPayload + RELATIVE_POINTER_PAYLOAD;
-                int excessiveBlockPointer = blockBuffer.splitBlock(blockPointer, sizeOfBlock);
-                attachBlockToBins(excessiveBlockPointer);
-            }
+    private void occupyBlock(int blockPointer, int sizeOfBlockNeeded) {
+        // allocate memory from the block and return excessive memory to bins
+        int sizeOfBlock = blockBuffer.getBlockSize(blockPointer);
+        if ((sizeOfBlock-sizeOfBlockNeeded) > (RELATIVE_POINTER_VOID_SPACE + SMALLEST_BLOCK_SIZE)) {
+            sizeOfBlock = sizeOfBlockNeeded;
+            int excessiveBlockPointer = blockBuffer.splitBlock(blockPointer, sizeOfBlock);
+            attachBlockToBins(excessiveBlockPointer);
+        }
+
+        numberOfAllocatedBlocks++;
+        totalSizeOfAllocatedBlocks += sizeOfBlock;
+
+        blockBuffer.putByte(blockPointer, RELATIVE_POINTER_STATUS, BYTE_STATUS_OCCUPIED);
+    }
+
+    /**
+     * Carves all blocks of the batch out of one free block that is big enough, so the bins
+     * are searched once. If there is no such block the blocks are allocated one by one.
+     */
+    @Override
+    public boolean allocateBatch(final int[] sizesOfPayload, final int[] blockPointers) {
+        if (sizesOfPayload.length == 0) {
+            return true;
+        }
+
+        long sizeOfBatch = (long) (sizesOfPayload.length - 1)*SharedBufferByteBlocks.BLOCK_OVERHEAD_IN_BYTES;
+        for (int sizeOfPayload : sizesOfPayload) {
+            sizeOfBatch += sizeOfBlockNeeded(sizeOfPayload);
+        }
+
+        int blockPointer = sizeOfBatch > blockBuffer.getCapacity() ? INT_VALUE_FOR_NULL : findLeastSizedBlockBins((int) sizeOfBatch);
+        if (blockPointer == INT_VALUE_FOR_NULL) {
+            return ByteBlockAllocator.super.allocateBatch(sizesOfPayload, blockPointers);
+        }
 
+        detachBlockFromBins(blockPointer);
+        int last = sizesOfPayload.length - 1;
+        for (int i = 0; i < last; i++) {
+            // The size is read before the pointer is written, the arrays may be the same
+            int sizeOfBlock = sizeOfBlockNeeded(sizesOfPayload[i]);
+            int nextBlockPointer = blockBuffer.splitBlock(blockPointer, sizeOfBlock);
             numberOfAllocatedBlocks++;
             totalSizeOfAllocatedBlocks += sizeOfBlock;
-
             blockBuffer.putByte(blockPointer, RELATIVE_POINTER_STATUS, BYTE_STATUS_OCCUPIED);
-            return blockPointer;
-        } else {
-            return INT_VALUE_FOR_NULL;
+            blockPointers[i] = blockPointer;
+            blockPointer = nextBlockPointer;
         }
+        occupyBlock(blockPointer, sizeOfBlockNeeded(sizesOfPayload[last]));
+        blockPointers[last] = blockPointer;
+
+        return true;
     }
 
     @Override
@@ -150,86 +414,135 @@ public class SharedBufferByteBlockManager implements ByteBlockAllocator, ByteBlo
         return pointer;
     }
 
+    @Override
+    public boolean allocateAndCloneBatch(final ByteBuffer[] buffers, final int[] blockPointers) {
+        for (int i = 0; i < buffers.length; i++) {
+            blockPointers[i] = buffers[i].limit();
+        }
+        if (!allocateBatch(blockPointers, blockPointers)) {
+            Arrays.fill(blockPointers, INT_VALUE_FOR_NULL);
+            return false;
+        }
+        for (int i = 0; i < buffers.length; i++) {
+            putByteBuffer(blockPointers[i], 0, buffers[i]);
+        }
+        return true;
+    }
+
     public void deallocate(int blockPointer) {
-        if (blockPointer == INT_VALUE_FOR_NULL) {
-            throw new RuntimeException("Block can not be deallocated: pointer " + blockPointer);
+        releaseBlock(blockPointer, BYTE_STATUS_OCCUPIED);
+        freeBlock(blockPointer);
+    }
+
+    /**
+     * Marks an allocated block as waiting to be deallocated, by deallocatePendingBatch. The block
+     * can then neither be read nor marked or deallocated again. Returns false if the block is not
+     * allocated.
+     */
+    public boolean markPendingDeallocation(int blockPointer) {
+        if (!hasStatus(blockPointer, BYTE_STATUS_OCCUPIED)) {
+            return false;
         }
+        blockBuffer.putByte(blockPointer, RELATIVE_POINTER_STATUS, BYTE_STATUS_PENDING_DEALLOCATION);
+        return true;
+    }
 
-        int sizeOfBlock = blockBuffer.getBlockSize(blockPointer);
-        byte status = blockBuffer.getByte(blockPointer, RELATIVE_POINTER_STATUS);
-        if (status == BYTE_STATUS_OCCUPIED) {
-            int blockPointerPrevious = blockBuffer.previousBlock(blockPointer);
-            if (blockPointerPrevious != binBlockPointer) {
-                byte statusPrevious = blockBuffer.getByte(blockPointerPrevious, RELATIVE_POINTER_STATUS);
-                if (statusPrevious == BYTE_STATUS_FREE) {
-                    detachBlockFromBins(blockPointerPrevious);
-                    blockBuffer.mergeBlocks(blockPointerPrevious, blockPointer);
-                    blockPointer = blockPointerPrevious;
-                }
-            }
+    public boolean isPendingDeallocation(int blockPointer) {
+        return hasStatus(blockPointer, BYTE_STATUS_PENDING_DEALLOCATION);
+    }
 
-            int blockPointerNext = blockBuffer.nextBlock(blockPointer);
-            if (blockPointerNext != INT_VALUE_FOR_NULL) {
-                byte statusNext = blockBuffer.getByte(blockPointerNext, RELATIVE_POINTER_STATUS);
-                if (statusNext == BYTE_STATUS_FREE) {
-                    detachBlockFromBins(blockPointerNext);
-                    blockBuffer.mergeBlocks(blockPointer, blockPointerNext);
-                }
-            }
+    /**
+     * Deallocates blocks that have been marked by markPendingDeallocation, as deallocateBatch.
+     */
+    public void deallocatePendingBatch(final int[] blockPointers) {
+        deallocateBatch(blockPointers, BYTE_STATUS_PENDING_DEALLOCATION);
+    }
 
-            blockBuffer.putByte(blockPointer, RELATIVE_POINTER_STATUS, BYTE_STATUS_FREE);
-            attachBlockToBins(blockPointer);
+    /**
+     * Sorts the pointers, so that a run of adjacent blocks is merged into one free block
+     * before it is merged with its free neighbours and attached to the bins. All pointers are
+     * checked before any block is changed, so a batch with a pointer that is not allocated, or
+     * is given twice, throws and leaves every block as it was.
+     */
+    @Override
+    public void deallocateBatch(final int[] blockPointers) {
+        deallocateBatch(blockPointers, BYTE_STATUS_OCCUPIED);
+    }
 
-            numberOfAllocatedBlocks--;
-            totalSizeOfAllocatedBlocks -= sizeOfBlock;
+    private void deallocateBatch(final int[] blockPointers, final byte status) {
+        Arrays.sort(blockPointers);
+        for (int i = 0; i < blockPointers.length; i++) {
+            if (!hasStatus(blockPointers[i], status) || (i > 0 && blockPointers[i] == blockPointers[i - 1])) {
+                throw new RuntimeException("Block can not be deallocated: pointer " + blockPointers[i]);
+            }
+        }
 
-        } else {
-            throw new RuntimeException("Block can not be deallocated: pointer " + blockPointer);
+        int i = 0;
+        while (i < blockPointers.length) {
+            int runPointer = blockPointers[i++];
+            releaseBlock(runPointer, status);
+            while (i < blockPointers.length && blockPointers[i] == blockBuffer.nextBlock(runPointer)) {
+                releaseBlock(blockPointers[i], status);
+                blockBuffer.mergeBlocks(runPointer, blockPointers[i++]);
+            }
+            freeBlock(runPointer);
         }
     }
 
-    private void attachBlockToBins(int attachPointer) {
-        int attachSize = blockBuffer.getBlockSize(attachPointer);
-        int binIndex = binIndexFromSize(attachSize);
-        int blockPointer = blockBuffer.getInt(binBlockPointer, binIndex*Integer.BYTES);
+    private void releaseBlock(int blockPointer, byte status) {
+        if (blockPointer == INT_VALUE_FOR_NULL ||
+                blockBuffer.getByte(blockPointer, RELATIVE_POINTER_STATUS) != status) {
+            throw new RuntimeException("Block can not be deallocated: pointer " + blockPointer);
+        }
 
-        int pointerPreviousBlock = INT_VALUE_FOR_NULL;
-        int pointerNextBlock = INT_VALUE_FOR_NULL;
+        // Mark the block as free at once, a pointer given twice is then caught
+        blockBuffer.putByte(blockPointer, RELATIVE_POINTER_STATUS, BYTE_STATUS_FREE);
+        numberOfAllocatedBlocks--;
+        totalSizeOfAllocatedBlocks -= blockBuffer.getBlockSize(blockPointer);
+    }
 
-        if (blockPointer == INT_VALUE_FOR_NULL) {
-            // Attach block to array of buckets
-            blockBuffer.putInt(binBlockPointer, binIndex*Integer.BYTES, attachPointer);
-        } else {
-            // Find place in block list
-            while (blockBuffer.getBlockSize(blockPointer) < attachSize &&
-                    blockPointer != INT_VALUE_FOR_NULL) {
-                blockPointer = blockBuffer.getInt(blockPointer, RELATIVE_POINTER_NEXT);
+    private void freeBlock(int blockPointer) {
+        int blockPointerPrevious = blockBuffer.previousBlock(blockPointer);
+        if (blockPointerPrevious != binBlockPointer) {
+            byte statusPrevious = blockBuffer.getByte(blockPointerPrevious, RELATIVE_POINTER_STATUS);
+            if (statusPrevious == BYTE_STATUS_FREE) {
+                detachBlockFromBins(blockPointerPrevious);
+                blockBuffer.mergeBlocks(blockPointerPrevious, blockPointer);
+                blockPointer = blockPointerPrevious;
             }
+        }
 
-            if (blockPointer == INT_VALUE_FOR_NULL) {
-                // Add block last in block list
-                pointerPreviousBlock = blockBuffer.getInt(blockPointer, RELATIVE_POINTER_PREVIOUS);
-                // Attach last block to empty block
-                blockBuffer.putInt(pointerPreviousBlock, RELATIVE_POINTER_NEXT, attachPointer);
-            } else {
-                // Attach block between blocks in list
-                pointerPreviousBlock = blockBuffer.getInt(blockPointer, RELATIVE_POINTER_PREVIOUS);
-                pointerNextBlock = blockBuffer.getInt(blockPointer, RELATIVE_POINTER_NEXT);
-
-                // Attach previous and next block to empty block
-                if (pointerPreviousBlock == INT_VALUE_FOR_NULL) {
-                    blockBuffer.putInt(binBlockPointer, binIndex*Integer.BYTES, attachPointer);
-                } else {
-                    blockBuffer.putInt(pointerPreviousBlock, RELATIVE_POINTER_NEXT, attachPointer);
-                }
-                if (pointerNextBlock != INT_VALUE_FOR_NULL) {
-                    blockBuffer.putInt(pointerNextBlock, RELATIVE_POINTER_PREVIOUS, attachPointer);
-                }
+        int blockPointerNext = blockBuffer.nextBlock(blockPointer);
+        if (blockPointerNext != INT_VALUE_FOR_NULL) {
+            byte statusNext = blockBuffer.getByte(blockPointerNext, RELATIVE_POINTER_STATUS);
+            if (statusNext == BYTE_STATUS_FREE) {
+                detachBlockFromBins(blockPointerNext);
+                blockBuffer.mergeBlocks(blockPointer, blockPointerNext);
             }
         }
 
-        // Set correct size and pointers into empty block
-        blockBuffer.putInt(attachPointer, RELATIVE_POINTER_PREVIOUS, pointerPreviousBlock);
+        attachBlockToBins(blockPointer);
+    }
+
+    private void attachBlockToBins(int attachPointer) {
+        int attachSize = blockBuffer.getBlockSize(attachPointer);
+        int binIndex = binIndexFromSize(attachSize);
+        int subBinIndex = subBinIndexFromSize(attachSize, binIndex);
+        int binPosition = binPosition(binIndex, subBinIndex);
+
+        // Attach block first in the list of the sub-bin
+        int pointerNextBlock = blockBuffer.getInt(binBlockPointer, binPosition);
+        if (pointerNextBlock != INT_VALUE_FOR_NULL) {
+            blockBuffer.putInt(pointerNextBlock, RELATIVE_POINTER_PREVIOUS, attachPointer);
+        }
+        blockBuffer.putInt(binBlockPointer, binPosition, attachPointer);
+        binBitmap |= 1 << binIndex;
+        subBinBitmaps[binIndex] |= 1 << subBinIndex;
+
+        // Set status and pointers into empty block, a block split off from an allocation
+        // may still hold old payload where the status is.
+        blockBuffer.putByte(attachPointer, RELATIVE_POINTER_STATUS, BYTE_STATUS_FREE);
+        blockBuffer.putInt(attachPointer, RELATIVE_POINTER_PREVIOUS, INT_VALUE_FOR_NULL);
         blockBuffer.putInt(attachPointer, RELATIVE_POINTER_NEXT, pointerNextBlock);
 
         numberOfBlocksInBins++;
@@ -240,6 +553,19 @@ public class SharedBufferByteBlockManager implements ByteBlockAllocator, ByteBlo
         return BitUtil.numberOfBitsNeeded(size) - 1;
     }
 
+    private int subBinIndexFromSize(int size, int binIndex) {
+        // The bits right after the most significant bit select the sub-bin
+        if (binIndex < subBinBits) {
+            return (size << (subBinBits - binIndex)) & (numberOfSubBins - 1);
+        } else {
+            return (size >>> (binIndex - subBinBits)) & (numberOfSubBins - 1);
+        }
+    }
+
+    private int binPosition(int binIndex, int subBinIndex) {
+        return (binIndex*numberOfSubBins + subBinIndex)*Integer.BYTES;
+    }
+
     private void detachBlockFromBins(int detachPointer) {
         int pointerPreviousBlock = blockBuffer.getInt(detachPointer, RELATIVE_POINTER_PREVIOUS);
         int pointerNextBlock = blockBuffer.getInt(detachPointer, RELATIVE_POINTER_NEXT);
@@ -247,9 +573,16 @@ public class SharedBufferByteBlockManager implements ByteBlockAllocator, ByteBlo
 
         // detach block from linked list
         if (pointerPreviousBlock == INT_VALUE_FOR_NULL) {
-            // find index of smallest possible bin
+            // block is first in its sub-bin
             int binIndex = binIndexFromSize(detachSize);
-            blockBuffer.putInt(binBlockPointer, binIndex*Integer.BYTES, pointerNextBlock);
+            int subBinIndex = subBinIndexFromSize(detachSize, binIndex);
+            blockBuffer.putInt(binBlockPointer, binPosition(binIndex, subBinIndex), pointerNextBlock);
+            if (pointerNextBlock == INT_VALUE_FOR_NULL) {
+                subBinBitmaps[binIndex] &= ~(1 << subBinIndex);
+                if (subBinBitmaps[binIndex] == 0) {
+                    binBitmap &= ~(1 << binIndex);
+                }
+            }
         } else {
             blockBuffer.putInt(pointerPreviousBlock, RELATIVE_POINTER_NEXT, pointerNextBlock);
         }
@@ -262,18 +595,44 @@ public class SharedBufferByteBlockManager implements ByteBlockAllocator, ByteBlo
     }
 
     private int findLeastSizedBlockBins(int requestedSize) {
-        // find index of smallest possible bin
         int binIndex = binIndexFromSize(requestedSize);
+        int subBinIndex = subBinIndexFromSize(requestedSize, binIndex);
 
-        // find smallest block that is big enough in the bin
-        int allocationPointer = INT_VALUE_FOR_NULL;
-        while (binIndex < numberOfBins && allocationPointer == INT_VALUE_FOR_NULL) {
-            allocationPointer = findLeastSizedBlockInBinList(blockBuffer.getInt(binBlockPointer, binIndex*Integer.BYTES), requestedSize);
-            binIndex++;
+        // Round size up to the next sub-bin, then every block in a non-empty sub-bin
+        // at or above it is big enough and the search is two bit scans.
+        int roundedSize = requestedSize;
+        if (binIndex > subBinBits) {
+            roundedSize += (1 << (binIndex - subBinBits)) - 1;
+        }
+        int roundedBinIndex = binIndexFromSize(roundedSize);
+        int allocationPointer = findFreeBlockInBins(roundedBinIndex, subBinIndexFromSize(roundedSize, roundedBinIndex));
+
+        if (allocationPointer == INT_VALUE_FOR_NULL) {
+            // No bigger sub-bin has a block, one of the blocks in the requested sub-bin may still fit
+            allocationPointer = findLeastSizedBlockInBinList(blockBuffer.getInt(binBlockPointer, binPosition(binIndex, subBinIndex)), requestedSize);
         }
         return allocationPointer;
     }
 
+    private int findFreeBlockInBins(int binIndex, int subBinIndex) {
+        if (binIndex >= numberOfBins) {
+            return INT_VALUE_FOR_NULL;
+        }
+
+        int subBinMap = subBinBitmaps[binIndex] & (-1 << subBinIndex);
+        if (subBinMap == 0) {
+            int binMap = binBitmap & (-1 << (binIndex + 1));
+            if (binMap == 0) {
+                return INT_VALUE_FOR_NULL;
+            }
+            binIndex = Integer.numberOfTrailingZeros(binMap);
+            subBinMap = subBinBitmaps[binIndex];
+        }
+        subBinIndex = Integer.numberOfTrailingZeros(subBinMap);
+
+        return blockBuffer.getInt(binBlockPointer, binPosition(binIndex, subBinIndex));
+    }
+
     private int findLeastSizedBlockInBinList(int pointer, int requestedSize) {
         boolean foundBlock = false;
         while (!foundBlock && pointer != INT_VALUE_FOR_NULL) {
@@ -293,17 +652,16 @@ public class SharedBufferByteBlockManager implements ByteBlockAllocator, ByteBlo
     public String memStructureToString() {
         StringBuilder sb = new StringBuilder();
 
-        int bi = 0;
-        while (bi < numberOfBins) {
-            sb.append("bin[" + bi + "] : ");
-            int p = blockBuffer.getInt(binBlockPointer, bi*Integer.BYTES);
-            while (p != INT_VALUE_FOR_NULL) {
-                sb.append("{p=").append(p).append(" as=").append(blockBuffer.getBlockSize(p) - RELATIVE_POINTER_PAYLOAD).append(" bs=").append(blockBuffer.getBlockSize(p)).append("}");
-                p = blockBuffer.getInt(p, RELATIVE_POINTER_NEXT);
-
+        for (int bi = 0; bi < numberOfBins; bi++) {
+            for (int sbi = 0; sbi < numberOfSubBins; sbi++) {
+                sb.append("bin[" + bi + "][" + sbi + "] : ");
+                int p = blockBuffer.getInt(binBlockPointer, binPosition(bi, sbi));
+                while (p != INT_VALUE_FOR_NULL) {
+                    sb.append("{p=").append(p).append(" as=").append(blockBuffer.getBlockSize(p) - RELATIVE_POINTER_PAYLOAD).append(" bs=").append(blockBuffer.getBlockSize(p)).append("}");
+                    p = blockBuffer.getInt(p, RELATIVE_POINTER_NEXT);
+                }
+                sb.append("\n");
             }
-            sb.append("\n");
-            bi++;
         }
 
         sb.append(blockBuffer.blockStructureToString());
@@ -317,21 +675,40 @@ public class SharedBufferByteBlockManager implements ByteBlockAllocator, ByteBlo
         if (correct) {
             int vNum = 0;
             int vSize = 0;
-            int bi = 0;
-            while (bi < numberOfBins) {
-                int p = blockBuffer.getInt(binBlockPointer, bi*Integer.BYTES);
-                while (p != INT_VALUE_FOR_NULL) {
-                    vNum++;
-                    vSize += blockBuffer.getBlockSize(p);
-                    p = blockBuffer.getInt(p, RELATIVE_POINTER_NEXT);
-
+            for (int bi = 0; bi < numberOfBins && correct; bi++) {
+                for (int sbi = 0; sbi < numberOfSubBins && correct; sbi++) {
+                    int p = blockBuffer.getInt(binBlockPointer, binPosition(bi, sbi));
+                    boolean subBinMarked = (subBinBitmaps[bi] & (1 << sbi)) != 0;
+                    if (subBinMarked != (p != INT_VALUE_FOR_NULL)) {
+                        logger.severe("Bitmap of bin " + bi + " and sub-bin " + sbi + " does not match its list of blocks");
+                        correct = false;
+                    }
+                    int previous = INT_VALUE_FOR_NULL;
+                    while (correct && p != INT_VALUE_FOR_NULL) {
+                        int size = blockBuffer.getBlockSize(p);
+                        if (binIndexFromSize(size) != bi || subBinIndexFromSize(size, bi) != sbi ||
+                                blockBuffer.getByte(p, RELATIVE_POINTER_STATUS) != BYTE_STATUS_FREE ||
+                                blockBuffer.getInt(p, RELATIVE_POINTER_PREVIOUS) != previous) {
+                            logger.severe("Block " + p + " of size " + size + " is not correctly placed in bin " + bi + " and sub-bin " + sbi);
+                            correct = false;
+                        }
+                        vNum++;
+                        vSize += size;
+                        previous = p;
+                        p = blockBuffer.getInt(p, RELATIVE_POINTER_NEXT);
+                    }
+                }
+                if (correct && ((binBitmap & (1 << bi)) != 0) != (subBinBitmaps[bi] != 0)) {
+                    logger.severe("Bitmap of bin " + bi + " does not match its sub-bins");
+                    correct = false;
                 }
-                bi++;
             }
 
             int totalAmountOfBlockBufferOverhead = blockBuffer.getNumberOfBlocks() * blockBuffer.BLOCK_OVERHEAD_IN_BYTES;
 
-            if (numberOfBlocksInBins != vNum) {
+            if (!correct) {
+                // Reason has already been logged
+            } else if (numberOfBlocksInBins != vNum) {
                 logger.severe("Blocks have been lost from bins, expected " + numberOfBlocksInBins + " but found " + vNum + " number of blocks");
                 correct = false;
             } else if (totalSizeOfBlocksInBins != vSize) {
@@ -458,6 +835,60 @@ public class SharedBufferByteBlockManager implements ByteBlockAllocator, ByteBlo
         }
     }
 
+    /**
+     * Chooses between read pointers that check the bounds of the block on every read, the default,
+     * and read pointers that read blocks at their memory address without checks. Unchecked read
+     * pointers must not be used after their block has been deallocated.
+     */
+    public void setCheckedReadPointers(boolean checkedReadPointers) {
+        this.checkedReadPointers = checkedReadPointers;
+    }
+
+    public boolean isCheckedReadPointers() {
+        return checkedReadPointers || bufferAddress == -1;
+    }
+
+    /**
+     * Returns a read pointer to an allocated block, the block is validated here. If unchecked read
+     * pointers have been chosen, the block is then read at its memory address without further checks.
+     */
+    @Override
+    public ByteBlockReadPointer getBlock(int blockPointer) {
+        if (!isAllocated(blockPointer)) {
+            throw new IllegalArgumentException("Pointer is not an allocated block: pointer " + blockPointer);
+        }
+        if (isCheckedReadPointers()) {
+            return new SharedBufferByteBlockReadPointer(this, blockPointer);
+        }
+        return new UnsafeByteBlockReadPointer(blockBuffer.getBuffer(), bufferAddress + blockPointer + RELATIVE_POINTER_PAYLOAD, allocatedSize(blockPointer));
+    }
+
+    @Override
+    public boolean supportsWritableBlocks() {
+        return true;
+    }
+
+    @Override
+    public ByteBuffer getWritableBlock(int blockPointer) {
+        if (!isAllocated(blockPointer)) {
+            throw new IllegalArgumentException("Pointer is not an allocated block: pointer " + blockPointer);
+        }
+        return blockBuffer.slice(blockPointer, RELATIVE_POINTER_PAYLOAD, allocatedSize(blockPointer));
+    }
+
+    /**
+     * Checks that the pointer is the start of a block that is currently allocated.
+     */
+    public boolean isAllocated(int blockPointer) {
+        return hasStatus(blockPointer, BYTE_STATUS_OCCUPIED);
+    }
+
+    private boolean hasStatus(int blockPointer, byte status) {
+        return blockPointer > binBlockPointer && blockPointer < blockBuffer.getCapacity() &&
+                blockBuffer.isCorrectBlock(blockPointer) &&
+                blockBuffer.getByte(blockPointer, RELATIVE_POINTER_STATUS) == status;
+    }
+
     @Override
     public int allocatedSize(int blockPointer) {
         return blockBuffer.getBlockSize(blockPointer) - RELATIVE_POINTER_PAYLOAD;
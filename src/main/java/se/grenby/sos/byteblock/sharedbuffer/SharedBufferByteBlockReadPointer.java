@@ -23,9 +23,12 @@
  */
 package se.grenby.sos.byteblock.sharedbuffer;
 
+import se.grenby.sos.byteblock.ByteBlockAllocator;
 import se.grenby.sos.byteblock.ByteBlockReadPointer;
 import se.grenby.sos.byteblock.ByteBlockReader;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by peteri on 5/31/16.
  */
@@ -78,4 +81,15 @@ public class SharedBufferByteBlockReadPointer implements ByteBlockReadPointer {
     public int getAllocatedSize() {
         return blockReader.allocatedSize(blockPointer);
     }
+
+    @Override
+    public ByteBuffer getReadOnlyBuffer(int position, int length) {
+        if (blockReader instanceof ByteBlockAllocator && ((ByteBlockAllocator) blockReader).supportsWritableBlocks()) {
+            ByteBuffer buffer = ((ByteBlockAllocator) blockReader).getWritableBlock(blockPointer);
+            buffer.limit(position + length);
+            buffer.position(position);
+            return buffer.slice().asReadOnlyBuffer();
+        }
+        return ByteBlockReadPointer.super.getReadOnlyBuffer(position, length);
+    }
 }
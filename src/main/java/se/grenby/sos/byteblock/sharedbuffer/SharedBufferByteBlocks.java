@@ -42,6 +42,27 @@ public class SharedBufferByteBlocks {
     private int numberOfBlocks;
 
     public SharedBufferByteBlocks(final int capacity) {
+        this(ByteBuffer.allocateDirect(checkCapacity(capacity)), true);
+    }
+
+    /**
+     * Creates blocks in a supplied buffer, for example a buffer mapped from a file.
+     * When initialize is false the buffer already holds blocks and the number of blocks
+     * has to be set by the owner once it is known.
+     */
+    public SharedBufferByteBlocks(final ByteBuffer buffer, final boolean initialize) {
+        bufferCapacity = checkCapacity(buffer.capacity());
+        this.buffer = buffer;
+        firstBlockPointer = BLOCK_SIZE_IN_BYTES;
+        if (initialize) {
+            putSizeInBlock(firstBlockPointer, bufferCapacity - BLOCK_SIZE_IN_BYTES*2);
+            numberOfBlocks = 1;
+        } else {
+            numberOfBlocks = 0;
+        }
+    }
+
+    private static int checkCapacity(final int capacity) {
         if (capacity < 0) {
             throw new IllegalArgumentException("Requested capacity can not be a negativ value");
         }
@@ -50,11 +71,11 @@ public class SharedBufferByteBlocks {
             throw new IllegalArgumentException("Requested capacity can not be greater than 2 to the power of 30");
         }
 
-        bufferCapacity = capacity;
-        buffer = ByteBuffer.allocateDirect(capacity);
-        firstBlockPointer = BLOCK_SIZE_IN_BYTES;
-        putSizeInBlock(firstBlockPointer, capacity - BLOCK_SIZE_IN_BYTES*2);
-        numberOfBlocks = 1;
+        return capacity;
+    }
+
+    ByteBuffer getBuffer() {
+        return buffer;
     }
 
     public int getCapacity() {
@@ -145,6 +166,35 @@ public class SharedBufferByteBlocks {
         return pointer1;
     }
 
+    /**
+     * Swaps the order of two adjacent blocks by moving the second block to the start of
+     * the first block. The content of the second block is kept and the content of the
+     * first block is lost. Returns the new pointer of the first block.
+     */
+    public int swapBlocks(int pointer1, int pointer2) {
+        if (nextBlock(pointer1) != pointer2) {
+            throw new IllegalArgumentException("Blocks should be adjacent and in ascending order");
+        }
+
+        int size1 = getBlockSize(pointer1);
+        int size2 = getBlockSize(pointer2);
+
+        // Copy forward, the destination is before the source so the overlap is never overwritten before it is read
+        int p = 0;
+        for (; p + Long.BYTES <= size2; p += Long.BYTES) {
+            buffer.putLong(pointer1 + p, buffer.getLong(pointer2 + p));
+        }
+        for (; p < size2; p++) {
+            buffer.put(pointer1 + p, buffer.get(pointer2 + p));
+        }
+
+        putSizeInBlock(pointer1, size2);
+        int newPointer1 = pointer1 + size2 + BLOCK_SIZE_IN_BYTES*2;
+        putSizeInBlock(newPointer1, size1);
+
+        return newPointer1;
+    }
+
     private boolean isAscendingPointers(int pointer1, int pointer2) {
         if (pointer1 < pointer2) {
             return true;
@@ -166,17 +216,39 @@ public class SharedBufferByteBlocks {
         }
     }
 
-    private boolean isCorrectBlock(int pointer) {
+    boolean isCorrectBlock(int pointer) {
         int sizeStart = getBlockSize(pointer);
+        if (sizeStart < 0 || pointer + sizeStart > bufferCapacity - BLOCK_SIZE_IN_BYTES) {
+            return false;
+        }
         int sizeEnd = buffer.getInt(pointer + sizeStart);
-        if (pointer + sizeStart < bufferCapacity &&
-                sizeStart == sizeEnd) {
+        if (sizeStart == sizeEnd) {
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * Replaces a block whose size header and footer do not match, for example after a split
+     * or merge that was interrupted, with one block covering the space up to the first block
+     * that can be found by walking the footers back from the end of the buffer.
+     */
+    void repairBlock(int pointer) {
+        int endPointer = bufferCapacity + BLOCK_SIZE_IN_BYTES;
+        while (endPointer - BLOCK_SIZE_IN_BYTES*2 > pointer) {
+            int previousSize = buffer.getInt(endPointer - BLOCK_SIZE_IN_BYTES*2);
+            int previousPointer = endPointer - previousSize - BLOCK_SIZE_IN_BYTES*2;
+            if (previousSize < 0 || previousPointer - BLOCK_SIZE_IN_BYTES*2 < pointer ||
+                    getBlockSize(previousPointer) != previousSize) {
+                break;
+            }
+            endPointer = previousPointer;
+        }
+
+        putSizeInBlock(pointer, endPointer - pointer - BLOCK_SIZE_IN_BYTES*2);
+    }
+
     public boolean verfiyIntegrity() {
         boolean correct = true;
 
@@ -201,6 +273,10 @@ public class SharedBufferByteBlocks {
         return numberOfBlocks;
     }
 
+    void setNumberOfBlocks(int numberOfBlocks) {
+        this.numberOfBlocks = numberOfBlocks;
+    }
+
     public String blockStructureToString() {
         int p = firstBlockPointer;
         int i = 0;
@@ -231,14 +307,25 @@ public class SharedBufferByteBlocks {
     }
 
     public void putBuffer(int blockPointer, int position, ByteBuffer src) {
-        buffer.position(blockPointer + position);
-        buffer.put(src);
+        // Use a duplicate so the position of the shared buffer is never touched,
+        // blocks may be written and read from several threads at the same time.
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(blockPointer + position);
+        dst.put(src);
+    }
+
+    ByteBuffer slice(int blockPointer, int position, int length) {
+        ByteBuffer dst = buffer.duplicate();
+        dst.limit(blockPointer + position + length);
+        dst.position(blockPointer + position);
+        return dst.slice();
     }
 
     public byte[] getBytes(int blockPointer, int position, int length) {
         byte[] bs = new byte[length];
-        buffer.position(blockPointer + position);
-        buffer.get(bs, 0, length);
+        ByteBuffer src = buffer.duplicate();
+        src.position(blockPointer + position);
+        src.get(bs, 0, length);
         return bs;
     }
 
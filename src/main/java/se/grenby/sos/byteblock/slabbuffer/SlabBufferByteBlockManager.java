@@ -0,0 +1,375 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.slabbuffer;
+
+import se.grenby.sos.byteblock.ByteBlockAllocator;
+import se.grenby.sos.byteblock.ByteBlockReader;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static se.grenby.sos.constant.PrimitiveConstants.INT_VALUE_FOR_NULL;
+
+/**
+ * Block manager with a slab layer in front of a shared buffer manager. Small allocations
+ * are served from slabs, large blocks of the shared buffer that are split into slots of
+ * one size class (32, 64, 128 or 256 bytes). Every slab has a bitmap of its free slots and
+ * every size class a list of slabs with free slots, so a slot is allocated and deallocated
+ * in constant time and without any block overhead. Larger allocations are passed on to the
+ * shared buffer manager.
+ *
+ * A slot pointer has the slab flag set, the slab index in the middle bits and the slot
+ * index in the low bits. Pointers of the shared buffer manager never have the flag set,
+ * since its capacity is at most 2 to the power of 30.
+ */
+public class SlabBufferByteBlockManager implements ByteBlockAllocator, ByteBlockReader {
+
+    private final static int SMALLEST_SIZE_CLASS_BITS = 5;
+    private final static int NUMBER_OF_SIZE_CLASSES = 4;
+    public final static int LARGEST_SLOT_SIZE = 1 << (SMALLEST_SIZE_CLASS_BITS + NUMBER_OF_SIZE_CLASSES - 1);
+
+    // One long bitmap of free slots per slab
+    private final static int SLOT_INDEX_BITS = 6;
+    private final static int SLOTS_PER_SLAB = 1 << SLOT_INDEX_BITS;
+    private final static int SLOT_INDEX_MASK = SLOTS_PER_SLAB - 1;
+    private final static long ALL_SLOTS_FREE = -1L;
+
+    private final static int SLAB_POINTER_FLAG = 1 << 30;
+    private final static int SLAB_INDEX_MASK = (SLAB_POINTER_FLAG >>> SLOT_INDEX_BITS) - 1;
+
+    private final static int INITIAL_NUMBER_OF_SLABS = 16;
+
+    private final SharedBufferByteBlockManager blockManager;
+
+    // Per slab: block pointer in the shared buffer, size class, bitmap of free slots and partial list links
+    private int[] slabPointers = new int[INITIAL_NUMBER_OF_SLABS];
+    private byte[] slabSizeClasses = new byte[INITIAL_NUMBER_OF_SLABS];
+    private long[] slabFreeSlots = new long[INITIAL_NUMBER_OF_SLABS];
+    private int[] nextPartialSlabs = new int[INITIAL_NUMBER_OF_SLABS];
+    private int[] previousPartialSlabs = new int[INITIAL_NUMBER_OF_SLABS];
+    private int numberOfSlabIndices = 0;
+    private int[] freeSlabIndices = new int[INITIAL_NUMBER_OF_SLABS];
+    private int numberOfFreeSlabIndices = 0;
+
+    // First slab with free slots of every size class
+    private final int[] partialSlabs = new int[NUMBER_OF_SIZE_CLASSES];
+
+    private int numberOfAllocatedSlots = 0;
+
+    public SlabBufferByteBlockManager(final int capacity) {
+        blockManager = new SharedBufferByteBlockManager(capacity);
+        Arrays.fill(partialSlabs, INT_VALUE_FOR_NULL);
+    }
+
+    private static int sizeClass(int sizeOfPayload) {
+        return Math.max(0, Integer.SIZE - Integer.numberOfLeadingZeros(Math.max(sizeOfPayload, 1) - 1) - SMALLEST_SIZE_CLASS_BITS);
+    }
+
+    private static int slotSize(int sizeClass) {
+        return 1 << (sizeClass + SMALLEST_SIZE_CLASS_BITS);
+    }
+
+    private static boolean isSlotPointer(int pointer) {
+        return (pointer & SLAB_POINTER_FLAG) != 0;
+    }
+
+    private static int slabIndex(int slotPointer) {
+        return (slotPointer >>> SLOT_INDEX_BITS) & SLAB_INDEX_MASK;
+    }
+
+    private static int slotIndex(int slotPointer) {
+        return slotPointer & SLOT_INDEX_MASK;
+    }
+
+    @Override
+    public int allocate(final int sizeOfPayload) {
+        if (sizeOfPayload > LARGEST_SLOT_SIZE) {
+            return blockManager.allocate(sizeOfPayload);
+        }
+
+        int sizeClass = sizeClass(sizeOfPayload);
+        int slab = partialSlabs[sizeClass];
+        if (slab == INT_VALUE_FOR_NULL) {
+            slab = addSlab(sizeClass);
+            if (slab == INT_VALUE_FOR_NULL) {
+                return INT_VALUE_FOR_NULL;
+            }
+        }
+
+        int slot = Long.numberOfTrailingZeros(slabFreeSlots[slab]);
+        slabFreeSlots[slab] &= ~(1L << slot);
+        if (slabFreeSlots[slab] == 0) {
+            removePartialSlab(slab);
+        }
+
+        numberOfAllocatedSlots++;
+        return SLAB_POINTER_FLAG | (slab << SLOT_INDEX_BITS) | slot;
+    }
+
+    @Override
+    public int allocateAndClear(final int sizeOfPayload) {
+        if (sizeOfPayload > LARGEST_SLOT_SIZE) {
+            return blockManager.allocateAndClear(sizeOfPayload);
+        }
+
+        int pointer = allocate(sizeOfPayload);
+        if (pointer != INT_VALUE_FOR_NULL) {
+            int slab = slabIndex(pointer);
+            int slotSize = slotSize(slabSizeClasses[slab]);
+            int slotPosition = slotIndex(pointer)*slotSize;
+            for (int p = 0; p < slotSize; p += Long.BYTES) {
+                blockManager.putLong(slabPointers[slab], slotPosition + p, 0L);
+            }
+        }
+        return pointer;
+    }
+
+    @Override
+    public int allocateAndClone(final ByteBuffer buffer) {
+        int pointer = allocate(buffer.limit());
+        if (pointer != INT_VALUE_FOR_NULL) {
+            if (isSlotPointer(pointer)) {
+                int slab = slabIndex(pointer);
+                blockManager.putByteBuffer(slabPointers[slab], slotIndex(pointer)*slotSize(slabSizeClasses[slab]), buffer);
+            } else {
+                blockManager.putByteBuffer(pointer, 0, buffer);
+            }
+        }
+        return pointer;
+    }
+
+    @Override
+    public void deallocate(int blockPointer) {
+        if (blockPointer == INT_VALUE_FOR_NULL) {
+            throw new RuntimeException("Block can not be deallocated: pointer " + blockPointer);
+        }
+
+        if (!isSlotPointer(blockPointer)) {
+            blockManager.deallocate(blockPointer);
+            return;
+        }
+
+        int slab = slabIndex(blockPointer);
+        long slotBit = 1L << slotIndex(blockPointer);
+        if (slab >= numberOfSlabIndices || slabPointers[slab] == INT_VALUE_FOR_NULL || (slabFreeSlots[slab] & slotBit) != 0) {
+            throw new RuntimeException("Block can not be deallocated: pointer " + blockPointer);
+        }
+
+        if (slabFreeSlots[slab] == 0) {
+            addPartialSlab(slab);
+        }
+        slabFreeSlots[slab] |= slotBit;
+        numberOfAllocatedSlots--;
+
+        // An empty slab is returned to the shared buffer, unless it is the only slab of its size class with free slots
+        int sizeClass = slabSizeClasses[slab];
+        if (slabFreeSlots[slab] == ALL_SLOTS_FREE &&
+                (partialSlabs[sizeClass] != slab || nextPartialSlabs[slab] != INT_VALUE_FOR_NULL)) {
+            removeSlab(slab);
+        }
+    }
+
+    private int addSlab(int sizeClass) {
+        int slabPointer = blockManager.allocate(slotSize(sizeClass)*SLOTS_PER_SLAB);
+        if (slabPointer == INT_VALUE_FOR_NULL) {
+            return INT_VALUE_FOR_NULL;
+        }
+
+        int slab;
+        if (numberOfFreeSlabIndices > 0) {
+            slab = freeSlabIndices[--numberOfFreeSlabIndices];
+        } else {
+            if (numberOfSlabIndices > SLAB_INDEX_MASK) {
+                blockManager.deallocate(slabPointer);
+                return INT_VALUE_FOR_NULL;
+            }
+            if (numberOfSlabIndices == slabPointers.length) {
+                int length = numberOfSlabIndices*2;
+                slabPointers = Arrays.copyOf(slabPointers, length);
+                slabSizeClasses = Arrays.copyOf(slabSizeClasses, length);
+                slabFreeSlots = Arrays.copyOf(slabFreeSlots, length);
+                nextPartialSlabs = Arrays.copyOf(nextPartialSlabs, length);
+                previousPartialSlabs = Arrays.copyOf(previousPartialSlabs, length);
+            }
+            slab = numberOfSlabIndices++;
+        }
+
+        slabPointers[slab] = slabPointer;
+        slabSizeClasses[slab] = (byte) sizeClass;
+        slabFreeSlots[slab] = ALL_SLOTS_FREE;
+        addPartialSlab(slab);
+        return slab;
+    }
+
+    private void removeSlab(int slab) {
+        removePartialSlab(slab);
+        blockManager.deallocate(slabPointers[slab]);
+        slabPointers[slab] = INT_VALUE_FOR_NULL;
+
+        if (numberOfFreeSlabIndices == freeSlabIndices.length) {
+            freeSlabIndices = Arrays.copyOf(freeSlabIndices, numberOfFreeSlabIndices*2);
+        }
+        freeSlabIndices[numberOfFreeSlabIndices++] = slab;
+    }
+
+    private void addPartialSlab(int slab) {
+        int sizeClass = slabSizeClasses[slab];
+        int next = partialSlabs[sizeClass];
+        if (next != INT_VALUE_FOR_NULL) {
+            previousPartialSlabs[next] = slab;
+        }
+        nextPartialSlabs[slab] = next;
+        previousPartialSlabs[slab] = INT_VALUE_FOR_NULL;
+        partialSlabs[sizeClass] = slab;
+    }
+
+    private void removePartialSlab(int slab) {
+        int next = nextPartialSlabs[slab];
+        int previous = previousPartialSlabs[slab];
+        if (previous == INT_VALUE_FOR_NULL) {
+            partialSlabs[slabSizeClasses[slab]] = next;
+        } else {
+            nextPartialSlabs[previous] = next;
+        }
+        if (next != INT_VALUE_FOR_NULL) {
+            previousPartialSlabs[next] = previous;
+        }
+    }
+
+    public int getNumberOfSlabs() {
+        return numberOfSlabIndices - numberOfFreeSlabIndices;
+    }
+
+    public int getTotalAvailableSpace() {
+        return blockManager.getTotalAvailableSpace();
+    }
+
+    public boolean verfiyIntegrity() {
+        boolean correct = blockManager.verfiyIntegrity();
+
+        int slots = 0;
+        int partial = 0;
+        for (int slab = 0; slab < numberOfSlabIndices; slab++) {
+            if (slabPointers[slab] != INT_VALUE_FOR_NULL) {
+                slots += Long.bitCount(~slabFreeSlots[slab]);
+                if (slabFreeSlots[slab] != 0) {
+                    partial++;
+                }
+            }
+        }
+        for (int sizeClass = 0; sizeClass < NUMBER_OF_SIZE_CLASSES; sizeClass++) {
+            int previous = INT_VALUE_FOR_NULL;
+            for (int slab = partialSlabs[sizeClass]; slab != INT_VALUE_FOR_NULL && correct; slab = nextPartialSlabs[slab]) {
+                if (slabSizeClasses[slab] != sizeClass || slabFreeSlots[slab] == 0 || previousPartialSlabs[slab] != previous) {
+                    correct = false;
+                }
+                previous = slab;
+                partial--;
+            }
+        }
+
+        return correct && partial == 0 && slots == numberOfAllocatedSlots;
+    }
+
+    public String getDetailsAsString() {
+        StringBuilder sb = new StringBuilder("Slab manager details \n");
+        sb.append("Number of slabs: " + getNumberOfSlabs() + "\n");
+        sb.append("# allocated slots: " + numberOfAllocatedSlots + "\n");
+        sb.append(blockManager.getDetailsAsString());
+        return sb.toString();
+    }
+
+    private int slotPosition(int slotPointer, int position, int numberOfBytes) {
+        int slotSize = slotSize(slabSizeClasses[slabIndex(slotPointer)]);
+        if (position < 0 || position + numberOfBytes > slotSize) {
+            throw new IndexOutOfBoundsException();
+        }
+        return slotIndex(slotPointer)*slotSize + position;
+    }
+
+    @Override
+    public byte[] getBytes(int blockPointer, int position, int length) {
+        if (isSlotPointer(blockPointer)) {
+            return blockManager.getBytes(slabPointers[slabIndex(blockPointer)], slotPosition(blockPointer, position, length), length);
+        }
+        return blockManager.getBytes(blockPointer, position, length);
+    }
+
+    @Override
+    public byte getByte(int blockPointer, int position) {
+        if (isSlotPointer(blockPointer)) {
+            return blockManager.getByte(slabPointers[slabIndex(blockPointer)], slotPosition(blockPointer, position, Byte.BYTES));
+        }
+        return blockManager.getByte(blockPointer, position);
+    }
+
+    @Override
+    public short getShort(int blockPointer, int position) {
+        if (isSlotPointer(blockPointer)) {
+            return blockManager.getShort(slabPointers[slabIndex(blockPointer)], slotPosition(blockPointer, position, Short.BYTES));
+        }
+        return blockManager.getShort(blockPointer, position);
+    }
+
+    @Override
+    public int getInt(int blockPointer, int position) {
+        if (isSlotPointer(blockPointer)) {
+            return blockManager.getInt(slabPointers[slabIndex(blockPointer)], slotPosition(blockPointer, position, Integer.BYTES));
+        }
+        return blockManager.getInt(blockPointer, position);
+    }
+
+    @Override
+    public long getLong(int blockPointer, int position) {
+        if (isSlotPointer(blockPointer)) {
+            return blockManager.getLong(slabPointers[slabIndex(blockPointer)], slotPosition(blockPointer, position, Long.BYTES));
+        }
+        return blockManager.getLong(blockPointer, position);
+    }
+
+    @Override
+    public float getFloat(int blockPointer, int position) {
+        if (isSlotPointer(blockPointer)) {
+            return blockManager.getFloat(slabPointers[slabIndex(blockPointer)], slotPosition(blockPointer, position, Float.BYTES));
+        }
+        return blockManager.getFloat(blockPointer, position);
+    }
+
+    @Override
+    public double getDouble(int blockPointer, int position) {
+        if (isSlotPointer(blockPointer)) {
+            return blockManager.getDouble(slabPointers[slabIndex(blockPointer)], slotPosition(blockPointer, position, Double.BYTES));
+        }
+        return blockManager.getDouble(blockPointer, position);
+    }
+
+    @Override
+    public int allocatedSize(int blockPointer) {
+        if (isSlotPointer(blockPointer)) {
+            return slotSize(slabSizeClasses[slabIndex(blockPointer)]);
+        }
+        return blockManager.allocatedSize(blockPointer);
+    }
+}
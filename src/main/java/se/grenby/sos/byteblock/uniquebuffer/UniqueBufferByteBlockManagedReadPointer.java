@@ -0,0 +1,95 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.uniquebuffer;
+
+import se.grenby.sos.byteblock.ByteBlockReadPointer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read pointer to a block of a unique buffer manager. The generation of the pointer is checked
+ * on every read, so a read after the block has been deallocated fails instead of reading the
+ * pooled buffer that may now hold another block.
+ */
+class UniqueBufferByteBlockManagedReadPointer implements ByteBlockReadPointer {
+
+    private final UniqueBufferByteBlockManager blockManager;
+    private final int blockPointer;
+
+    UniqueBufferByteBlockManagedReadPointer(UniqueBufferByteBlockManager blockManager, int blockPointer) {
+        this.blockManager = blockManager;
+        this.blockPointer = blockPointer;
+    }
+
+    @Override
+    public byte[] getBytes(int position, int length) {
+        return blockManager.getBytes(blockPointer, position, length);
+    }
+
+    @Override
+    public byte getByte(int position) {
+        return blockManager.getByte(blockPointer, position);
+    }
+
+    @Override
+    public short getShort(int position) {
+        return blockManager.getShort(blockPointer, position);
+    }
+
+    @Override
+    public int getInt(int position) {
+        return blockManager.getInt(blockPointer, position);
+    }
+
+    @Override
+    public long getLong(int position) {
+        return blockManager.getLong(blockPointer, position);
+    }
+
+    @Override
+    public float getFloat(int position) {
+        return blockManager.getFloat(blockPointer, position);
+    }
+
+    @Override
+    public double getDouble(int position) {
+        return blockManager.getDouble(blockPointer, position);
+    }
+
+    @Override
+    public int getAllocatedSize() {
+        return blockManager.allocatedSize(blockPointer);
+    }
+
+    /**
+     * The view can not check the generation, so the buffer of the block is not pooled again.
+     */
+    @Override
+    public ByteBuffer getReadOnlyBuffer(int position, int length) {
+        ByteBuffer buffer = blockManager.exposeBlock(blockPointer).duplicate();
+        buffer.limit(position + length);
+        buffer.position(position);
+        return buffer.slice().asReadOnlyBuffer();
+    }
+}
@@ -5,127 +5,295 @@ import se.grenby.sos.byteblock.ByteBlockReader;
 import se.grenby.sos.byteblock.ByteBlockReadPointer;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
+import static se.grenby.sos.constant.PrimitiveConstants.INT_VALUE_FOR_NULL;
+
+/**
+ * Block manager where every block is a heap buffer of its own.
+ *
+ * The blocks are kept in a slot table, and freed slots are linked into a free list so that
+ * allocation, deallocation and lookup are all done in constant time. A block pointer holds
+ * the slot index and the generation of the slot. The generation is increased when the block
+ * is deallocated, so a stale pointer gets an IllegalStateException instead of reading the
+ * block that reuses the slot. The generation has 8 bits, a pointer that is 256
+ * deallocations of the same slot old is not detected.
+ *
+ * Freed buffers are kept in pools of power of two size classes and are reused by later
+ * allocations, so a cache with a high churn does not create a new buffer for every block.
+ */
 public class UniqueBufferByteBlockManager implements ByteBlockAllocator, ByteBlockReader {
-    private ArrayList<ByteBuffer> byteBlocks = new ArrayList<>();
+
+    private final static int GENERATION_BITS = 8;
+    private final static int GENERATION_MASK = (1 << GENERATION_BITS) - 1;
+    private final static int SLOT_BITS = Integer.SIZE - 1 - GENERATION_BITS;
+    private final static int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private final static int MAX_NUMBER_OF_SLOTS = 1 << SLOT_BITS;
+
+    private final static int INITIAL_NUMBER_OF_SLOTS = 64;
+    private final static int SMALLEST_POOLED_SIZE_BITS = 4;
+    private final static int LARGEST_POOLED_SIZE_BITS = 16;
+    private final static int DEFAULT_MAX_POOLED_BUFFERS_PER_CLASS = 1024;
+
+    private ByteBuffer[] byteBlocks = new ByteBuffer[INITIAL_NUMBER_OF_SLOTS];
+    private int[] generations = new int[INITIAL_NUMBER_OF_SLOTS];
+    // Next slot in the free list, only valid for free slots
+    private int[] nextFreeSlots = new int[INITIAL_NUMBER_OF_SLOTS];
+    // Set when a view of the buffer has been given to a reader, the buffer is then not pooled again
+    private boolean[] exposedBlocks = new boolean[INITIAL_NUMBER_OF_SLOTS];
+    private int firstFreeSlot = INT_VALUE_FOR_NULL;
+    private int numberOfUsedSlots = 0;
+    private int numberOfAllocatedBlocks = 0;
+
+    private final ArrayDeque<ByteBuffer>[] pools;
+    private final int maxPooledBuffersPerClass;
+
+    public UniqueBufferByteBlockManager() {
+        this(DEFAULT_MAX_POOLED_BUFFERS_PER_CLASS);
+    }
+
+    public UniqueBufferByteBlockManager(final int maxPooledBuffersPerClass) {
+        if (maxPooledBuffersPerClass < 0) {
+            throw new IllegalArgumentException("Number of pooled buffers can not be negative");
+        }
+        this.maxPooledBuffersPerClass = maxPooledBuffersPerClass;
+        pools = newPools(LARGEST_POOLED_SIZE_BITS - SMALLEST_POOLED_SIZE_BITS + 1);
+    }
+
+    // Generic arrays can not be created, the raw array is only filled with buffer pools
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<ByteBuffer>[] newPools(int numberOfPools) {
+        ArrayDeque<ByteBuffer>[] pools = new ArrayDeque[numberOfPools];
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new ArrayDeque<>();
+        }
+        return pools;
+    }
 
     @Override
     public int allocate(int sizeOfPayload) {
-        byteBlocks.add(ByteBuffer.allocate(sizeOfPayload));
-        return byteBlocks.size() - 1;
+        return occupySlot(takeBuffer(sizeOfPayload));
     }
 
     @Override
     public int allocateAndClear(int sizeOfPayload) {
-        return allocate(sizeOfPayload);
+        ByteBuffer block = takeBuffer(sizeOfPayload);
+        Arrays.fill(block.array(), block.arrayOffset(), block.arrayOffset() + sizeOfPayload, (byte) 0);
+        return occupySlot(block);
     }
 
     @Override
     public int allocateAndClone(ByteBuffer buffer) {
-        ByteBuffer clone = ByteBuffer.allocate(buffer.limit());
+        ByteBuffer clone = takeBuffer(buffer.limit());
         buffer.rewind();
         clone.put(buffer);
         buffer.rewind();
         clone.flip();
-        byteBlocks.add(clone);
-        return byteBlocks.size() - 1;
+        return occupySlot(clone);
     }
 
-    public ByteBlockReadPointer getBlock(int blockIndex) {
-        final ByteBuffer block = byteBlocks.get(blockIndex);
+    @Override
+    public boolean allocateBatch(int[] sizesOfPayload, int[] blockPointers) {
+        ensureSlots(sizesOfPayload.length);
+        for (int i = 0; i < sizesOfPayload.length; i++) {
+            blockPointers[i] = allocate(sizesOfPayload[i]);
+        }
+        return true;
+    }
 
-        return new ByteBlockReadPointer() {
+    @Override
+    public boolean allocateAndCloneBatch(ByteBuffer[] buffers, int[] blockPointers) {
+        ensureSlots(buffers.length);
+        for (int i = 0; i < buffers.length; i++) {
+            blockPointers[i] = allocateAndClone(buffers[i]);
+        }
+        return true;
+    }
 
-            @Override
-            public byte[] getBytes(int position, int length) {
-                byte[] bs = new byte[length];
-                block.position(position);
-                block.get(bs, 0, length);
-                return bs;
-            }
+    @Override
+    public boolean supportsWritableBlocks() {
+        return true;
+    }
 
-            @Override
-            public byte getByte(int position) {
-                return block.get(position);
-            }
+    @Override
+    public ByteBuffer getWritableBlock(int blockPointer) {
+        ByteBuffer block = block(blockPointer).duplicate();
+        block.position(0);
+        return block.slice();
+    }
 
-            @Override
-            public short getShort(int position) {
-                return block.getShort(position);
-            }
+    /**
+     * The read pointer checks the generation of the block on every read, so a stale pointer
+     * fails instead of reading a pooled buffer that has been reused for another block.
+     */
+    @Override
+    public ByteBlockReadPointer getBlock(int blockPointer) {
+        block(blockPointer);
+        return new UniqueBufferByteBlockManagedReadPointer(this, blockPointer);
+    }
 
-            @Override
-            public int getInt(int position) {
-                return block.getInt(position);
-            }
+    @Override
+    public void deallocate(int blockPointer) {
+        if (blockPointer == INT_VALUE_FOR_NULL) {
+            throw new RuntimeException("Block can not be deallocated: pointer " + blockPointer);
+        }
+        ByteBuffer block = block(blockPointer);
+        int slot = blockPointer & SLOT_MASK;
+        byteBlocks[slot] = null;
+        generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+        nextFreeSlots[slot] = firstFreeSlot;
+        firstFreeSlot = slot;
+        numberOfAllocatedBlocks--;
+        if (exposedBlocks[slot]) {
+            exposedBlocks[slot] = false;
+        } else {
+            returnBuffer(block);
+        }
+    }
 
-            @Override
-            public long getLong(int position) {
-                return block.getLong(position);
-            }
+    /**
+     * Pointers are not shifted by a deallocation, so the blocks are simply deallocated one by one.
+     */
+    @Override
+    public void deallocateBatch(int[] blockPointers) {
+        for (int blockPointer : blockPointers) {
+            deallocate(blockPointer);
+        }
+    }
 
-            @Override
-            public float getFloat(int position) {
-                return block.getFloat(position);
-            }
+    public int getNumberOfAllocatedBlocks() {
+        return numberOfAllocatedBlocks;
+    }
 
-            @Override
-            public double getDouble(int position) {
-                return block.getDouble(position);
-            }
+    public int getNumberOfPooledBuffers() {
+        int n = 0;
+        for (ArrayDeque<ByteBuffer> pool : pools) {
+            n += pool.size();
+        }
+        return n;
+    }
 
-            @Override
-            public int getAllocatedSize() {
-                return block.limit();
+    private int occupySlot(ByteBuffer block) {
+        int slot;
+        if (firstFreeSlot != INT_VALUE_FOR_NULL) {
+            slot = firstFreeSlot;
+            firstFreeSlot = nextFreeSlots[slot];
+        } else {
+            ensureSlots(1);
+            slot = numberOfUsedSlots++;
+        }
+        byteBlocks[slot] = block;
+        numberOfAllocatedBlocks++;
+        return (generations[slot] << SLOT_BITS) | slot;
+    }
+
+    private void ensureSlots(int numberOfNewBlocks) {
+        int slotsNeeded = numberOfUsedSlots + numberOfNewBlocks;
+        if (slotsNeeded > byteBlocks.length) {
+            if (slotsNeeded > MAX_NUMBER_OF_SLOTS) {
+                throw new RuntimeException("Slot table is full: " + MAX_NUMBER_OF_SLOTS + " slots");
             }
-        };
+            int newLength = (int) Math.min(MAX_NUMBER_OF_SLOTS, Math.max(slotsNeeded, (long) byteBlocks.length << 1));
+            byteBlocks = Arrays.copyOf(byteBlocks, newLength);
+            generations = Arrays.copyOf(generations, newLength);
+            nextFreeSlots = Arrays.copyOf(nextFreeSlots, newLength);
+            exposedBlocks = Arrays.copyOf(exposedBlocks, newLength);
+        }
     }
 
-    public void deallocate(int blockPointer) {
-        byteBlocks.remove(blockPointer);
+    ByteBuffer block(int blockPointer) {
+        int slot = blockPointer & SLOT_MASK;
+        ByteBuffer block;
+        if (blockPointer < 0 || slot >= numberOfUsedSlots || (block = byteBlocks[slot]) == null ||
+                (blockPointer >>> SLOT_BITS) != generations[slot]) {
+            throw new IllegalStateException("Block pointer " + blockPointer + " does not point to an allocated block");
+        }
+        return block;
+    }
+
+    /**
+     * Returns the buffer of a block whose view is given to a reader, the buffer is not pooled
+     * when the block is deallocated.
+     */
+    ByteBuffer exposeBlock(int blockPointer) {
+        ByteBuffer block = block(blockPointer);
+        exposedBlocks[blockPointer & SLOT_MASK] = true;
+        return block;
+    }
+
+    private static int poolIndex(int size) {
+        int sizeBits = Integer.SIZE - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(sizeBits, SMALLEST_POOLED_SIZE_BITS) - SMALLEST_POOLED_SIZE_BITS;
+    }
+
+    private ByteBuffer takeBuffer(int size) {
+        int index = poolIndex(size);
+        if (index >= pools.length) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = pools[index].pollFirst();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(1 << (index + SMALLEST_POOLED_SIZE_BITS));
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    private void returnBuffer(ByteBuffer buffer) {
+        // Only buffers with a capacity of a size class are pooled
+        int capacity = buffer.capacity();
+        int index = poolIndex(capacity);
+        if (index < pools.length && capacity == 1 << (index + SMALLEST_POOLED_SIZE_BITS) &&
+                pools[index].size() < maxPooledBuffersPerClass) {
+            pools[index].addFirst(buffer);
+        }
     }
 
     @Override
     public byte[] getBytes(int blockPointer, int position, int length) {
+        ByteBuffer block = block(blockPointer);
+        if (position + length > block.limit()) {
+            throw new IndexOutOfBoundsException("Position " + position + " and length " + length + " are outside of block");
+        }
         byte[] bs = new byte[length];
-        byteBlocks.get(blockPointer).position(blockPointer + position);
-        byteBlocks.get(blockPointer).get(bs, 0, length);
+        System.arraycopy(block.array(), block.arrayOffset() + position, bs, 0, length);
         return bs;
     }
 
     @Override
     public byte getByte(int blockPointer, int position) {
-        return byteBlocks.get(blockPointer).get(position);
+        return block(blockPointer).get(position);
     }
 
     @Override
     public short getShort(int blockPointer, int position) {
-        return byteBlocks.get(blockPointer).getShort(position);
+        return block(blockPointer).getShort(position);
     }
 
     @Override
     public int getInt(int blockPointer, int position) {
-        return byteBlocks.get(blockPointer).getInt(position);
+        return block(blockPointer).getInt(position);
     }
 
     @Override
     public long getLong(int blockPointer, int position) {
-        return byteBlocks.get(blockPointer).getLong(position);
+        return block(blockPointer).getLong(position);
     }
 
     @Override
     public float getFloat(int blockPointer, int position) {
-        return byteBlocks.get(blockPointer).getFloat(position);
+        return block(blockPointer).getFloat(position);
     }
 
     @Override
     public double getDouble(int blockPointer, int position) {
-        return byteBlocks.get(blockPointer).getDouble(position);
+        return block(blockPointer).getDouble(position);
     }
 
     @Override
     public int allocatedSize(int blockPointer) {
-        return byteBlocks.get(blockPointer).limit();
+        return block(blockPointer).limit();
     }
 }
@@ -80,4 +80,12 @@ public class UniqueBufferByteBlockReadPointer implements ByteBlockReadPointer {
     public int getAllocatedSize() {
         return byteBuffer.limit();
     }
+
+    @Override
+    public ByteBuffer getReadOnlyBuffer(int position, int length) {
+        ByteBuffer buffer = byteBuffer.duplicate();
+        buffer.limit(position + length);
+        buffer.position(position);
+        return buffer.slice().asReadOnlyBuffer();
+    }
 }
@@ -28,4 +28,5 @@ package se.grenby.sos.constant;
  */
 public class PrimitiveConstants {
     public final static int INT_VALUE_FOR_NULL = -1;
+    public final static long LONG_VALUE_FOR_NULL = -1L;
 }
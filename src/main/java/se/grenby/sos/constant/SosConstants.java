@@ -36,5 +36,29 @@ public class SosConstants {
     public static final byte STRING_VALUE = 7;
     public static final byte FLOAT_VALUE = 8;
     public static final byte DOUBLE_VALUE = 9;
+    // Version 2 containers have an int size and varint string lengths
+    public static final byte MAP_V2_VALUE = 10;
+    public static final byte LIST_V2_VALUE = 11;
+    // Version 2 map where every key is a varint id in a SosKeyDictionary
+    public static final byte MAP_DICT_VALUE = 12;
+    // Version 2 map with a varint shape id of a SosKeyDictionary and its values at fixed offsets
+    public static final byte MAP_SHAPE_VALUE = 13;
+    // Version 2 map with entries in key order after an int count and a table of int entry offsets
+    public static final byte MAP_SORTED_VALUE = 14;
+    // Version 2 map with an int count, an int number of slots and a table of slots with int key
+    // hash and int entry offset before its entries, an empty slot has offset -1
+    public static final byte MAP_HASHED_VALUE = 15;
+    // Version 2 list with an int count and a table of int element offsets before its elements
+    public static final byte LIST_INDEXED_VALUE = 16;
+    // Version 2 lists of one primitive type, an int count is followed by the values without value
+    // types. A byte with the number of padding bytes comes before the values, the padding aligns
+    // the values to their size in memory where the list was built
+    public static final byte INT_ARRAY_VALUE = 17;
+    public static final byte LONG_ARRAY_VALUE = 18;
+    public static final byte FLOAT_ARRAY_VALUE = 19;
+    public static final byte DOUBLE_ARRAY_VALUE = 20;
+
+    public static final int FORMAT_VERSION_1 = 1;
+    public static final int FORMAT_VERSION_2 = 2;
 
 }
@@ -0,0 +1,569 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.json;
+
+import se.grenby.sos.SosWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Pull parser of UTF-8 JSON text that writes the SOS encoding straight into a SosWriter,
+ * without building an object tree or a JsonDataMap first. The writer is then handed to
+ * SosManager to become a block.
+ *
+ * A number is written as the narrowest type that holds it: byte, short, int or long for an
+ * integer, and float for a decimal number of at most 6 significant digits, otherwise double.
+ * True and false are written as the bytes 1 and 0. A map entry with the value null is left
+ * out, null in a list can not be encoded and is an error.
+ *
+ * The parser and its writer are reused between documents and are not thread safe.
+ */
+public class JsonSosParser {
+
+    private static final int DEFAULT_READ_BUFFER_SIZE = 8192;
+    private static final int MAX_FLOAT_DIGITS = 6;
+    private static final int MAX_EXACT_DOUBLE_DIGITS = 15;
+    private static final int MAX_LONG_DIGITS = 18;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final SosWriter writer;
+    private final ByteBuffer readBuffer;
+
+    private ByteBuffer in;
+    private ReadableByteChannel channel;
+    private boolean endOfInput;
+    // Channel whose bytes read past the last document are left in the read buffer, they are
+    // parsed first when the same channel is parsed again
+    private ReadableByteChannel readSource;
+    // Channel of the last parsed stream, reused when the same stream is parsed again
+    private InputStream stream;
+    private ReadableByteChannel streamChannel;
+
+    private byte[] keyBytes = new byte[64];
+    private int keyLength;
+    private byte[] stringBytes = new byte[256];
+    private char[] numberChars = new char[32];
+    private int numberLength;
+
+    public JsonSosParser() {
+        this(new SosWriter());
+    }
+
+    public JsonSosParser(SosWriter writer) {
+        this.writer = writer;
+        this.readBuffer = ByteBuffer.allocate(DEFAULT_READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Parses one JSON object or array from the buffer, the position of the buffer is moved past it.
+     */
+    public SosWriter parse(ByteBuffer src) {
+        channel = null;
+        in = src;
+        try {
+            return parse();
+        } catch (IOException e) {
+            // Only channels are read with IO
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parses one JSON object or array from the stream. The stream may be read past it, the
+     * bytes read past it are parsed first when the same stream is parsed again. The stream is
+     * no longer referenced once its end is reached or parsing fails.
+     */
+    public SosWriter parse(InputStream src) throws IOException {
+        if (src != stream) {
+            streamChannel = Channels.newChannel(src);
+            stream = src;
+        }
+        try {
+            return parse(streamChannel);
+        } finally {
+            if (readSource == null) {
+                stream = null;
+                streamChannel = null;
+            }
+        }
+    }
+
+    /**
+     * Parses one JSON object or array from the channel. The channel may be read past it, the
+     * bytes read past it are parsed first when the same channel is parsed again.
+     */
+    public SosWriter parse(ReadableByteChannel src) throws IOException {
+        channel = src;
+        in = readBuffer;
+        if (src != readSource) {
+            in.clear();
+            in.flip();
+        }
+        readSource = null;
+        endOfInput = false;
+        try {
+            SosWriter parsed = parse();
+            if (!endOfInput) {
+                readSource = src;
+            }
+            return parsed;
+        } finally {
+            channel = null;
+        }
+    }
+
+    private SosWriter parse() throws IOException {
+        writer.reset();
+        int c = nextNonWhitespace();
+        if (c == '{') {
+            writer.beginMap();
+            parseMap();
+        } else if (c == '[') {
+            writer.beginList();
+            parseList();
+        } else {
+            throw error("Expected an object or an array", c);
+        }
+        return writer;
+    }
+
+    private void parseMap() throws IOException {
+        int c = nextNonWhitespace();
+        if (c == '}') {
+            writer.endMap();
+            return;
+        }
+        while (true) {
+            if (c != '"') {
+                throw error("Expected a key", c);
+            }
+            int length = readString();
+            if (keyBytes.length < length) {
+                keyBytes = Arrays.copyOf(keyBytes, Math.max(length, keyBytes.length << 1));
+            }
+            System.arraycopy(stringBytes, 0, keyBytes, 0, length);
+            keyLength = length;
+
+            c = nextNonWhitespace();
+            if (c != ':') {
+                throw error("Expected ':'", c);
+            }
+            parseValue(true);
+
+            c = nextNonWhitespace();
+            if (c == ',') {
+                c = nextNonWhitespace();
+            } else if (c == '}') {
+                writer.endMap();
+                return;
+            } else {
+                throw error("Expected ',' or '}'", c);
+            }
+        }
+    }
+
+    private void parseList() throws IOException {
+        int c = peekNonWhitespace();
+        if (c == ']') {
+            next();
+            writer.endList();
+            return;
+        }
+        while (true) {
+            parseValue(false);
+
+            c = nextNonWhitespace();
+            if (c == ']') {
+                writer.endList();
+                return;
+            } else if (c != ',') {
+                throw error("Expected ',' or ']'", c);
+            }
+        }
+    }
+
+    private void parseValue(boolean inMap) throws IOException {
+        int c = nextNonWhitespace();
+        switch (c) {
+            case '{':
+                writeKey(inMap);
+                writer.beginMap();
+                parseMap();
+                break;
+            case '[':
+                writeKey(inMap);
+                writer.beginList();
+                parseList();
+                break;
+            case '"':
+                int length = readString();
+                writeKey(inMap);
+                writer.addString(stringBytes, 0, length);
+                break;
+            case 't':
+                expectLiteral("true");
+                writeKey(inMap);
+                writer.addByte((byte) 1);
+                break;
+            case 'f':
+                expectLiteral("false");
+                writeKey(inMap);
+                writer.addByte((byte) 0);
+                break;
+            case 'n':
+                expectLiteral("null");
+                if (!inMap) {
+                    throw new IllegalArgumentException("Null can not be encoded in a list");
+                }
+                break;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    parseNumber(c, inMap);
+                } else {
+                    throw error("Expected a value", c);
+                }
+        }
+    }
+
+    private void writeKey(boolean inMap) {
+        if (inMap) {
+            writer.key(keyBytes, 0, keyLength);
+        }
+    }
+
+    private void expectLiteral(String literal) throws IOException {
+        for (int i = 1; i < literal.length(); i++) {
+            int c = next();
+            if (c != literal.charAt(i)) {
+                throw error("Expected " + literal, c);
+            }
+        }
+    }
+
+    private void parseNumber(int c, boolean inMap) throws IOException {
+        numberLength = 0;
+        boolean negative = false;
+        boolean decimal = false;
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+
+        if (c == '-') {
+            negative = true;
+            appendNumberChar(c);
+            c = next();
+        }
+        if (!isDigit(c)) {
+            throw error("Expected a digit", c);
+        }
+        if (c == '0' && isDigit(peek())) {
+            throw error("Leading zero in number", peek());
+        }
+        while (true) {
+            appendNumberChar(c);
+            if (significantDigits < MAX_LONG_DIGITS) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) {
+                    significantDigits++;
+                }
+            } else {
+                // Digits that do not fit in the mantissa only scale it
+                significantDigits++;
+                exponent++;
+            }
+            c = peek();
+            if (!isDigit(c)) {
+                break;
+            }
+            next();
+        }
+
+        if (c == '.') {
+            decimal = true;
+            appendNumberChar(next());
+            c = next();
+            if (!isDigit(c)) {
+                throw error("Expected a digit", c);
+            }
+            while (true) {
+                appendNumberChar(c);
+                if (significantDigits < MAX_LONG_DIGITS) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    exponent--;
+                    if (mantissa != 0) {
+                        significantDigits++;
+                    }
+                } else {
+                    significantDigits++;
+                }
+                c = peek();
+                if (!isDigit(c)) {
+                    break;
+                }
+                next();
+            }
+        }
+
+        if (c == 'e' || c == 'E') {
+            decimal = true;
+            appendNumberChar(next());
+            c = next();
+            boolean negativeExponent = false;
+            if (c == '-' || c == '+') {
+                negativeExponent = c == '-';
+                appendNumberChar(c);
+                c = next();
+            }
+            if (!isDigit(c)) {
+                throw error("Expected a digit", c);
+            }
+            int e = 0;
+            while (true) {
+                appendNumberChar(c);
+                if (e < 100000) {
+                    e = e * 10 + (c - '0');
+                }
+                c = peek();
+                if (!isDigit(c)) {
+                    break;
+                }
+                next();
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+
+        if (!decimal && significantDigits <= MAX_LONG_DIGITS) {
+            writeKey(inMap);
+            writeInteger(negative ? -mantissa : mantissa);
+        } else if (!decimal) {
+            long value;
+            try {
+                value = Long.parseLong(new String(numberChars, 0, numberLength));
+            } catch (NumberFormatException e) {
+                writeKey(inMap);
+                writer.addDouble(Double.parseDouble(new String(numberChars, 0, numberLength)));
+                return;
+            }
+            writeKey(inMap);
+            writeInteger(value);
+        } else {
+            double value;
+            if (significantDigits <= MAX_EXACT_DOUBLE_DIGITS && exponent >= -22 && exponent <= 22) {
+                // Both the mantissa and the power of ten are exact doubles, so one operation rounds correctly
+                value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+                value = negative ? -value : value;
+            } else {
+                value = Double.parseDouble(new String(numberChars, 0, numberLength));
+            }
+            writeKey(inMap);
+            double abs = Math.abs(value);
+            if (significantDigits <= MAX_FLOAT_DIGITS && (abs == 0 || (abs >= Float.MIN_NORMAL && abs <= Float.MAX_VALUE))) {
+                writer.addFloat((float) value);
+            } else {
+                writer.addDouble(value);
+            }
+        }
+    }
+
+    private void writeInteger(long value) {
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            writer.addByte((byte) value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            writer.addShort((short) value);
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            writer.addInt((int) value);
+        } else {
+            writer.addLong(value);
+        }
+    }
+
+    private void appendNumberChar(int c) {
+        if (numberLength == numberChars.length) {
+            numberChars = Arrays.copyOf(numberChars, numberLength << 1);
+        }
+        numberChars[numberLength++] = (char) c;
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Reads a string after its opening quote into stringBytes as UTF-8 and returns its length.
+     */
+    private int readString() throws IOException {
+        int length = 0;
+        while (true) {
+            int c = next();
+            if (c == '"') {
+                return length;
+            }
+            if (c == -1) {
+                throw error("Unterminated string", c);
+            }
+            if (c < 0x20) {
+                throw error("Control character in string", c);
+            }
+            if (length + 4 > stringBytes.length) {
+                stringBytes = Arrays.copyOf(stringBytes, stringBytes.length << 1);
+            }
+            if (c != '\\') {
+                stringBytes[length++] = (byte) c;
+                continue;
+            }
+
+            c = next();
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    stringBytes[length++] = (byte) c;
+                    break;
+                case 'b':
+                    stringBytes[length++] = '\b';
+                    break;
+                case 'f':
+                    stringBytes[length++] = '\f';
+                    break;
+                case 'n':
+                    stringBytes[length++] = '\n';
+                    break;
+                case 'r':
+                    stringBytes[length++] = '\r';
+                    break;
+                case 't':
+                    stringBytes[length++] = '\t';
+                    break;
+                case 'u':
+                    int cp = readHex4();
+                    if (Character.isHighSurrogate((char) cp)) {
+                        if (next() != '\\' || next() != 'u') {
+                            throw new IllegalArgumentException("Expected a low surrogate after " + Integer.toHexString(cp));
+                        }
+                        int low = readHex4();
+                        if (!Character.isLowSurrogate((char) low)) {
+                            throw new IllegalArgumentException("Expected a low surrogate after " + Integer.toHexString(cp));
+                        }
+                        cp = Character.toCodePoint((char) cp, (char) low);
+                    }
+                    length = putCodePoint(cp, length);
+                    break;
+                default:
+                    throw error("Unknown escape", c);
+            }
+        }
+    }
+
+    private int readHex4() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int c = next();
+            int digit = Character.digit(c, 16);
+            if (c == -1 || digit < 0) {
+                throw error("Expected a hex digit", c);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private int putCodePoint(int cp, int length) {
+        if (cp < 0x80) {
+            stringBytes[length++] = (byte) cp;
+        } else if (cp < 0x800) {
+            stringBytes[length++] = (byte) (0xC0 | (cp >> 6));
+            stringBytes[length++] = (byte) (0x80 | (cp & 0x3F));
+        } else if (cp < 0x10000) {
+            stringBytes[length++] = (byte) (0xE0 | (cp >> 12));
+            stringBytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            stringBytes[length++] = (byte) (0x80 | (cp & 0x3F));
+        } else {
+            stringBytes[length++] = (byte) (0xF0 | (cp >> 18));
+            stringBytes[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            stringBytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            stringBytes[length++] = (byte) (0x80 | (cp & 0x3F));
+        }
+        return length;
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = next();
+        } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+
+    private int peekNonWhitespace() throws IOException {
+        int c = peek();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            next();
+            c = peek();
+        }
+        return c;
+    }
+
+    /**
+     * Returns the next byte without consuming it, or -1 at the end of the input.
+     */
+    private int peek() throws IOException {
+        if (!in.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return in.get(in.position()) & 0xFF;
+    }
+
+    private int next() throws IOException {
+        if (!in.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return in.get() & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        if (channel == null) {
+            return false;
+        }
+        in.clear();
+        int n;
+        do {
+            n = channel.read(in);
+        } while (n == 0);
+        in.flip();
+        endOfInput = n < 0;
+        return n > 0;
+    }
+
+    private static IllegalArgumentException error(String message, int c) {
+        return new IllegalArgumentException(message + " but found " + (c == -1 ? "end of input" : "'" + (char) c + "'"));
+    }
+}
@@ -0,0 +1,554 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.object;
+
+import se.grenby.sos.byteblock.ByteBlockReadPointer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static se.grenby.sos.constant.SosConstants.*;
+
+/**
+ * Writes a SosMap or SosList as UTF-8 JSON text, straight from the bytes of the block and
+ * without building a JsonDataMap or any object per value. Strings and keys are copied byte
+ * by byte, with only the characters that JSON needs escaped.
+ *
+ * A float or double is written with the fewest decimals that reads back as the same value,
+ * when that fits in a long. Other values fall back to Double.toString or Float.toString,
+ * which is the only case that allocates. NaN and infinity are written as null.
+ *
+ * The serializer holds its own output buffer for streams and channels, it is reused between
+ * objects and is not thread safe.
+ */
+public class SosJsonSerializer {
+
+    private static final int DEFAULT_OUTPUT_BUFFER_SIZE = 8192;
+    private static final int MAX_DOUBLE_DECIMALS = 15;
+    private static final int MAX_FLOAT_DECIMALS = 9;
+    private static final long MAX_EXACT_DOUBLE_MANTISSA = 1L << 53;
+    private static final long MAX_EXACT_FLOAT_MANTISSA = 1L << 24;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+    private static final byte[] NULL = "null".getBytes();
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+    private static final double[] DOUBLE_POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+    private static final float[] FLOAT_POWERS_OF_TEN = {
+            1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f
+    };
+    private static final long[] LONG_POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L,
+            10000000000L, 100000000000L, 1000000000000L, 10000000000000L, 100000000000000L, 1000000000000000L
+    };
+
+    private final ByteBuffer outputBuffer;
+    private final byte[] digits = new byte[20];
+
+    private ByteBuffer out;
+    private OutputStream stream;
+    private WritableByteChannel channel;
+
+    private ByteBlockReadPointer block;
+    private SosKeyDictionary keyDictionary;
+    private int position;
+
+    public SosJsonSerializer() {
+        this(DEFAULT_OUTPUT_BUFFER_SIZE);
+    }
+
+    public SosJsonSerializer(final int outputBufferSize) {
+        this.outputBuffer = ByteBuffer.allocate(outputBufferSize);
+    }
+
+    /**
+     * Writes the object into the buffer from its position, a BufferOverflowException is thrown
+     * if the buffer is too small.
+     */
+    public void serialize(SosObject sosObject, ByteBuffer dst) {
+        stream = null;
+        channel = null;
+        out = dst;
+        try {
+            writeObject(sosObject);
+        } catch (IOException e) {
+            // Only streams and channels are written with IO
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void serialize(SosObject sosObject, OutputStream dst) throws IOException {
+        stream = dst;
+        channel = null;
+        out = outputBuffer;
+        out.clear();
+        try {
+            writeObject(sosObject);
+            flush();
+        } finally {
+            stream = null;
+        }
+    }
+
+    public void serialize(SosObject sosObject, WritableByteChannel dst) throws IOException {
+        stream = null;
+        channel = dst;
+        out = outputBuffer;
+        out.clear();
+        try {
+            writeObject(sosObject);
+            flush();
+        } finally {
+            channel = null;
+        }
+    }
+
+    private void writeObject(SosObject sosObject) throws IOException {
+        block = sosObject.byteBlockReadPointer;
+        keyDictionary = sosObject.keyDictionary;
+        position = sosObject.objectStartPosition;
+        try {
+            if (sosObject instanceof SosList) {
+                // The list may be a view of a part of a list, so only its elements are written
+                SosList list = (SosList) sosObject;
+                position = list.getListStartPosition();
+                if (list.isPacked()) {
+                    writeArrayElements(list.getElementType(), list.size());
+                } else {
+                    writeListElements(position + list.getListTotalLength(), list.formatVersion);
+                }
+            } else {
+                writeValue(FORMAT_VERSION_1);
+            }
+        } finally {
+            block = null;
+            keyDictionary = null;
+        }
+    }
+
+    /**
+     * Writes the value at the position, strings are read in the version of the enclosing map or list.
+     */
+    private void writeValue(int formatVersion) throws IOException {
+        byte valueType = block.getByte(position);
+        position += Byte.BYTES;
+        switch (valueType) {
+            case MAP_VALUE:
+            case MAP_V2_VALUE:
+            case MAP_DICT_VALUE:
+            case MAP_SORTED_VALUE:
+            case MAP_HASHED_VALUE:
+                writeMap(valueType);
+                break;
+            case MAP_SHAPE_VALUE:
+                writeShapeMap();
+                break;
+            case LIST_VALUE:
+            case LIST_V2_VALUE:
+            case LIST_INDEXED_VALUE:
+                writeList(valueType);
+                break;
+            case INT_ARRAY_VALUE:
+            case LONG_ARRAY_VALUE:
+            case FLOAT_ARRAY_VALUE:
+            case DOUBLE_ARRAY_VALUE:
+                writeArray(valueType);
+                break;
+            case BYTE_VALUE:
+                writeLong(block.getByte(position));
+                position += Byte.BYTES;
+                break;
+            case SHORT_VALUE:
+                writeLong(block.getShort(position));
+                position += Short.BYTES;
+                break;
+            case INTEGER_VALUE:
+                writeLong(block.getInt(position));
+                position += Integer.BYTES;
+                break;
+            case LONG_VALUE:
+                writeLong(block.getLong(position));
+                position += Long.BYTES;
+                break;
+            case FLOAT_VALUE:
+                writeFloat(block.getFloat(position));
+                position += Float.BYTES;
+                break;
+            case DOUBLE_VALUE:
+                writeDouble(block.getDouble(position));
+                position += Double.BYTES;
+                break;
+            case STRING_VALUE:
+                writeString(formatVersion);
+                break;
+            default:
+                throw new RuntimeException("Value type " + valueType + " is unknown.");
+        }
+    }
+
+    private void writeMap(byte valueType) throws IOException {
+        int formatVersion = SosObject.formatVersion(valueType);
+        int end = readMapOrListEnd(formatVersion);
+        if (valueType == MAP_SORTED_VALUE) {
+            // The entries follow the table of entry offsets
+            position += Integer.BYTES + block.getInt(position) * Integer.BYTES;
+        } else if (valueType == MAP_HASHED_VALUE) {
+            // The entries follow the slots of key hash and entry offset
+            position += Integer.BYTES + Integer.BYTES + block.getInt(position + Integer.BYTES) * 2 * Integer.BYTES;
+        }
+        put('{');
+        boolean first = true;
+        while (position < end) {
+            if (!first) {
+                put(',');
+            }
+            first = false;
+            if (valueType == MAP_DICT_VALUE) {
+                writeKey(readVarint());
+            } else {
+                writeString(formatVersion);
+            }
+            put(':');
+            writeValue(formatVersion);
+        }
+        put('}');
+    }
+
+    private void writeShapeMap() throws IOException {
+        int end = readMapOrListEnd(FORMAT_VERSION_2);
+        if (keyDictionary == null) {
+            throw new IllegalStateException("Map has a shape but no key dictionary was given");
+        }
+        SosShape shape = keyDictionary.getShape(readVarint());
+        int slotsPosition = position;
+        put('{');
+        for (int i = 0; i < shape.getNumberOfFields(); i++) {
+            if (i > 0) {
+                put(',');
+            }
+            writeKey(shape.getKeyBytes(i));
+            put(':');
+            int slotPosition = slotsPosition + shape.getOffset(i);
+            switch (shape.getValueType(i)) {
+                case BYTE_VALUE:
+                    writeLong(block.getByte(slotPosition));
+                    break;
+                case SHORT_VALUE:
+                    writeLong(block.getShort(slotPosition));
+                    break;
+                case INTEGER_VALUE:
+                    writeLong(block.getInt(slotPosition));
+                    break;
+                case LONG_VALUE:
+                    writeLong(block.getLong(slotPosition));
+                    break;
+                case FLOAT_VALUE:
+                    writeFloat(block.getFloat(slotPosition));
+                    break;
+                case DOUBLE_VALUE:
+                    writeDouble(block.getDouble(slotPosition));
+                    break;
+                default:
+                    // Strings, maps and lists are after the slots, at the offset in the slot
+                    position = slotsPosition + block.getInt(slotPosition);
+                    writeValue(FORMAT_VERSION_2);
+            }
+        }
+        put('}');
+        position = end;
+    }
+
+    private void writeList(byte valueType) throws IOException {
+        int formatVersion = SosObject.formatVersion(valueType);
+        int end = readMapOrListEnd(formatVersion);
+        if (valueType == LIST_INDEXED_VALUE) {
+            // The elements follow the table of element offsets
+            position += Integer.BYTES + block.getInt(position) * Integer.BYTES;
+        }
+        writeListElements(end, formatVersion);
+    }
+
+    private void writeArray(byte valueType) throws IOException {
+        int end = readMapOrListEnd(FORMAT_VERSION_2);
+        int numberOfElements = block.getInt(position);
+        position = SosObject.arrayDataPosition(block, position + Integer.BYTES);
+        writeArrayElements(SosObject.arrayElementType(valueType), numberOfElements);
+        position = end;
+    }
+
+    private void writeArrayElements(byte elementType, int numberOfElements) throws IOException {
+        put('[');
+        for (int i = 0; i < numberOfElements; i++) {
+            if (i > 0) {
+                put(',');
+            }
+            switch (elementType) {
+                case INTEGER_VALUE:
+                    writeLong(block.getInt(position));
+                    position += Integer.BYTES;
+                    break;
+                case LONG_VALUE:
+                    writeLong(block.getLong(position));
+                    position += Long.BYTES;
+                    break;
+                case FLOAT_VALUE:
+                    writeFloat(block.getFloat(position));
+                    position += Float.BYTES;
+                    break;
+                default:
+                    writeDouble(block.getDouble(position));
+                    position += Double.BYTES;
+            }
+        }
+        put(']');
+    }
+
+    private void writeListElements(int end, int formatVersion) throws IOException {
+        put('[');
+        boolean first = true;
+        while (position < end) {
+            if (!first) {
+                put(',');
+            }
+            first = false;
+            writeValue(formatVersion);
+        }
+        put(']');
+    }
+
+    private int readMapOrListEnd(int formatVersion) {
+        int length;
+        if (formatVersion == FORMAT_VERSION_2) {
+            length = block.getInt(position);
+            position += Integer.BYTES;
+        } else {
+            length = block.getShort(position);
+            position += Short.BYTES;
+        }
+        return position + length;
+    }
+
+    private int readStringLength(int formatVersion) {
+        if (formatVersion == FORMAT_VERSION_1) {
+            int length = block.getByte(position) & 0xFF;
+            position += Byte.BYTES;
+            return length;
+        }
+        return readVarint();
+    }
+
+    private int readVarint() {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = block.getByte(position++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private void writeString(int formatVersion) throws IOException {
+        int length = readStringLength(formatVersion);
+        int end = position + length;
+        put('"');
+        for (; position < end; position++) {
+            putEscaped(block.getByte(position));
+        }
+        put('"');
+    }
+
+    private void writeKey(int keyId) throws IOException {
+        if (keyDictionary == null) {
+            throw new IllegalStateException("Map has key ids but no key dictionary was given");
+        }
+        writeKey(keyDictionary.getKeyBytes(keyId));
+    }
+
+    private void writeKey(byte[] key) throws IOException {
+        put('"');
+        for (byte b : key) {
+            putEscaped(b);
+        }
+        put('"');
+    }
+
+    private void putEscaped(byte b) throws IOException {
+        if (b == '"' || b == '\\') {
+            put('\\');
+            put(b);
+        } else if (b >= 0 && b < 0x20) {
+            writeControlCharacter(b);
+        } else {
+            // Bytes of multi byte UTF-8 characters are copied as they are
+            put(b);
+        }
+    }
+
+    private void writeControlCharacter(byte b) throws IOException {
+        put('\\');
+        switch (b) {
+            case '\n':
+                put('n');
+                break;
+            case '\r':
+                put('r');
+                break;
+            case '\t':
+                put('t');
+                break;
+            case '\b':
+                put('b');
+                break;
+            case '\f':
+                put('f');
+                break;
+            default:
+                put('u');
+                put('0');
+                put('0');
+                put(HEX_DIGITS[b >> 4]);
+                put(HEX_DIGITS[b & 0xF]);
+        }
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            put(MIN_LONG);
+            return;
+        }
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (n > 0) {
+            put(digits[--n]);
+        }
+    }
+
+    /**
+     * Writes the mantissa with a decimal point before the last decimals digits.
+     */
+    private void writeDecimal(long mantissa, int decimals, boolean negative) throws IOException {
+        if (negative) {
+            put('-');
+        }
+        long integerPart = mantissa / LONG_POWERS_OF_TEN[decimals];
+        long fractionPart = mantissa % LONG_POWERS_OF_TEN[decimals];
+        writeLong(integerPart);
+        put('.');
+        if (decimals == 0) {
+            put('0');
+            return;
+        }
+        for (int i = decimals - 1; i >= 0; i--) {
+            put((byte) ('0' + (fractionPart / LONG_POWERS_OF_TEN[i]) % 10));
+        }
+    }
+
+    private void writeDouble(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            put(NULL);
+            return;
+        }
+        double abs = Math.abs(value);
+        for (int decimals = 0; decimals <= MAX_DOUBLE_DECIMALS; decimals++) {
+            double scaled = abs * DOUBLE_POWERS_OF_TEN[decimals];
+            if (scaled >= MAX_EXACT_DOUBLE_MANTISSA) {
+                break;
+            }
+            long mantissa = Math.round(scaled);
+            // Both are exact doubles, so the division is the value a parser reads from the text
+            if (mantissa / DOUBLE_POWERS_OF_TEN[decimals] == abs) {
+                writeDecimal(mantissa, decimals, value < 0 || (value == 0 && 1 / value < 0));
+                return;
+            }
+        }
+        put(Double.toString(value));
+    }
+
+    private void writeFloat(float value) throws IOException {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            put(NULL);
+            return;
+        }
+        float abs = Math.abs(value);
+        for (int decimals = 0; decimals <= MAX_FLOAT_DECIMALS; decimals++) {
+            double scaled = (double) abs * DOUBLE_POWERS_OF_TEN[decimals];
+            if (scaled >= MAX_EXACT_FLOAT_MANTISSA) {
+                break;
+            }
+            long mantissa = Math.round(scaled);
+            if (mantissa / FLOAT_POWERS_OF_TEN[decimals] == abs) {
+                writeDecimal(mantissa, decimals, value < 0 || (value == 0 && 1 / value < 0));
+                return;
+            }
+        }
+        put(Float.toString(value));
+    }
+
+    private void put(String s) throws IOException {
+        // Only used for the digits of Double.toString and Float.toString, which are ASCII
+        for (int i = 0; i < s.length(); i++) {
+            put((byte) s.charAt(i));
+        }
+    }
+
+    private void put(byte[] bs) throws IOException {
+        for (byte b : bs) {
+            put(b);
+        }
+    }
+
+    private void put(char c) throws IOException {
+        put((byte) c);
+    }
+
+    private void put(byte b) throws IOException {
+        if (!out.hasRemaining() && (stream != null || channel != null)) {
+            flush();
+        }
+        out.put(b);
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+        if (stream != null) {
+            stream.write(out.array(), out.arrayOffset() + out.position(), out.remaining());
+        } else {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+        out.clear();
+    }
+}
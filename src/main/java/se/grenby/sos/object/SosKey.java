@@ -0,0 +1,136 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.object;
+
+import se.grenby.sos.byteblock.ByteBlockReadPointer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Precompiled map key for lookups that allocate nothing. The UTF-8 bytes of the key are
+ * kept as big-endian longs, the byte order of all block read pointers, so a stored key is
+ * compared in place eight bytes at a time.
+ *
+ * Keys are immutable and can be shared between threads, create them once and reuse them.
+ */
+public final class SosKey {
+
+    private final String key;
+    private final byte[] bytes;
+    private final long[] words;
+    private final int hash;
+
+    private SosKey(String key) {
+        this.key = key;
+        this.bytes = key.getBytes(StandardCharsets.UTF_8);
+        this.words = new long[bytes.length / Long.BYTES];
+        for (int i = 0; i < words.length; i++) {
+            long word = 0;
+            for (int b = 0; b < Long.BYTES; b++) {
+                word = (word << Byte.SIZE) | (bytes[i * Long.BYTES + b] & 0xFF);
+            }
+            words[i] = word;
+        }
+        this.hash = hash(bytes);
+    }
+
+    public static SosKey of(String key) {
+        return new SosKey(key);
+    }
+
+    /**
+     * Hash of UTF-8 key bytes (FNV-1a), the same for a SosKey and the bytes of its key.
+     */
+    public static int hash(byte[] bytes) {
+        return hash(bytes, 0, bytes.length);
+    }
+
+    public static int hash(byte[] bytes, int offset, int length) {
+        int h = 0x811C9DC5;
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ (bytes[i] & 0xFF)) * 0x01000193;
+        }
+        return h;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the number of UTF-8 bytes of the key.
+     */
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * Returns the hash of the UTF-8 bytes of the key.
+     */
+    public int hash() {
+        return hash;
+    }
+
+    /**
+     * Compares the key bytes stored at the position with this key, in the order of unsigned
+     * bytes. Returns a negative number if the stored key is before this key.
+     */
+    int compareStored(ByteBlockReadPointer pointer, int position, int length) {
+        int n = Math.min(length, bytes.length);
+        int i = 0;
+        for (; i + Long.BYTES <= n; i += Long.BYTES) {
+            long stored = pointer.getLong(position + i);
+            long word = words[i / Long.BYTES];
+            if (stored != word) {
+                return Long.compareUnsigned(stored, word);
+            }
+        }
+        for (; i < n; i++) {
+            int c = (pointer.getByte(position + i) & 0xFF) - (bytes[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - bytes.length;
+    }
+
+    boolean matchesStored(ByteBlockReadPointer pointer, int position, int length) {
+        return length == bytes.length && compareStored(pointer, position, length) == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SosKey && key.equals(((SosKey) o).key);
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
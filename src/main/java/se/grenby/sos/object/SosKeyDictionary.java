@@ -0,0 +1,291 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.object;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static se.grenby.sos.constant.PrimitiveConstants.INT_VALUE_FOR_NULL;
+
+/**
+ * Dictionary of map keys shared by the SOS objects of a manager. Every key is stored once
+ * and a map built with the dictionary holds the id of the key as a varint instead of the
+ * key itself, so a lookup compares ids instead of strings.
+ *
+ * The dictionary can also hold shapes, see SosShape. A manager with a dictionary that allows
+ * shapes builds every map with a shape of the dictionary, until the maximum number of shapes
+ * is reached, the maps after that keep keys as ids. By default no shapes are allowed.
+ *
+ * Keys and shapes are only added, an id stays valid as long as the dictionary. Lookups are
+ * lock free, adding a key or a shape is synchronized.
+ */
+public class SosKeyDictionary {
+
+    private static final int INITIAL_NUMBER_OF_KEYS = 64;
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] keys = new String[INITIAL_NUMBER_OF_KEYS];
+    private volatile byte[][] keyBytes = new byte[INITIAL_NUMBER_OF_KEYS][];
+    private int numberOfKeys = 0;
+    // Open addressing table from the hash of the UTF-8 bytes of a key to its id plus one, zero is
+    // an empty slot. Keys given as bytes are looked up without creating a string.
+    private volatile AtomicIntegerArray idsByBytes = new AtomicIntegerArray(INITIAL_NUMBER_OF_KEYS*2);
+
+    private final int maxNumberOfShapes;
+    private final Map<String, SosShape> shapesBySignature = new ConcurrentHashMap<>();
+    private volatile SosShape[] shapes = new SosShape[0];
+
+    public SosKeyDictionary() {
+        this(0);
+    }
+
+    public SosKeyDictionary(int maxNumberOfShapes) {
+        if (maxNumberOfShapes < 0) {
+            throw new IllegalArgumentException("Maximum number of shapes can not be negative");
+        }
+        this.maxNumberOfShapes = maxNumberOfShapes;
+    }
+
+    /**
+     * Returns the id of the key, or INT_VALUE_FOR_NULL if the key is not in the dictionary.
+     */
+    public int getId(String key) {
+        Integer id = ids.get(key);
+        return id == null ? INT_VALUE_FOR_NULL : id;
+    }
+
+    /**
+     * Returns the id of the key given as UTF-8 bytes, or INT_VALUE_FOR_NULL if the key is not
+     * in the dictionary.
+     */
+    public int getId(byte[] utf8, int offset, int length) {
+        AtomicIntegerArray table = idsByBytes;
+        int mask = table.length() - 1;
+        int slot = SosKey.hash(utf8, offset, length) & mask;
+        int entry;
+        while ((entry = table.get(slot)) != 0) {
+            // The bytes of the key are published before its entry
+            if (equalBytes(keyBytes[entry - 1], utf8, offset, length)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return INT_VALUE_FOR_NULL;
+    }
+
+    public int getOrAddId(String key) {
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        return addId(key);
+    }
+
+    /**
+     * Returns the id of the key given as UTF-8 bytes, a string is only created if the key is new.
+     */
+    public int getOrAddId(byte[] utf8, int offset, int length) {
+        int id = getId(utf8, offset, length);
+        if (id != INT_VALUE_FOR_NULL) {
+            return id;
+        }
+        return addId(new String(utf8, offset, length, StandardCharsets.UTF_8));
+    }
+
+    private static boolean equalBytes(byte[] key, byte[] utf8, int offset, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != utf8[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized int addId(String key) {
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+
+        int newId = numberOfKeys;
+        String[] ks = keys;
+        byte[][] kbs = keyBytes;
+        if (newId == ks.length) {
+            ks = Arrays.copyOf(ks, newId << 1);
+            kbs = Arrays.copyOf(kbs, newId << 1);
+        }
+        ks[newId] = key;
+        kbs[newId] = key.getBytes(StandardCharsets.UTF_8);
+        keys = ks;
+        keyBytes = kbs;
+        numberOfKeys++;
+        addIdByBytes(kbs[newId], newId);
+        // The key is published last, so a reader that finds the id also finds the key
+        ids.put(key, newId);
+        return newId;
+    }
+
+    private void addIdByBytes(byte[] bytes, int id) {
+        AtomicIntegerArray table = idsByBytes;
+        if (numberOfKeys*2 > table.length()) {
+            // Keys are added to a larger table that is published when it is filled
+            table = new AtomicIntegerArray(table.length() << 1);
+            for (int i = 0; i < id; i++) {
+                insertIdByBytes(table, keyBytes[i], i);
+            }
+            insertIdByBytes(table, bytes, id);
+            idsByBytes = table;
+        } else {
+            insertIdByBytes(table, bytes, id);
+        }
+    }
+
+    private static void insertIdByBytes(AtomicIntegerArray table, byte[] bytes, int id) {
+        int mask = table.length() - 1;
+        int slot = SosKey.hash(bytes) & mask;
+        while (table.get(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table.set(slot, id + 1);
+    }
+
+    public String getKey(int id) {
+        String key = id >= 0 && id < keys.length ? keys[id] : null;
+        if (key == null) {
+            throw new IllegalStateException("Key id " + id + " is not in the dictionary");
+        }
+        return key;
+    }
+
+    /**
+     * Returns the key as UTF-8, the array must not be changed.
+     */
+    byte[] getKeyBytes(int id) {
+        byte[] bs = id >= 0 && id < keyBytes.length ? keyBytes[id] : null;
+        if (bs == null) {
+            throw new IllegalStateException("Key id " + id + " is not in the dictionary");
+        }
+        return bs;
+    }
+
+    public boolean supportsShapes() {
+        return maxNumberOfShapes > 0;
+    }
+
+    /**
+     * Returns the shape of the keys and value types, the shape is added if it is new. The
+     * arrays are in any order and are not kept. Returns null if the maximum number of shapes
+     * has been reached.
+     */
+    public SosShape getOrAddShape(String[] keys, byte[] valueTypes) {
+        SosShape shape = findOrCreateShape(keys, valueTypes);
+        return shape == null || shape.isAdded() ? shape : addShape(shape);
+    }
+
+    /**
+     * Returns the added shape of the keys and value types, or a shape that has not been added
+     * if it is new. The arrays are in any order and are not kept. Returns null if the shape is
+     * new and the maximum number of shapes has been reached.
+     */
+    public SosShape findOrCreateShape(String[] keys, byte[] valueTypes) {
+        if (keys.length != valueTypes.length) {
+            throw new IllegalArgumentException("There must be one value type per key");
+        }
+
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> keys[a].compareTo(keys[b]));
+
+        // Keys are prefixed with their length, so a key that holds separators can not be taken for several keys
+        StringBuilder sb = new StringBuilder();
+        for (int i : order) {
+            sb.append((char) valueTypes[i]).append(keys[i].length()).append(':').append(keys[i]);
+        }
+        String signature = sb.toString();
+
+        SosShape shape = shapesBySignature.get(signature);
+        if (shape != null || shapes.length >= maxNumberOfShapes) {
+            return shape;
+        }
+
+        String[] sortedKeys = new String[keys.length];
+        byte[] sortedValueTypes = new byte[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            if (i > 0 && keys[order[i]].equals(keys[order[i - 1]])) {
+                throw new IllegalArgumentException("Key " + keys[order[i]] + " is in the shape more than once");
+            }
+            sortedKeys[i] = keys[order[i]];
+            sortedValueTypes[i] = valueTypes[order[i]];
+        }
+        return new SosShape(-1, signature, sortedKeys, sortedValueTypes);
+    }
+
+    /**
+     * Adds a shape from findOrCreateShape and returns it with its id. If a shape with the same
+     * keys and value types has been added already, that shape is returned. Returns null if the
+     * maximum number of shapes has been reached.
+     */
+    public synchronized SosShape addShape(SosShape shape) {
+        SosShape added = shapesBySignature.get(shape.getSignature());
+        if (added != null || shapes.length == maxNumberOfShapes) {
+            return added;
+        }
+
+        SosShape[] ss = Arrays.copyOf(shapes, shapes.length + 1);
+        added = shape.withId(shapes.length);
+        ss[added.getId()] = added;
+        shapes = ss;
+        // The shape is published last, so a reader that finds the id also finds the shape
+        shapesBySignature.put(added.getSignature(), added);
+        return added;
+    }
+
+    public SosShape getShape(int id) {
+        SosShape[] ss = shapes;
+        if (id < 0 || id >= ss.length) {
+            throw new IllegalStateException("Shape id " + id + " is not in the dictionary");
+        }
+        return ss[id];
+    }
+
+    public int getMaxNumberOfShapes() {
+        return maxNumberOfShapes;
+    }
+
+    public int getNumberOfShapes() {
+        return shapes.length;
+    }
+
+    public synchronized int size() {
+        return numberOfKeys;
+    }
+}
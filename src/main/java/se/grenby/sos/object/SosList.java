@@ -25,62 +25,342 @@ package se.grenby.sos.object;
 
 import se.grenby.sos.byteblock.ByteBlockReadPointer;
 import se.grenby.sos.byteblock.ByteBlockReader;
-import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockReadPointer;
+import se.grenby.sos.byteblock.LongByteBlockReader;
+import se.grenby.sos.byteblock.segmentedbuffer.SegmentedBufferByteBlockReadPointer;
 import se.grenby.sos.json.JsonDataList;
 
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
 
+import static se.grenby.sos.constant.PrimitiveConstants.INT_VALUE_FOR_NULL;
 import static se.grenby.sos.constant.SosConstants.*;
-import static se.grenby.sos.constant.SosConstants.DOUBLE_VALUE;
-import static se.grenby.sos.constant.SosConstants.FLOAT_VALUE;
 
 /**
  * Created by peteri on 07/02/16.
+ *
+ * An indexed list has a table of element offsets, so get(i) is one table read. Other lists
+ * are scanned from the first element. A sub list is a view of a part of the list, in the
+ * same block.
+ *
+ * A packed array is a list of ints, longs, floats or doubles without value types, element i
+ * is read at a fixed position. The primitive getters and iterators read it without boxing and
+ * the buffer views are read-only buffers over its values. On other lists the primitive getters
+ * and iterators unbox the numbers of the list.
+ *
+ * The values of a packed array are big-endian like all other values. The buffer views are
+ * big-endian too, so on a little-endian host every get of a view swaps the bytes of the value
+ * instead of being a plain memory load.
  */
 public class SosList extends SosObject implements Iterable<Object> {
 
     private final int listStartPosition;
     private final int listTotalLength;
+    // An indexed list has its element offsets at the index position, relative to the elements position
+    private final boolean indexed;
+    private final int indexPosition;
+    private final int elementsPosition;
+    // Value type and size of the elements of a packed array, 0 for other lists
+    private final byte elementType;
+    private final int elementSize;
+    // Counted at the first call to size() if the list is not indexed or packed
+    private int numberOfElements = INT_VALUE_FOR_NULL;
 
     public SosList(ByteBlockReader blockReader, int blockPointer) {
-        this(new SharedBufferByteBlockReadPointer(blockReader, blockPointer));
+        this(blockReader.getBlock(blockPointer));
+    }
+
+    public SosList(LongByteBlockReader blockReader, long blockPointer) {
+        this(new SegmentedBufferByteBlockReadPointer(blockReader, blockPointer));
     }
 
     public SosList(ByteBlockReadPointer byteBlockReadPointer) {
-        this(byteBlockReadPointer, 0);
+        this(byteBlockReadPointer, 0, null);
     }
 
 
-    SosList(ByteBlockReadPointer byteBlockReadPointer, int position) {
-        super(byteBlockReadPointer, position);
+    /**
+     * List that may hold maps with key ids of the dictionary.
+     */
+    public SosList(ByteBlockReader blockReader, int blockPointer, SosKeyDictionary keyDictionary) {
+        this(blockReader.getBlock(blockPointer), 0, keyDictionary);
+    }
 
-        int blockPosition = objectStartPosition;
+    SosList(ByteBlockReadPointer byteBlockReadPointer, int position, SosKeyDictionary keyDictionary) {
+        super(byteBlockReadPointer, position, keyDictionary);
 
-        byte valueType = byteBlockReadPointer.getByte(blockPosition);
-        blockPosition += Byte.BYTES;
-        if (valueType == LIST_VALUE) {
-            listTotalLength = byteBlockReadPointer.getShort(blockPosition);
-            blockPosition += Short.BYTES;
-            listStartPosition = blockPosition;
+        SosPosition blockPosition = new SosPosition(objectStartPosition);
+
+        byte valueType = byteBlockReadPointer.getByte(blockPosition.position());
+        blockPosition.incByte();
+        if (isListValue(valueType)) {
+            int listEndPosition = readMapOrListLength(valueType, blockPosition) + blockPosition.position();
+            indexed = valueType == LIST_INDEXED_VALUE;
+            if (indexed) {
+                numberOfElements = byteBlockReadPointer.getInt(blockPosition.position());
+                blockPosition.incInteger();
+                indexPosition = blockPosition.position();
+                blockPosition.addLength(numberOfElements * Integer.BYTES);
+            } else {
+                indexPosition = 0;
+            }
+            if (isArrayValue(valueType)) {
+                elementType = arrayElementType(valueType);
+                elementSize = arrayElementSize(valueType);
+                numberOfElements = byteBlockReadPointer.getInt(blockPosition.position());
+                blockPosition.incInteger();
+                blockPosition.addLength(arrayDataPosition(byteBlockReadPointer, blockPosition.position()) - blockPosition.position());
+            } else {
+                elementType = 0;
+                elementSize = 0;
+            }
+            elementsPosition = blockPosition.position();
+            listStartPosition = blockPosition.position();
+            listTotalLength = listEndPosition - listStartPosition;
         } else {
             throw new RuntimeException("This is not a list structure " + valueType);
         }
     }
 
+    private SosList(SosList list, int fromIndex, int toIndex) {
+        super(list.byteBlockReadPointer, list.objectStartPosition, list.keyDictionary);
+
+        int listEndPosition = list.listStartPosition + list.listTotalLength;
+        listStartPosition = list.elementPosition(fromIndex);
+        listTotalLength = (toIndex == list.size() ? listEndPosition : list.elementPosition(toIndex)) - listStartPosition;
+        indexed = list.indexed;
+        elementType = list.elementType;
+        elementSize = list.elementSize;
+        indexPosition = list.indexPosition + fromIndex * Integer.BYTES;
+        elementsPosition = list.elementsPosition;
+        numberOfElements = toIndex - fromIndex;
+    }
+
+    public int size() {
+        if (numberOfElements == INT_VALUE_FOR_NULL) {
+            int count = 0;
+            int listEndPosition = listStartPosition + listTotalLength;
+            for (int position = listStartPosition; position < listEndPosition; position = skipValueTypeAndValue(position)) {
+                count++;
+            }
+            numberOfElements = count;
+        }
+        return numberOfElements;
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    public boolean isPacked() {
+        return elementType != 0;
+    }
+
+    /**
+     * Returns the value type of the elements of a packed array, or 0 if the list is not packed.
+     */
+    public byte getElementType() {
+        return elementType;
+    }
+
+    public Object get(int index) {
+        checkIndex(index);
+        return extractElement(new SosPosition(elementPosition(index)));
+    }
+
+    public int getInt(int index) {
+        if (elementType == INTEGER_VALUE) {
+            checkIndex(index);
+            return byteBlockReadPointer.getInt(elementPosition(index));
+        }
+        return ((Number) get(index)).intValue();
+    }
+
+    public long getLong(int index) {
+        if (elementType == LONG_VALUE) {
+            checkIndex(index);
+            return byteBlockReadPointer.getLong(elementPosition(index));
+        }
+        return ((Number) get(index)).longValue();
+    }
+
+    public float getFloat(int index) {
+        if (elementType == FLOAT_VALUE) {
+            checkIndex(index);
+            return byteBlockReadPointer.getFloat(elementPosition(index));
+        }
+        return ((Number) get(index)).floatValue();
+    }
+
+    public double getDouble(int index) {
+        if (elementType == DOUBLE_VALUE) {
+            checkIndex(index);
+            return byteBlockReadPointer.getDouble(elementPosition(index));
+        }
+        return ((Number) get(index)).doubleValue();
+    }
+
+    public PrimitiveIterator.OfInt intIterator() {
+        return new PrimitiveIterator.OfInt() {
+            private final Iterator<Object> objects = elementType == INTEGER_VALUE ? null : iterator();
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return objects == null ? index < size() : objects.hasNext();
+            }
+
+            @Override
+            public int nextInt() {
+                if (objects != null) {
+                    return ((Number) objects.next()).intValue();
+                } else if (index >= size()) {
+                    throw new NoSuchElementException();
+                }
+                return byteBlockReadPointer.getInt(elementPosition(index++));
+            }
+        };
+    }
+
+    public PrimitiveIterator.OfLong longIterator() {
+        return new PrimitiveIterator.OfLong() {
+            private final Iterator<Object> objects = elementType == LONG_VALUE ? null : iterator();
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return objects == null ? index < size() : objects.hasNext();
+            }
+
+            @Override
+            public long nextLong() {
+                if (objects != null) {
+                    return ((Number) objects.next()).longValue();
+                } else if (index >= size()) {
+                    throw new NoSuchElementException();
+                }
+                return byteBlockReadPointer.getLong(elementPosition(index++));
+            }
+        };
+    }
+
+    /**
+     * Iterator of the elements as doubles, floats of a packed array are widened without boxing.
+     */
+    public PrimitiveIterator.OfDouble doubleIterator() {
+        return new PrimitiveIterator.OfDouble() {
+            private final boolean packed = elementType == DOUBLE_VALUE || elementType == FLOAT_VALUE;
+            private final Iterator<Object> objects = packed ? null : iterator();
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return objects == null ? index < size() : objects.hasNext();
+            }
+
+            @Override
+            public double nextDouble() {
+                if (objects != null) {
+                    return ((Number) objects.next()).doubleValue();
+                } else if (index >= size()) {
+                    throw new NoSuchElementException();
+                } else if (elementType == FLOAT_VALUE) {
+                    return byteBlockReadPointer.getFloat(elementPosition(index++));
+                }
+                return byteBlockReadPointer.getDouble(elementPosition(index++));
+            }
+        };
+    }
+
+    public IntBuffer asIntBuffer() {
+        return packedBuffer(INTEGER_VALUE).asIntBuffer();
+    }
+
+    public LongBuffer asLongBuffer() {
+        return packedBuffer(LONG_VALUE).asLongBuffer();
+    }
+
+    public FloatBuffer asFloatBuffer() {
+        return packedBuffer(FLOAT_VALUE).asFloatBuffer();
+    }
+
+    public DoubleBuffer asDoubleBuffer() {
+        return packedBuffer(DOUBLE_VALUE).asDoubleBuffer();
+    }
+
+    private ByteBuffer packedBuffer(byte valueType) {
+        if (elementType != valueType) {
+            throw new IllegalStateException("List is not a packed array of value type " + valueType);
+        }
+        return byteBlockReadPointer.getReadOnlyBuffer(listStartPosition, size() * elementSize);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " is not in list of size " + size());
+        }
+    }
+
+    /**
+     * Returns a view of the elements from the index, inclusive, to the index, exclusive.
+     */
+    public SosList subList(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > size() || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("Sub list " + fromIndex + " to " + toIndex + " is not in list of size " + size());
+        }
+        return new SosList(this, fromIndex, toIndex);
+    }
+
+    /**
+     * Returns the position of the value type of the element, the index must be in the list.
+     */
+    private int elementPosition(int index) {
+        if (elementType != 0) {
+            return listStartPosition + index * elementSize;
+        } else if (indexed) {
+            return elementsPosition + byteBlockReadPointer.getInt(indexPosition + index * Integer.BYTES);
+        }
+        int position = listStartPosition;
+        for (int i = 0; i < index; i++) {
+            position = skipValueTypeAndValue(position);
+        }
+        return position;
+    }
+
+    int getListStartPosition() {
+        return listStartPosition;
+    }
+
+    int getListTotalLength() {
+        return listTotalLength;
+    }
+
+    private Object extractElement(SosPosition position) {
+        if (elementType != 0) {
+            return extractValue(Object.class, elementType, position);
+        }
+        return extractObject(position);
+    }
+
     private Object extractObject(SosPosition position) {
         Object obj;
 
         int valuePosition = position.position();
         int valueType = byteBlockReadPointer.getByte(position.position());
         position.incByte();
-        if (valueType == MAP_VALUE) {
-            obj = new SosMap(byteBlockReadPointer, valuePosition);
-            skipMapOrListValueInByteBuffer(position);
-        } else if (valueType == LIST_VALUE) {
-            obj = new SosList(byteBlockReadPointer, valuePosition);
-            skipMapOrListValueInByteBuffer(position);
+        if (isMapValue(valueType)) {
+            obj = new SosMap(byteBlockReadPointer, valuePosition, keyDictionary);
+            skipMapOrListValueInByteBuffer(valueType, position);
+        } else if (isListValue(valueType)) {
+            obj = new SosList(byteBlockReadPointer, valuePosition, keyDictionary);
+            skipMapOrListValueInByteBuffer(valueType, position);
         } else if (valueType == BYTE_VALUE) {
             obj = extractValue(Byte.class, valueType, position);
         } else if (valueType == SHORT_VALUE) {
@@ -103,11 +383,9 @@ public class SosList extends SosObject implements Iterable<Object> {
     }
 
     public JsonDataList extractJSonDataList() {
-        SosPosition position = new SosPosition(listStartPosition);
         List<Object> list = new ArrayList<>();
 
-        while (position.position() < listStartPosition + listTotalLength) {
-            Object obj = extractObject(position);
+        for (Object obj : this) {
             if (obj instanceof SosList) {
                 obj = ((SosList) obj).extractJSonDataList();
             } else if (obj instanceof SosMap) {
@@ -142,7 +420,7 @@ public class SosList extends SosObject implements Iterable<Object> {
 
         @Override
         public Object next() {
-            return extractObject(position);
+            return extractElement(position);
         }
 
         @Override
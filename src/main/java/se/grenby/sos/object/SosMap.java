@@ -25,8 +25,9 @@ package se.grenby.sos.object;
 
 import se.grenby.sos.byteblock.ByteBlockReadPointer;
 import se.grenby.sos.byteblock.ByteBlockReader;
+import se.grenby.sos.byteblock.LongByteBlockReader;
+import se.grenby.sos.byteblock.segmentedbuffer.SegmentedBufferByteBlockReadPointer;
 import se.grenby.sos.byteblock.uniquebuffer.UniqueBufferByteBlockReadPointer;
-import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockReadPointer;
 import se.grenby.sos.json.JsonDataMap;
 
 import java.nio.ByteBuffer;
@@ -34,6 +35,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 
+import static se.grenby.sos.constant.PrimitiveConstants.INT_VALUE_FOR_NULL;
 import static se.grenby.sos.constant.SosConstants.*;
 
 /**
@@ -43,13 +45,29 @@ public class SosMap extends SosObject implements Iterable<Map.Entry<String, Obje
 
     private final int mapStartPosition;
     private final int mapTotalLength;
+    private final boolean keyIds;
+    // Shape of a shaped map, the map start position is then the position of the first slot
+    private final SosShape shape;
+    // A map with sorted keys has a table of entry offsets, a hashed map has a table of slots with
+    // key hash and entry offset. Entry offsets are relative to the map start position.
+    private final boolean sortedKeys;
+    private final boolean hashedKeys;
+    private final int indexSize;
+    private final int indexPosition;
+
+    private static final long NO_VALUE = -1L;
+    private static final int HASH_SLOT_BYTES = Integer.BYTES + Integer.BYTES;
 
     public SosMap(ByteBuffer byteBuffer) {
         this(new UniqueBufferByteBlockReadPointer(byteBuffer));
     }
 
     public SosMap(ByteBlockReader blockReader, int blockPointer) {
-        this(new SharedBufferByteBlockReadPointer(blockReader, blockPointer));
+        this(blockReader.getBlock(blockPointer));
+    }
+
+    public SosMap(LongByteBlockReader blockReader, long blockPointer) {
+        this(new SegmentedBufferByteBlockReadPointer(blockReader, blockPointer));
     }
 
     public SosMap(ByteBlockReadPointer byteBlockReadPointer) {
@@ -57,21 +75,109 @@ public class SosMap extends SosObject implements Iterable<Map.Entry<String, Obje
     }
 
     public SosMap(ByteBlockReadPointer byteBlockReadPointer, int position) {
-        super(byteBlockReadPointer, position);
+        this(byteBlockReadPointer, position, null);
+    }
+
+    /**
+     * Map that may hold key ids of the dictionary, the dictionary is passed on to inner maps and lists.
+     */
+    public SosMap(ByteBlockReader blockReader, int blockPointer, SosKeyDictionary keyDictionary) {
+        this(blockReader.getBlock(blockPointer), 0, keyDictionary);
+    }
+
+    public SosMap(ByteBlockReadPointer byteBlockReadPointer, int position, SosKeyDictionary keyDictionary) {
+        super(byteBlockReadPointer, position, keyDictionary);
 
-        int blockPosition = objectStartPosition;
+        SosPosition blockPosition = new SosPosition(objectStartPosition);
 
-        byte valueType = byteBlockReadPointer.getByte(blockPosition);
-        blockPosition += Byte.BYTES;
-        if (valueType == MAP_VALUE) {
-            mapTotalLength = byteBlockReadPointer.getShort(blockPosition);
-            blockPosition += Short.BYTES;
-            mapStartPosition = blockPosition;
+        byte valueType = byteBlockReadPointer.getByte(blockPosition.position());
+        blockPosition.incByte();
+        if (isMapValue(valueType)) {
+            int mapEndPosition = readMapOrListLength(valueType, blockPosition) + blockPosition.position();
+            keyIds = valueType == MAP_DICT_VALUE;
+            if ((keyIds || valueType == MAP_SHAPE_VALUE) && keyDictionary == null) {
+                throw new IllegalStateException("Map has key ids or a shape but no key dictionary was given");
+            }
+            shape = valueType == MAP_SHAPE_VALUE ? keyDictionary.getShape(readVarint(blockPosition)) : null;
+            sortedKeys = valueType == MAP_SORTED_VALUE;
+            hashedKeys = valueType == MAP_HASHED_VALUE;
+            if (sortedKeys) {
+                indexSize = byteBlockReadPointer.getInt(blockPosition.position());
+                blockPosition.incInteger();
+                indexPosition = blockPosition.position();
+                blockPosition.addLength(indexSize * Integer.BYTES);
+            } else if (hashedKeys) {
+                // The number of entries is followed by the number of slots
+                blockPosition.incInteger();
+                indexSize = byteBlockReadPointer.getInt(blockPosition.position());
+                blockPosition.incInteger();
+                indexPosition = blockPosition.position();
+                blockPosition.addLength(indexSize * HASH_SLOT_BYTES);
+            } else {
+                indexSize = 0;
+                indexPosition = 0;
+            }
+            mapStartPosition = blockPosition.position();
+            mapTotalLength = mapEndPosition - mapStartPosition;
         } else {
             throw new RuntimeException("This is not a map structure " + valueType);
         }
     }
 
+    public SosMap getMapValue(SosKey key) {
+        long value = findValue(key);
+        if (value == NO_VALUE) {
+            return null;
+        } else if (!isMapValue((byte) (value >>> Integer.SIZE))) {
+            throw new IllegalArgumentException("Value of key " + key + " is not a map");
+        }
+        return new SosMap(byteBlockReadPointer, (int) value - Byte.BYTES, keyDictionary);
+    }
+
+    public SosList getListValue(SosKey key) {
+        long value = findValue(key);
+        if (value == NO_VALUE) {
+            return null;
+        } else if (!isListValue((byte) (value >>> Integer.SIZE))) {
+            throw new IllegalArgumentException("Value of key " + key + " is not a list");
+        }
+        return new SosList(byteBlockReadPointer, (int) value - Byte.BYTES, keyDictionary);
+    }
+
+    public byte getByteValue(SosKey key) {
+        return byteBlockReadPointer.getByte(valuePosition(key, BYTE_VALUE));
+    }
+
+    public short getShortValue(SosKey key) {
+        return byteBlockReadPointer.getShort(valuePosition(key, SHORT_VALUE));
+    }
+
+    public int getIntValue(SosKey key) {
+        return byteBlockReadPointer.getInt(valuePosition(key, INTEGER_VALUE));
+    }
+
+    public long getLongValue(SosKey key) {
+        return byteBlockReadPointer.getLong(valuePosition(key, LONG_VALUE));
+    }
+
+    public float getFloatValue(SosKey key) {
+        return byteBlockReadPointer.getFloat(valuePosition(key, FLOAT_VALUE));
+    }
+
+    public double getDoubleValue(SosKey key) {
+        return byteBlockReadPointer.getDouble(valuePosition(key, DOUBLE_VALUE));
+    }
+
+    public String getStringValue(SosKey key) {
+        long value = findValue(key);
+        if (value == NO_VALUE) {
+            return null;
+        } else if ((byte) (value >>> Integer.SIZE) != STRING_VALUE) {
+            throw new IllegalArgumentException("Value of key " + key + " is not a string");
+        }
+        return getStringFromByteBuffer(new SosPosition((int) value));
+    }
+
     public SosMap getMapValue(String key) {
         return extractValueByKey(key, SosMap.class);
     }
@@ -108,23 +214,38 @@ public class SosMap extends SosObject implements Iterable<Map.Entry<String, Obje
         return extractValueByKey(key, String.class);
     }
 
+    /**
+     * Returns the shape of the map, or null if the map has no shape.
+     */
+    public SosShape getShape() {
+        return shape;
+    }
+
     private <T> T extractValueByKey(String key, Class<T> klass) {
+        if (shape != null) {
+            int fieldIndex = shape.getFieldIndex(key);
+            return fieldIndex < 0 ? null : klass.cast(extractShapeValue(fieldIndex));
+        }
+
+        if (sortedKeys || hashedKeys) {
+            SosKey sosKey = SosKey.of(key);
+            int valueTypePosition = sortedKeys ? findSortedEntryValue(sosKey) : findHashedEntryValue(sosKey);
+            return valueTypePosition == INT_VALUE_FOR_NULL ? null : extractValueOfEntry(klass, new SosPosition(valueTypePosition));
+        }
+
         T value = null;
         SosPosition position = new SosPosition(mapStartPosition);
 
+        int keyId = keyIds ? keyDictionary.getId(key) : INT_VALUE_FOR_NULL;
+        if (keyIds && keyId == INT_VALUE_FOR_NULL) {
+            // A key that is not in the dictionary is in no map
+            return null;
+        }
+
         while (position.position() < mapStartPosition + mapTotalLength) {
-            String mk = getStringFromByteBuffer(position);
-            if (key.equals(mk)) {
-                int valuePosition = position.position();
-                int valueType = byteBlockReadPointer.getByte(position.position());
-                position.incByte();
-                if (valueType == MAP_VALUE) {
-                    value = klass.cast(new SosMap(byteBlockReadPointer, valuePosition));
-                } else if (valueType == LIST_VALUE) {
-                    value = klass.cast(new SosList(byteBlockReadPointer, valuePosition));
-                } else {
-                    value = extractValue(klass, valueType, position);
-                }
+            boolean found = keyIds ? readVarint(position) == keyId : key.equals(getStringFromByteBuffer(position));
+            if (found) {
+                value = extractValueOfEntry(klass, position);
                 break;
             } else {
                 skipValueTypeAndValueInByteBuffer(position);
@@ -134,12 +255,153 @@ public class SosMap extends SosObject implements Iterable<Map.Entry<String, Obje
         return value;
     }
 
+    /**
+     * Reads the value of an entry, the position is right after the key.
+     */
+    private <T> T extractValueOfEntry(Class<T> klass, SosPosition position) {
+        int valuePosition = position.position();
+        int valueType = byteBlockReadPointer.getByte(position.position());
+        position.incByte();
+        if (isMapValue(valueType)) {
+            return klass.cast(new SosMap(byteBlockReadPointer, valuePosition, keyDictionary));
+        } else if (isListValue(valueType)) {
+            return klass.cast(new SosList(byteBlockReadPointer, valuePosition, keyDictionary));
+        } else {
+            return extractValue(klass, valueType, position);
+        }
+    }
+
+    /**
+     * Binary search of the entry offsets, the keys are compared in place. Returns the position
+     * of the value type of the entry, or INT_VALUE_FOR_NULL if the key is not in the map.
+     */
+    private int findSortedEntryValue(SosKey key) {
+        int low = 0;
+        int high = indexSize - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entryPosition = mapStartPosition + byteBlockReadPointer.getInt(indexPosition + middle * Integer.BYTES);
+            int keyLength = readVarintAt(entryPosition);
+            int keyPosition = skipVarint(entryPosition);
+            int c = key.compareStored(byteBlockReadPointer, keyPosition, keyLength);
+            if (c < 0) {
+                low = middle + 1;
+            } else if (c > 0) {
+                high = middle - 1;
+            } else {
+                return keyPosition + keyLength;
+            }
+        }
+        return INT_VALUE_FOR_NULL;
+    }
+
+    /**
+     * Probes the slots from the slot of the key hash until the key or an empty slot is found.
+     * Returns the position of the value type of the entry, or INT_VALUE_FOR_NULL if the key is
+     * not in the map.
+     */
+    private int findHashedEntryValue(SosKey key) {
+        int slotMask = indexSize - 1;
+        int slot = key.hash() & slotMask;
+        while (true) {
+            int slotPosition = indexPosition + slot * HASH_SLOT_BYTES;
+            int entryOffset = byteBlockReadPointer.getInt(slotPosition + Integer.BYTES);
+            if (entryOffset == INT_VALUE_FOR_NULL) {
+                return INT_VALUE_FOR_NULL;
+            }
+            if (byteBlockReadPointer.getInt(slotPosition) == key.hash()) {
+                int entryPosition = mapStartPosition + entryOffset;
+                int keyLength = readVarintAt(entryPosition);
+                int keyPosition = skipVarint(entryPosition);
+                if (key.matchesStored(byteBlockReadPointer, keyPosition, keyLength)) {
+                    return keyPosition + keyLength;
+                }
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    /**
+     * Scans the entries for the key without allocating. Returns the position of the value type
+     * of the entry, or INT_VALUE_FOR_NULL if the key is not in the map.
+     */
+    private int findEntryValue(SosKey key) {
+        int position = mapStartPosition;
+        int mapEndPosition = mapStartPosition + mapTotalLength;
+        if (keyIds) {
+            int keyId = keyDictionary.getId(key.getKey());
+            if (keyId == INT_VALUE_FOR_NULL) {
+                return INT_VALUE_FOR_NULL;
+            }
+            while (position < mapEndPosition) {
+                int id = readVarintAt(position);
+                position = skipVarint(position);
+                if (id == keyId) {
+                    return position;
+                }
+                position = skipValueTypeAndValue(position);
+            }
+        } else {
+            while (position < mapEndPosition) {
+                int keyLength = readStringLengthAt(position);
+                position = skipStringLength(position);
+                if (key.matchesStored(byteBlockReadPointer, position, keyLength)) {
+                    return position + keyLength;
+                }
+                position = skipValueTypeAndValue(position + keyLength);
+            }
+        }
+        return INT_VALUE_FOR_NULL;
+    }
+
+    /**
+     * Finds the value of the key in any layout. Returns the value type in the high int and the
+     * position of the value after its value type in the low int, or NO_VALUE.
+     */
+    private long findValue(SosKey key) {
+        if (shape != null) {
+            int fieldIndex = shape.getFieldIndex(key.getKey());
+            if (fieldIndex < 0) {
+                return NO_VALUE;
+            }
+            byte valueType = shape.getValueType(fieldIndex);
+            int slotPosition = mapStartPosition + shape.getOffset(fieldIndex);
+            if (SosShape.isSlotValue(valueType)) {
+                return ((long) valueType << Integer.SIZE) | slotPosition;
+            }
+            return valueAt(mapStartPosition + byteBlockReadPointer.getInt(slotPosition));
+        }
+
+        int valueTypePosition;
+        if (sortedKeys) {
+            valueTypePosition = findSortedEntryValue(key);
+        } else if (hashedKeys) {
+            valueTypePosition = findHashedEntryValue(key);
+        } else {
+            valueTypePosition = findEntryValue(key);
+        }
+        return valueTypePosition == INT_VALUE_FOR_NULL ? NO_VALUE : valueAt(valueTypePosition);
+    }
+
+    private long valueAt(int valueTypePosition) {
+        return ((long) byteBlockReadPointer.getByte(valueTypePosition) << Integer.SIZE) | (valueTypePosition + Byte.BYTES);
+    }
+
+    private int valuePosition(SosKey key, byte valueType) {
+        long value = findValue(key);
+        if (value == NO_VALUE) {
+            throw new IllegalArgumentException("Key " + key + " is not in the map");
+        }
+        if ((byte) (value >>> Integer.SIZE) != valueType) {
+            throw new IllegalArgumentException("Value of key " + key + " is not of value type " + valueType);
+        }
+        return (int) value;
+    }
+
     public JsonDataMap extractJSonDataMap() {
-        SosPosition position = new SosPosition(mapStartPosition);
         Map<String, Object> map = new HashMap<>();
 
-        while (position.position() < mapStartPosition + mapTotalLength) {
-            SosMapEntry entry = extractEntry(position);
+        for (Map.Entry<String, Object> entry : this) {
             String key = entry.getKey();
             Object value = entry.getValue();
 
@@ -156,39 +418,54 @@ public class SosMap extends SosObject implements Iterable<Map.Entry<String, Obje
     }
 
     private SosMapEntry extractEntry(SosPosition position) {
-        String mk = getStringFromByteBuffer(position);
+        String mk = keyIds ? keyDictionary.getKey(readVarint(position)) : getStringFromByteBuffer(position);
+        return new SosMapEntry(mk, extractValueTypeAndValue(position));
+    }
+
+    /**
+     * Reads the value of the field of a shaped map, from its slot or from the offset in its slot.
+     */
+    private Object extractShapeValue(int fieldIndex) {
+        byte valueType = shape.getValueType(fieldIndex);
+        int slotPosition = mapStartPosition + shape.getOffset(fieldIndex);
+        if (SosShape.isSlotValue(valueType)) {
+            return extractValue(Object.class, valueType, new SosPosition(slotPosition));
+        } else {
+            return extractValueTypeAndValue(new SosPosition(mapStartPosition + byteBlockReadPointer.getInt(slotPosition)));
+        }
+    }
+
+    private Object extractValueTypeAndValue(SosPosition position) {
         int valuePosition = position.position();
         int valueType = byteBlockReadPointer.getByte(position.position());
         position.incByte();
 
-        SosMapEntry entry;
-        if (valueType == MAP_VALUE) {
-            SosMap cdm = new SosMap(byteBlockReadPointer, valuePosition);
-            entry = new SosMapEntry(mk, cdm);
-            skipMapOrListValueInByteBuffer(position);
-        } else if (valueType == LIST_VALUE) {
-            SosList cdl = new SosList(byteBlockReadPointer, valuePosition);
-            entry = new SosMapEntry(mk, cdl);
-            skipMapOrListValueInByteBuffer(position);
+        Object value;
+        if (isMapValue(valueType)) {
+            value = new SosMap(byteBlockReadPointer, valuePosition, keyDictionary);
+            skipMapOrListValueInByteBuffer(valueType, position);
+        } else if (isListValue(valueType)) {
+            value = new SosList(byteBlockReadPointer, valuePosition, keyDictionary);
+            skipMapOrListValueInByteBuffer(valueType, position);
         } else if (valueType == BYTE_VALUE) {
-            entry = new SosMapEntry(mk, extractValue(Byte.class, valueType, position));
+            value = extractValue(Byte.class, valueType, position);
         } else if (valueType == SHORT_VALUE) {
-            entry = new SosMapEntry(mk, extractValue(Short.class, valueType, position));
+            value = extractValue(Short.class, valueType, position);
         } else if (valueType == INTEGER_VALUE) {
-            entry = new SosMapEntry(mk, extractValue(Integer.class, valueType, position));
+            value = extractValue(Integer.class, valueType, position);
         } else if (valueType == LONG_VALUE) {
-            entry = new SosMapEntry(mk, extractValue(Long.class, valueType, position));
+            value = extractValue(Long.class, valueType, position);
         } else if (valueType == STRING_VALUE) {
-            entry = new SosMapEntry(mk, extractValue(String.class, valueType, position));
+            value = extractValue(String.class, valueType, position);
         } else if (valueType == FLOAT_VALUE) {
-            entry = new SosMapEntry(mk, extractValue(Float.class, valueType, position));
+            value = extractValue(Float.class, valueType, position);
         } else if (valueType == DOUBLE_VALUE) {
-            entry = new SosMapEntry(mk, extractValue(Double.class, valueType, position));
+            value = extractValue(Double.class, valueType, position);
         } else {
             throw new IllegalStateException(valueType + " is not a correct value type.");
         }
 
-        return entry;
+        return value;
     }
 
     @Override
@@ -225,6 +502,7 @@ public class SosMap extends SosObject implements Iterable<Map.Entry<String, Obje
     private class SosMapIterator implements Iterator<Map.Entry<String, Object>> {
 
         private final SosPosition position;
+        private int fieldIndex = 0;
 
         public SosMapIterator() {
             position = new SosPosition(mapStartPosition);
@@ -232,7 +510,9 @@ public class SosMap extends SosObject implements Iterable<Map.Entry<String, Obje
 
         @Override
         public boolean hasNext() {
-            if (position.position() < mapStartPosition + mapTotalLength) {
+            if (shape != null) {
+                return fieldIndex < shape.getNumberOfFields();
+            } else if (position.position() < mapStartPosition + mapTotalLength) {
                 return true;
             } else {
                 return false;
@@ -241,6 +521,11 @@ public class SosMap extends SosObject implements Iterable<Map.Entry<String, Obje
 
         @Override
         public Map.Entry<String, Object> next() {
+            if (shape != null) {
+                SosMapEntry entry = new SosMapEntry(shape.getKey(fieldIndex), extractShapeValue(fieldIndex));
+                fieldIndex++;
+                return entry;
+            }
             return extractEntry(position);
         }
 
@@ -32,14 +32,116 @@ import static se.grenby.sos.util.BitUtil.HEXES;
 
 /**
  * Created by peteri on 30/01/16.
+ *
+ * The format version is given by the value type of the map or list. Version 1 has a short
+ * size and string lengths of one byte, version 2 has an int size and string lengths as
+ * varints. Strings of a map or list are read in the version of that map or list, and every
+ * map or list in it tells its own version, so both versions can be read.
  */
 public abstract class SosObject {
     protected final ByteBlockReadPointer byteBlockReadPointer;
     protected final int objectStartPosition;
+    protected final int formatVersion;
+    protected final SosKeyDictionary keyDictionary;
 
-    SosObject(ByteBlockReadPointer byteBlockReadPointer, int position) {
+    SosObject(ByteBlockReadPointer byteBlockReadPointer, int position, SosKeyDictionary keyDictionary) {
         this.byteBlockReadPointer = byteBlockReadPointer;
         this.objectStartPosition = position;
+        this.formatVersion = formatVersion(byteBlockReadPointer.getByte(position));
+        this.keyDictionary = keyDictionary;
+    }
+
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    static int formatVersion(int valueType) {
+        return valueType == MAP_V2_VALUE || valueType == LIST_V2_VALUE || valueType == MAP_DICT_VALUE
+                || valueType == MAP_SHAPE_VALUE || valueType == MAP_SORTED_VALUE
+                || valueType == MAP_HASHED_VALUE || valueType == LIST_INDEXED_VALUE || isArrayValue(valueType) ? FORMAT_VERSION_2 : FORMAT_VERSION_1;
+    }
+
+    static boolean isMapValue(int valueType) {
+        return valueType == MAP_VALUE || valueType == MAP_V2_VALUE || valueType == MAP_DICT_VALUE || valueType == MAP_SHAPE_VALUE
+                || valueType == MAP_SORTED_VALUE || valueType == MAP_HASHED_VALUE;
+    }
+
+    static boolean isListValue(int valueType) {
+        return valueType == LIST_VALUE || valueType == LIST_V2_VALUE || valueType == LIST_INDEXED_VALUE || isArrayValue(valueType);
+    }
+
+    static boolean isArrayValue(int valueType) {
+        return valueType >= INT_ARRAY_VALUE && valueType <= DOUBLE_ARRAY_VALUE;
+    }
+
+    /**
+     * Returns the value type of the elements of a packed array.
+     */
+    static byte arrayElementType(int valueType) {
+        switch (valueType) {
+            case INT_ARRAY_VALUE:
+                return INTEGER_VALUE;
+            case LONG_ARRAY_VALUE:
+                return LONG_VALUE;
+            case FLOAT_ARRAY_VALUE:
+                return FLOAT_VALUE;
+            case DOUBLE_ARRAY_VALUE:
+                return DOUBLE_VALUE;
+            default:
+                throw new IllegalArgumentException("Value type " + valueType + " is not a packed array");
+        }
+    }
+
+    /**
+     * Returns the size of the elements of a packed array, which is also their alignment.
+     */
+    public static int arrayElementSize(int valueType) {
+        return valueType == LONG_ARRAY_VALUE || valueType == DOUBLE_ARRAY_VALUE ? Long.BYTES : Integer.BYTES;
+    }
+
+    /**
+     * Returns the position of the values of a packed array. The byte at the position holds the
+     * number of padding bytes that follow it, the values come after the padding.
+     */
+    static int arrayDataPosition(ByteBlockReadPointer byteBlockReadPointer, int position) {
+        return position + Byte.BYTES + byteBlockReadPointer.getByte(position);
+    }
+
+    /**
+     * Reads the size of a map or list, the position is right after its value type.
+     */
+    protected int readMapOrListLength(int valueType, SosPosition position) {
+        int mlLength;
+        if (formatVersion(valueType) == FORMAT_VERSION_2) {
+            mlLength = byteBlockReadPointer.getInt(position.position());
+            position.incInteger();
+        } else {
+            mlLength = byteBlockReadPointer.getShort(position.position());
+            position.incShort();
+        }
+        return mlLength;
+    }
+
+    protected int readStringLength(SosPosition position) {
+        if (formatVersion == FORMAT_VERSION_1) {
+            int length = byteBlockReadPointer.getByte(position.position()) & 0xFF;
+            position.incByte();
+            return length;
+        }
+        return readVarint(position);
+    }
+
+    protected int readVarint(SosPosition position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = byteBlockReadPointer.getByte(position.position());
+            position.incByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
     }
 
     @Override
@@ -83,54 +185,97 @@ public abstract class SosObject {
     }
 
     protected void skipValueTypeAndValueInByteBuffer(SosPosition position) {
-        byte valueType = byteBlockReadPointer.getByte(position.position());
-        position.incByte();
+        position.addLength(skipValueTypeAndValue(position.position()) - position.position());
+    }
+
+    /**
+     * Returns the position after the value type and value at the position, nothing is allocated.
+     */
+    protected int skipValueTypeAndValue(int position) {
+        byte valueType = byteBlockReadPointer.getByte(position);
+        position += Byte.BYTES;
         switch (valueType) {
             case BYTE_VALUE:
-                position.incByte();
-                break;
+                return position + Byte.BYTES;
             case SHORT_VALUE:
-                position.incShort();
-                break;
+                return position + Short.BYTES;
             case INTEGER_VALUE:
-                position.incInteger();
-                break;
+                return position + Integer.BYTES;
             case LONG_VALUE:
-                position.incLong();
-                break;
+                return position + Long.BYTES;
             case FLOAT_VALUE:
-                position.incFloat();
-                break;
+                return position + Float.BYTES;
             case DOUBLE_VALUE:
-                position.incDouble();
-                break;
+                return position + Double.BYTES;
             case MAP_VALUE:
             case LIST_VALUE:
-                skipMapOrListValueInByteBuffer(position);
-                break;
+                return position + Short.BYTES + byteBlockReadPointer.getShort(position);
+            case MAP_V2_VALUE:
+            case LIST_V2_VALUE:
+            case MAP_DICT_VALUE:
+            case MAP_SHAPE_VALUE:
+            case MAP_SORTED_VALUE:
+            case MAP_HASHED_VALUE:
+            case LIST_INDEXED_VALUE:
+            case INT_ARRAY_VALUE:
+            case LONG_ARRAY_VALUE:
+            case FLOAT_ARRAY_VALUE:
+            case DOUBLE_ARRAY_VALUE:
+                return position + Integer.BYTES + byteBlockReadPointer.getInt(position);
             case STRING_VALUE:
-                skipStringValueInByteBuffer(position);
-                break;
+                return skipString(position);
             default:
                 throw new RuntimeException("Unknown value type " + valueType);
         }
     }
 
-    private void skipStringValueInByteBuffer(SosPosition position) {
-        int stringLength = byteBlockReadPointer.getByte(position.position());
-        position.incByte();
-        position.addLength(stringLength);
+    /**
+     * Returns the position after the string length and string at the position.
+     */
+    protected int skipString(int position) {
+        int length = readStringLengthAt(position);
+        return skipStringLength(position) + length;
+    }
+
+    protected int readStringLengthAt(int position) {
+        if (formatVersion == FORMAT_VERSION_1) {
+            return byteBlockReadPointer.getByte(position) & 0xFF;
+        }
+        return readVarintAt(position);
+    }
+
+    protected int skipStringLength(int position) {
+        if (formatVersion == FORMAT_VERSION_1) {
+            return position + Byte.BYTES;
+        }
+        return skipVarint(position);
+    }
+
+    protected int readVarintAt(int position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = byteBlockReadPointer.getByte(position++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    protected int skipVarint(int position) {
+        while (byteBlockReadPointer.getByte(position++) < 0) {
+        }
+        return position;
     }
 
-    protected void skipMapOrListValueInByteBuffer(SosPosition position) {
-        int mlLength = byteBlockReadPointer.getShort(position.position());
-        position.incShort();
+    protected void skipMapOrListValueInByteBuffer(int valueType, SosPosition position) {
+        int mlLength = readMapOrListLength(valueType, position);
         position.addLength(mlLength);
     }
 
     protected String getStringFromByteBuffer(SosPosition position) {
-        int length = byteBlockReadPointer.getByte(position.position());
-        position.incByte();
+        int length = readStringLength(position);
         byte[] bs = byteBlockReadPointer.getBytes(position.position(), length);
         position.addLength(length);
         return new String(bs, StandardCharsets.UTF_8);
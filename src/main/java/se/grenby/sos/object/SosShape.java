@@ -0,0 +1,161 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.object;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static se.grenby.sos.constant.SosConstants.*;
+
+/**
+ * Descriptor shared by all maps with the same keys and value types. A shaped map holds no
+ * keys, its values are in slots at fixed offsets given by the shape. Byte, short, int, long,
+ * float and double values are held in their slot without value type. Strings, maps and lists
+ * have an int slot with the offset of the value, the value with its value type is written
+ * after the slots.
+ *
+ * Fields are ordered by key, offsets are relative to the first slot. A shape is immutable.
+ */
+public class SosShape {
+
+    private final int id;
+    private final String signature;
+    private final String[] keys;
+    private final byte[][] keyBytes;
+    private final byte[] valueTypes;
+    private final int[] offsets;
+    private final int slotsSize;
+    private final Map<String, Integer> fieldIndexes;
+
+    SosShape(int id, String signature, String[] keys, byte[] valueTypes) {
+        this.id = id;
+        this.signature = signature;
+        this.keys = keys;
+        this.valueTypes = valueTypes;
+        this.keyBytes = new byte[keys.length][];
+        this.offsets = new int[keys.length];
+        this.fieldIndexes = new HashMap<>(keys.length * 2);
+
+        int offset = 0;
+        for (int i = 0; i < keys.length; i++) {
+            keyBytes[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+            offsets[i] = offset;
+            offset += sizeOfSlot(valueTypes[i]);
+            fieldIndexes.put(keys[i], i);
+        }
+        this.slotsSize = offset;
+    }
+
+    /**
+     * Returns true for value types held in their slot, the others have the offset of the value in it.
+     */
+    public static boolean isSlotValue(byte valueType) {
+        return valueType != STRING_VALUE && valueType != MAP_VALUE && valueType != LIST_VALUE;
+    }
+
+    static int sizeOfSlot(byte valueType) {
+        switch (valueType) {
+            case BYTE_VALUE:
+                return Byte.BYTES;
+            case SHORT_VALUE:
+                return Short.BYTES;
+            case INTEGER_VALUE:
+            case FLOAT_VALUE:
+                return Integer.BYTES;
+            case LONG_VALUE:
+            case DOUBLE_VALUE:
+                return Long.BYTES;
+            case STRING_VALUE:
+            case MAP_VALUE:
+            case LIST_VALUE:
+                return Integer.BYTES;
+            default:
+                throw new IllegalArgumentException("Value type " + valueType + " can not be in a shape");
+        }
+    }
+
+    /**
+     * Returns the id of the shape in its dictionary, or -1 if the shape has not been added.
+     */
+    public int getId() {
+        return id;
+    }
+
+    public boolean isAdded() {
+        return id >= 0;
+    }
+
+    String getSignature() {
+        return signature;
+    }
+
+    /**
+     * Returns a copy of the shape with the id, the field arrays are shared.
+     */
+    SosShape withId(int id) {
+        return new SosShape(id, signature, keys, valueTypes);
+    }
+
+    public int getNumberOfFields() {
+        return keys.length;
+    }
+
+    /**
+     * Returns the index of the field with the key, or -1 if the shape has no such key.
+     */
+    public int getFieldIndex(String key) {
+        Integer index = fieldIndexes.get(key);
+        return index == null ? -1 : index;
+    }
+
+    public String getKey(int fieldIndex) {
+        return keys[fieldIndex];
+    }
+
+    /**
+     * Returns the key as UTF-8, the array must not be changed.
+     */
+    byte[] getKeyBytes(int fieldIndex) {
+        return keyBytes[fieldIndex];
+    }
+
+    /**
+     * Returns the value type of the field, maps and lists of any version are MAP_VALUE and LIST_VALUE.
+     */
+    public byte getValueType(int fieldIndex) {
+        return valueTypes[fieldIndex];
+    }
+
+    public int getOffset(int fieldIndex) {
+        return offsets[fieldIndex];
+    }
+
+    /**
+     * Returns the total size of the slots of the fields.
+     */
+    public int getSlotsSize() {
+        return slotsSize;
+    }
+}
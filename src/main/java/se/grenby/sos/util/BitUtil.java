@@ -23,6 +23,8 @@
  */
 package se.grenby.sos.util;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by peteri on 24/10/15.
  */
@@ -49,4 +51,25 @@ public class BitUtil {
         }
         return i;
     }
+
+    /**
+     * Number of bytes of an unsigned varint, 7 bits in every byte
+     * @param value
+     * @return
+     */
+    public static int sizeOfVarint(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    public static void putVarint(ByteBuffer dst, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
 }
@@ -0,0 +1,91 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.util;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Access to sun.misc.Unsafe for reads at raw memory addresses. If Unsafe or the address
+ * of direct buffers can not be reached, isAvailable returns false and the callers have
+ * to use their checked ByteBuffer path.
+ *
+ * This is the only class that names sun.misc.Unsafe. The javac warnings about internal
+ * proprietary API can not be suppressed in the source, the build turns them off with the
+ * -XDignore.symbol.file compiler option.
+ */
+public class UnsafeUtil {
+
+    public static final Unsafe UNSAFE;
+    public static final long BYTE_ARRAY_BASE_OFFSET;
+    public static final boolean NATIVE_BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+    private static final long BUFFER_ADDRESS_OFFSET;
+
+    static {
+        Unsafe unsafe = null;
+        long addressOffset = -1;
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = (Unsafe) field.get(null);
+            addressOffset = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (Exception | LinkageError e) {
+            unsafe = null;
+        }
+        UNSAFE = unsafe;
+        BUFFER_ADDRESS_OFFSET = addressOffset;
+        BYTE_ARRAY_BASE_OFFSET = unsafe != null ? unsafe.arrayBaseOffset(byte[].class) : -1;
+    }
+
+    public static boolean isAvailable() {
+        return UNSAFE != null;
+    }
+
+    /**
+     * Returns the offset that the alignment of index 0 of the buffer is measured from: the memory
+     * address of a direct buffer, or the offset of a heap buffer in its array including the base
+     * offset of arrays. Returns 0 if it is not known.
+     */
+    public static long alignmentOffsetOf(ByteBuffer buffer) {
+        if (buffer.isDirect()) {
+            return isAvailable() ? addressOf(buffer) : 0;
+        }
+        return buffer.hasArray() ? buffer.arrayOffset() + Math.max(BYTE_ARRAY_BASE_OFFSET, 0) : 0;
+    }
+
+    /**
+     * Returns the memory address of a direct buffer.
+     */
+    public static long addressOf(Buffer buffer) {
+        if (!isAvailable() || !buffer.isDirect()) {
+            throw new IllegalArgumentException("Address is only available for direct buffers when Unsafe is available");
+        }
+        return UNSAFE.getLong(buffer, BUFFER_ADDRESS_OFFSET);
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.offheapbuffer;
+
+import se.grenby.sos.byteblock.segmentedbuffer.SegmentedBufferByteBlockManager;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+
+/**
+ * Thread safe segmented block manager in off-heap memory with long block pointers.
+ *
+ * This is the Java 22 version, its segments are allocated from a shared Arena so they can
+ * be used from any thread. An allocation larger than a segment is rejected before a segment
+ * is allocated, as the memory of the arena is only freed when the manager is closed.
+ *
+ * Closing the manager closes the arena and frees the off-heap memory at once. A read through
+ * the manager after that throws an IllegalStateException, as the segments have been removed.
+ * A checked read pointer taken before the close reads through a ByteBuffer view of the
+ * closed arena and also throws an IllegalStateException. Unchecked read pointers must not be
+ * used after the close.
+ *
+ * The segments are read through ByteBuffer views, so offsets within a segment are ints and
+ * a segment is limited to the capacity of a shared buffer manager.
+ */
+public class OffHeapBufferByteBlockManager extends SegmentedBufferByteBlockManager implements AutoCloseable {
+
+    private final static long SEGMENT_ALIGNMENT = Long.BYTES;
+
+    private final Arena arena = Arena.ofShared();
+    private boolean closed = false;
+
+    public OffHeapBufferByteBlockManager(final int segmentCapacity) {
+        super(segmentCapacity);
+    }
+
+    public OffHeapBufferByteBlockManager(final int segmentCapacity, final int maxNumberOfSegments) {
+        super(segmentCapacity, maxNumberOfSegments);
+    }
+
+    @Override
+    protected SharedBufferByteBlockManager createSegment(final int segmentCapacity) {
+        if (closed) {
+            throw new IllegalStateException("Manager has been closed");
+        }
+        MemorySegment segment = arena.allocate(segmentCapacity, SEGMENT_ALIGNMENT);
+        return new SharedBufferByteBlockManager(segment.asByteBuffer());
+    }
+
+    @Override
+    public synchronized long allocate(final int sizeOfPayload) {
+        return super.allocate(sizeOfPayload);
+    }
+
+    @Override
+    public synchronized long allocateAndClear(final int sizeOfPayload) {
+        return super.allocateAndClear(sizeOfPayload);
+    }
+
+    @Override
+    public synchronized long allocateAndClone(final ByteBuffer buffer) {
+        return super.allocateAndClone(buffer);
+    }
+
+    @Override
+    public synchronized void deallocate(final long blockPointer) {
+        super.deallocate(blockPointer);
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Removes all segments and frees their off-heap memory, every block pointer becomes invalid.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            removeAllSegments();
+            arena.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos;
+
+import org.junit.Test;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+import se.grenby.sos.constant.SosConstants;
+import se.grenby.sos.json.JsonDataList;
+import se.grenby.sos.json.JsonDataMap;
+import se.grenby.sos.object.SosList;
+import se.grenby.sos.object.SosMap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class SosFormatVersionTest {
+
+    private static String repeat(char c, int n) {
+        char[] cs = new char[n];
+        Arrays.fill(cs, c);
+        return new String(cs);
+    }
+
+    @Test
+    public void testVersion1() {
+        SosManager sosManager = new SosManager(new SharedBufferByteBlockManager(1024*10), SosConstants.FORMAT_VERSION_1);
+
+        JsonDataMap jdm = new JsonDataMap();
+        jdm.putInt("in", 45);
+        jdm.putString("st", repeat('a', 200));
+        jdm.putList("li", new JsonDataList().addLong(4).addString("elem"));
+
+        SosMap sos = sosManager.createSosMap(jdm);
+
+        assertEquals("Incorrect format version", SosConstants.FORMAT_VERSION_1, sos.getFormatVersion());
+        assertEquals("Incorrect integer in map", 45, sos.getIntValue("in"));
+        assertEquals("Incorrect string in map", repeat('a', 200), sos.getStringValue("st"));
+        Iterator<Object> it = sos.getListValue("li").iterator();
+        assertEquals("Incorrect long in list", new Long(4), it.next());
+        assertEquals("Incorrect string in list", "elem", it.next());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLongStringInVersion1() {
+        SosManager sosManager = new SosManager(new SharedBufferByteBlockManager(1024*10), SosConstants.FORMAT_VERSION_1);
+        sosManager.createSosMap(new JsonDataMap().putString("st", repeat('a', 256)));
+    }
+
+    @Test
+    public void testLargeObjectAndLongStringsInVersion2() {
+        SosManager sosManager = new SosManager(new SharedBufferByteBlockManager(1024*1024));
+
+        JsonDataMap jdm = new JsonDataMap();
+        JsonDataList jdl = new JsonDataList();
+        for (int i = 0; i < 10000; i++) {
+            jdl.addInt(i);
+        }
+        jdm.putList("li", jdl);
+        jdm.putString(repeat('k', 300), repeat('v', 70000));
+        jdm.putInt("in", 45);
+
+        SosMap sos = sosManager.createSosMap(jdm);
+
+        assertEquals("Incorrect format version", SosConstants.FORMAT_VERSION_2, sos.getFormatVersion());
+        assertEquals("Incorrect string in map", repeat('v', 70000), sos.getStringValue(repeat('k', 300)));
+        assertEquals("Incorrect integer in map", 45, sos.getIntValue("in"));
+        SosList sosl = sos.getListValue("li");
+        int i = 0;
+        for (Object o : sosl) {
+            assertEquals("Incorrect integer in list", new Integer(i++), o);
+        }
+        assertEquals("Incorrect number of integers in list", 10000, i);
+
+        sosManager.removeSosObject(sos);
+    }
+
+    @Test
+    public void testReadVersion1Block() {
+        byte[] key = "in".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(SosConstants.MAP_VALUE).putShort((short) (1 + key.length + 1 + Integer.BYTES));
+        buffer.put((byte) key.length).put(key).put(SosConstants.INTEGER_VALUE).putInt(45);
+        buffer.flip();
+
+        SosMap sos = new SosMap(buffer);
+
+        assertEquals("Incorrect format version", SosConstants.FORMAT_VERSION_1, sos.getFormatVersion());
+        assertEquals("Incorrect integer in map", 45, sos.getIntValue("in"));
+    }
+}
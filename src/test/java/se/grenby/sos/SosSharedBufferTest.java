@@ -3,6 +3,7 @@ package se.grenby.sos;
 import org.junit.Before;
 import org.junit.Test;
 import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+import se.grenby.sos.byteblock.slabbuffer.SlabBufferByteBlockManager;
 import se.grenby.sos.json.JsonDataList;
 import se.grenby.sos.json.JsonDataMap;
 import se.grenby.sos.object.SosList;
@@ -93,4 +94,33 @@ public class SosSharedBufferTest {
         sosManager.removeSosObject(sos);
     }
 
+    @Test
+    public void testNonAsciiStrings() {
+        JsonDataMap jdm = new JsonDataMap();
+        jdm.putString("sv", "r\u00e4ksm\u00f6rg\u00e5s");
+        jdm.putString("\u20ac", "\ud83d\ude00 and \u4e2d\u6587");
+
+        SosMap sos = sosManager.createSosMap(jdm);
+
+        assertEquals("Incorrect string in map", "r\u00e4ksm\u00f6rg\u00e5s", sos.getStringValue("sv"));
+        assertEquals("Incorrect string in map", "\ud83d\ude00 and \u4e2d\u6587", sos.getStringValue("\u20ac"));
+
+        sosManager.removeSosObject(sos);
+    }
+
+    @Test
+    public void testMapWithAllocatorWithoutWritableBlocks() {
+        SosManager slabSosManager = new SosManager(new SlabBufferByteBlockManager(1024*64));
+
+        JsonDataMap jdm = new JsonDataMap();
+        jdm.putInt("in", 45);
+        jdm.putString("st", "ing");
+
+        SosMap sos = slabSosManager.createSosMap(jdm);
+
+        assertEquals("Incorrect integer in map", 45, sos.getIntValue("in"));
+        assertEquals("Incorrect string in map", "ing", sos.getStringValue("st"));
+
+        slabSosManager.removeSosObject(sos);
+    }
 }
@@ -0,0 +1,118 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos;
+
+import org.junit.Before;
+import org.junit.Test;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+import se.grenby.sos.constant.SosConstants;
+import se.grenby.sos.object.SosList;
+import se.grenby.sos.object.SosMap;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class SosWriterTest {
+
+    private SosManager sosManager;
+
+    @Before
+    public void initializer() {
+        sosManager = new SosManager(new SharedBufferByteBlockManager(1024*64));
+    }
+
+    @Test
+    public void testMapWithListAndMap() {
+        SosWriter writer = new SosWriter();
+        writer.beginMap()
+                .putByte("by", (byte) 64)
+                .putShort("sh", (short) 312)
+                .putInt("in", 45)
+                .putLong("lo", 76)
+                .putString("st", "ing")
+                .putFloat("fl", 36.4f)
+                .putDouble("do", 789.45436)
+                .beginList("list").addInt(1).addString("elem").beginMap().putInt("deep", 7).endMap().endList()
+                .beginMap("map").putString("string", "here it is in a map").endMap()
+                .endMap();
+
+        SosMap sos = sosManager.createSosMap(writer);
+
+        assertEquals("Incorrect byte in map", (byte) 64, sos.getByteValue("by"));
+        assertEquals("Incorrect short in map", (short) 312, sos.getShortValue("sh"));
+        assertEquals("Incorrect integer in map", 45, sos.getIntValue("in"));
+        assertEquals("Incorrect long in map", 76, sos.getLongValue("lo"));
+        assertEquals("Incorrect string in map", "ing", sos.getStringValue("st"));
+        assertEquals("Incorrect float in map", 36.4f, sos.getFloatValue("fl"), 0.0f);
+        assertEquals("Incorrect double in map", 789.45436, sos.getDoubleValue("do"), 0.0);
+        assertEquals("Incorrect string in inner map", "here it is in a map", sos.getMapValue("map").getStringValue("string"));
+
+        Iterator<Object> it = sos.getListValue("list").iterator();
+        assertEquals("Incorrect integer in list", new Integer(1), it.next());
+        assertEquals("Incorrect string in list", "elem", it.next());
+        assertEquals("Incorrect integer in map in list", 7, ((SosMap) it.next()).getIntValue("deep"));
+        assertFalse("List should have ended", it.hasNext());
+
+        sosManager.removeSosObject(sos);
+    }
+
+    @Test
+    public void testReuseOfWriter() {
+        SosWriter writer = new SosWriter(16, SosConstants.FORMAT_VERSION_1);
+        for (int i = 0; i < 3; i++) {
+            writer.reset().beginList();
+            for (int j = 0; j < 100; j++) {
+                writer.addLong(i * 100 + j);
+            }
+            writer.endList();
+
+            SosList sos = sosManager.createSosList(writer);
+            assertEquals("Incorrect format version", SosConstants.FORMAT_VERSION_1, sos.getFormatVersion());
+            long expected = i * 100;
+            for (Object o : sos) {
+                assertEquals("Incorrect long in list", new Long(expected++), o);
+            }
+            assertEquals("Incorrect number of longs in list", i * 100 + 100, expected);
+            sosManager.removeSosObject(sos);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testValueWithoutKeyInMap() {
+        new SosWriter().beginMap().addInt(1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnfinishedMap() {
+        SosWriter writer = new SosWriter();
+        writer.beginMap().putInt("in", 1);
+        sosManager.createSosMap(writer);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEndListOfMap() {
+        new SosWriter().beginMap().endList();
+    }
+}
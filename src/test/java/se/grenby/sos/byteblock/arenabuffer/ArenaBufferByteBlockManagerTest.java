@@ -0,0 +1,141 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.arenabuffer;
+
+import org.junit.Test;
+import se.grenby.sos.constant.PrimitiveConstants;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ArenaBufferByteBlockManagerTest {
+
+    @Test
+    public void testAllocationAndDeallocation() {
+        ArenaBufferByteBlockManager abbm = new ArenaBufferByteBlockManager(1024*16, 4);
+
+        int orginalSpace = abbm.getTotalAvailableSpace();
+
+        final int allocationSize = 100;
+        int p1 = abbm.allocate(allocationSize);
+        assertNotEquals("No block allocation pointer was returned", PrimitiveConstants.INT_VALUE_FOR_NULL, p1);
+        assertTrue("Incorrect size of allocated block", allocationSize <= abbm.allocatedSize(p1));
+        assertTrue("Integrity of arenas has been compromised", abbm.verfiyIntegrity());
+
+        abbm.deallocate(p1);
+        assertEquals("Available space is not correct after deallocation", orginalSpace, abbm.getTotalAvailableSpace());
+        assertTrue("Integrity of arenas has been compromised", abbm.verfiyIntegrity());
+    }
+
+    @Test
+    public void testAllocationFallsBackToOtherArenas() {
+        ArenaBufferByteBlockManager abbm = new ArenaBufferByteBlockManager(1024*4, 4);
+
+        List<Integer> pointers = new ArrayList<>();
+        int p;
+        while ((p = abbm.allocate(400)) != PrimitiveConstants.INT_VALUE_FOR_NULL) {
+            pointers.add(p);
+        }
+        assertTrue("Blocks should have been allocated from all arenas", pointers.size() >= abbm.getNumberOfArenas());
+
+        for (int pointer : pointers) {
+            abbm.deallocate(pointer);
+        }
+        assertTrue("Integrity of arenas has been compromised", abbm.verfiyIntegrity());
+    }
+
+    @Test
+    public void testCloneAndRead() {
+        ArenaBufferByteBlockManager abbm = new ArenaBufferByteBlockManager(1024*16, 2);
+
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+        buffer.putInt(42).putLong(4242L).flip();
+
+        int p = abbm.allocateAndClone(buffer);
+        assertEquals("Incorrect int in cloned block", 42, abbm.getInt(p, 0));
+        assertEquals("Incorrect long in cloned block", 4242L, abbm.getLong(p, Integer.BYTES));
+        abbm.deallocate(p);
+    }
+
+    @Test
+    public void testConcurrentAllocationAndCrossThreadDeallocation() throws InterruptedException {
+        final int numberOfThreads = 8;
+        final int allocationsPerThread = 5000;
+        final ArenaBufferByteBlockManager abbm = new ArenaBufferByteBlockManager(1024*1024*8, numberOfThreads);
+        final int orginalSpace = abbm.getTotalAvailableSpace();
+
+        // Blocks are handed over to other threads that verify and deallocate them
+        final ConcurrentLinkedQueue<Integer> handOver = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numberOfThreads; t++) {
+            final int threadId = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < allocationsPerThread; i++) {
+                    int p = abbm.allocate(16 + (i % 64));
+                    if (p == PrimitiveConstants.INT_VALUE_FOR_NULL) {
+                        failed.set(true);
+                        return;
+                    }
+                    ByteBuffer value = ByteBuffer.allocate(Integer.BYTES);
+                    value.putInt(threadId * allocationsPerThread + i).flip();
+                    abbm.deallocate(p);
+                    p = abbm.allocateAndClone(value);
+                    handOver.add(p);
+
+                    Integer other = handOver.poll();
+                    if (other != null) {
+                        int v = abbm.getInt(other, 0);
+                        if (v < 0 || v >= numberOfThreads * allocationsPerThread) {
+                            failed.set(true);
+                        }
+                        abbm.deallocate(other);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Integer p;
+        while ((p = handOver.poll()) != null) {
+            abbm.deallocate(p);
+        }
+
+        assertFalse("Allocation failed or a block was corrupted", failed.get());
+        assertTrue("Integrity of arenas has been compromised", abbm.verfiyIntegrity());
+        assertEquals("All space should be available after deallocation", orginalSpace, abbm.getTotalAvailableSpace());
+    }
+}
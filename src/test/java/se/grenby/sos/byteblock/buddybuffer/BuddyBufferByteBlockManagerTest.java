@@ -0,0 +1,122 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.buddybuffer;
+
+import org.junit.Test;
+import se.grenby.sos.SosManager;
+import se.grenby.sos.constant.PrimitiveConstants;
+import se.grenby.sos.json.JsonDataMap;
+import se.grenby.sos.object.SosMap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BuddyBufferByteBlockManagerTest {
+
+    @Test
+    public void testAllocationAndDeallocation() {
+        BuddyBufferByteBlockManager bbbm = new BuddyBufferByteBlockManager(1024);
+        int orginalSpace = bbbm.getTotalAvailableSpace();
+        assertEquals("Whole capacity should be available", 1024, orginalSpace);
+
+        int p1 = bbbm.allocate(100);
+        assertNotEquals("No block allocation pointer was returned", PrimitiveConstants.INT_VALUE_FOR_NULL, p1);
+        assertEquals("Block should be rounded up to a power of two", 128 - BuddyBufferByteBlockManager.MANAGED_BLOCK_OVERHEAD_IN_BYTES, bbbm.allocatedSize(p1));
+        int p2 = bbbm.allocate(1);
+        assertEquals("Smallest block should be used", 16 - BuddyBufferByteBlockManager.MANAGED_BLOCK_OVERHEAD_IN_BYTES, bbbm.allocatedSize(p2));
+        assertTrue("Integrity of buddy blocks has been compromised", bbbm.verfiyIntegrity());
+
+        bbbm.deallocate(p1);
+        bbbm.deallocate(p2);
+        assertEquals("Available space is not correct after deallocation", orginalSpace, bbbm.getTotalAvailableSpace());
+        assertTrue("Integrity of buddy blocks has been compromised", bbbm.verfiyIntegrity());
+
+        int p3 = bbbm.allocate(1024 - BuddyBufferByteBlockManager.MANAGED_BLOCK_OVERHEAD_IN_BYTES);
+        assertNotEquals("Buddies should have been merged into one block", PrimitiveConstants.INT_VALUE_FOR_NULL, p3);
+        assertEquals("Nothing should be left", PrimitiveConstants.INT_VALUE_FOR_NULL, bbbm.allocate(1));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testDoubleDeallocation() {
+        BuddyBufferByteBlockManager bbbm = new BuddyBufferByteBlockManager(1024);
+        bbbm.allocate(10);
+        int p2 = bbbm.allocate(10);
+        bbbm.deallocate(p2);
+        bbbm.deallocate(p2);
+    }
+
+    @Test
+    public void testRandomAllocation() {
+        List<Integer> pointers = new ArrayList<>();
+        BuddyBufferByteBlockManager bbbm = new BuddyBufferByteBlockManager(1024*64);
+        Random random = new Random(4711);
+
+        for (int i=0; i<20000; i++) {
+            if (random.nextInt(3) > 0) {
+                int size = random.nextInt(random.nextBoolean() ? 64 : 2048);
+                int p = bbbm.allocate(size);
+                if (p != PrimitiveConstants.INT_VALUE_FOR_NULL) {
+                    assertTrue("Incorrect size of allocated block", size <= bbbm.allocatedSize(p));
+                    pointers.add(p);
+                }
+            } else if (!pointers.isEmpty()) {
+                bbbm.deallocate(pointers.remove(random.nextInt(pointers.size())));
+            }
+            if (i % 100 == 0) {
+                assertTrue("Integrity of buddy blocks has been compromised", bbbm.verfiyIntegrity());
+            }
+        }
+
+        for (int p : pointers) {
+            bbbm.deallocate(p);
+        }
+        assertTrue("Integrity of buddy blocks has been compromised", bbbm.verfiyIntegrity());
+        assertEquals("All space should be available after deallocation", 1024*64, bbbm.getTotalAvailableSpace());
+    }
+
+    @Test
+    public void testCloneAndSosMap() {
+        BuddyBufferByteBlockManager bbbm = new BuddyBufferByteBlockManager(1024*64);
+
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+        buffer.putInt(42).putLong(4242L).flip();
+        int p = bbbm.allocateAndClone(buffer);
+        assertEquals("Incorrect int in cloned block", 42, bbbm.getInt(p, 0));
+        assertEquals("Incorrect long in cloned block", 4242L, bbbm.getLong(p, Integer.BYTES));
+
+        SosManager sosManager = new SosManager(bbbm);
+        JsonDataMap jdm = new JsonDataMap();
+        jdm.putInt("id", 42);
+        jdm.putString("name", "buddy");
+        SosMap map = sosManager.createSosMap(jdm);
+        assertEquals("Incorrect integer in map", 42, map.getIntValue("id"));
+        assertEquals("Incorrect string in map", "buddy", map.getStringValue("name"));
+        sosManager.removeSosObject(map);
+        assertTrue("Integrity of buddy blocks has been compromised", bbbm.verfiyIntegrity());
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.compactingbuffer;
+
+import org.junit.Test;
+import se.grenby.sos.SosManager;
+import se.grenby.sos.constant.PrimitiveConstants;
+import se.grenby.sos.json.JsonDataMap;
+import se.grenby.sos.object.SosMap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompactingBufferByteBlockManagerTest {
+
+    @Test
+    public void testAllocationSucceedsAfterCompaction() {
+        CompactingBufferByteBlockManager cbbm = new CompactingBufferByteBlockManager(1024*16);
+
+        List<Integer> handles = new ArrayList<>();
+        int h;
+        ByteBuffer value = ByteBuffer.allocate(100);
+        while ((h = cbbm.allocateAndClone(value)) != PrimitiveConstants.INT_VALUE_FOR_NULL) {
+            handles.add(h);
+            value.putInt(0, handles.size());
+        }
+        List<Integer> kept = new ArrayList<>();
+        for (int i = 0; i < handles.size(); i++) {
+            if (i % 2 == 0) {
+                cbbm.deallocate(handles.get(i));
+            } else {
+                kept.add(i);
+            }
+        }
+
+        final int bigSize = 4000;
+        assertTrue("There should be enough space in total", cbbm.getTotalAvailableSpace() > bigSize);
+        assertEquals("Fragmented space should not hold a big block", PrimitiveConstants.INT_VALUE_FOR_NULL, cbbm.allocate(bigSize));
+
+        // Compact a few blocks at a time, the handles must stay valid in between
+        while (!cbbm.compact(5)) {
+            for (int i : kept) {
+                assertEquals("Incorrect value of moved block", i, cbbm.getInt(handles.get(i), 0));
+            }
+        }
+        assertTrue("Integrity has been compromised by compaction", cbbm.verfiyIntegrity());
+        for (int i : kept) {
+            assertEquals("Incorrect value of moved block", i, cbbm.getInt(handles.get(i), 0));
+        }
+
+        int big = cbbm.allocate(bigSize);
+        assertNotEquals("Compacted space should hold a big block", PrimitiveConstants.INT_VALUE_FOR_NULL, big);
+        cbbm.deallocate(big);
+        assertTrue("Integrity has been compromised", cbbm.verfiyIntegrity());
+    }
+
+    @Test
+    public void testDeallocationDuringIncrementalCompaction() {
+        CompactingBufferByteBlockManager cbbm = new CompactingBufferByteBlockManager(1024*16);
+
+        List<Integer> handles = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            handles.add(cbbm.allocate(20 + (i % 7)*10));
+        }
+        for (int i = 0; i < handles.size(); i += 3) {
+            cbbm.deallocate(handles.get(i));
+        }
+        int orginalSpace = cbbm.getTotalAvailableSpace();
+
+        for (int i = 1; i < handles.size(); i += 3) {
+            cbbm.compact(4);
+            cbbm.deallocate(handles.get(i));
+            assertTrue("Integrity has been compromised by compaction", cbbm.verfiyIntegrity());
+        }
+        cbbm.compact();
+        assertTrue("Integrity has been compromised by compaction", cbbm.verfiyIntegrity());
+        assertTrue("Space should have been released", cbbm.getTotalAvailableSpace() > orginalSpace);
+    }
+
+    @Test
+    public void testSosMapsStayValidAfterCompaction() {
+        CompactingBufferByteBlockManager cbbm = new CompactingBufferByteBlockManager(1024*64);
+        SosManager sosManager = new SosManager(cbbm);
+
+        List<SosMap> maps = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            JsonDataMap jdm = new JsonDataMap();
+            jdm.putInt("id", i);
+            jdm.putString("name", "map number " + i);
+            maps.add(sosManager.createSosMap(jdm));
+        }
+        for (int i = 0; i < maps.size(); i += 2) {
+            sosManager.removeSosObject(maps.get(i));
+        }
+
+        cbbm.compact();
+
+        for (int i = 1; i < maps.size(); i += 2) {
+            assertEquals("Incorrect integer in moved map", i, maps.get(i).getIntValue("id"));
+            assertEquals("Incorrect string in moved map", "map number " + i, maps.get(i).getStringValue("name"));
+        }
+        assertTrue("Integrity has been compromised by compaction", cbbm.verfiyIntegrity());
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.deferredbuffer;
+
+import org.junit.Test;
+import se.grenby.sos.constant.PrimitiveConstants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class DeferredBufferByteBlockManagerTest {
+
+    // Long enough for the reclaimer to never run during a test
+    private final static long NO_RECLAIM = 1000*60*60;
+
+    @Test
+    public void testDeallocationIsDeferred() {
+        try (DeferredBufferByteBlockManager dbbm = new DeferredBufferByteBlockManager(1024*64, 1024*32, NO_RECLAIM)) {
+            int orginalSpace = dbbm.getTotalAvailableSpace();
+
+            List<Integer> pointers = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                pointers.add(dbbm.allocate(100));
+            }
+            for (int p : pointers) {
+                dbbm.deallocate(p);
+            }
+            assertEquals("Blocks should wait in the queue", 10, dbbm.getNumberOfDeallocatedBlocksInQueue());
+            assertTrue("Space should not be available before the queue is drained", dbbm.getTotalAvailableSpace() < orginalSpace);
+
+            assertEquals("All blocks should be reclaimed", 10, dbbm.drain());
+            assertEquals("Available space is not correct after drain", orginalSpace, dbbm.getTotalAvailableSpace());
+            assertTrue("Integrity has been compromised", dbbm.verfiyIntegrity());
+        }
+    }
+
+    @Test
+    public void testLowFreeSpaceForcesDrain() {
+        try (DeferredBufferByteBlockManager dbbm = new DeferredBufferByteBlockManager(1024*64, 1024*16, NO_RECLAIM)) {
+            List<Integer> pointers = new ArrayList<>();
+            while (dbbm.getTotalAvailableSpace() >= 1024*32) {
+                pointers.add(dbbm.allocate(100));
+            }
+            dbbm.deallocate(pointers.remove(0));
+            assertEquals("Queue should not be drained while there is free space", 1, dbbm.getNumberOfDeallocatedBlocksInQueue());
+
+            while (dbbm.getTotalAvailableSpace() >= 1024*16) {
+                pointers.add(dbbm.allocate(100));
+            }
+            dbbm.deallocate(pointers.remove(0));
+            assertEquals("Queue should be drained at the low-water mark", 0, dbbm.getNumberOfDeallocatedBlocksInQueue());
+            assertTrue("Integrity has been compromised", dbbm.verfiyIntegrity());
+        }
+    }
+
+    @Test
+    public void testAllocationDrainsQueueWhenOutOfSpace() {
+        try (DeferredBufferByteBlockManager dbbm = new DeferredBufferByteBlockManager(1024*8, 0, NO_RECLAIM)) {
+            List<Integer> pointers = new ArrayList<>();
+            int p;
+            while ((p = dbbm.allocate(100)) != PrimitiveConstants.INT_VALUE_FOR_NULL) {
+                pointers.add(p);
+            }
+            for (int pointer : pointers) {
+                dbbm.deallocate(pointer);
+            }
+            assertNotEquals("Allocation should drain the queue", PrimitiveConstants.INT_VALUE_FOR_NULL, dbbm.allocate(1000));
+            assertEquals("Queue should be empty", 0, dbbm.getNumberOfDeallocatedBlocksInQueue());
+        }
+    }
+
+    @Test
+    public void testBackgroundReclaimer() throws InterruptedException {
+        final int numberOfThreads = 4;
+        try (DeferredBufferByteBlockManager dbbm = new DeferredBufferByteBlockManager(1024*1024, 1024*256, 1)) {
+            int orginalSpace = dbbm.getTotalAvailableSpace();
+            AtomicBoolean failed = new AtomicBoolean(false);
+
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < numberOfThreads; t++) {
+                threads.add(new Thread(() -> {
+                    for (int i = 0; i < 5000; i++) {
+                        int p = dbbm.allocate(16 + (i % 200));
+                        if (p == PrimitiveConstants.INT_VALUE_FOR_NULL) {
+                            failed.set(true);
+                            return;
+                        }
+                        dbbm.deallocate(p);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (dbbm.getNumberOfDeallocatedBlocksInQueue() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertFalse("Allocation failed", failed.get());
+            assertEquals("Reclaimer should have drained the queue", 0, dbbm.getNumberOfDeallocatedBlocksInQueue());
+            assertTrue("Integrity has been compromised", dbbm.verfiyIntegrity());
+            assertEquals("All space should be available after reclaim", orginalSpace, dbbm.getTotalAvailableSpace());
+        }
+    }
+
+    @Test
+    public void testDoubleDeallocationAfterDrain() {
+        try (DeferredBufferByteBlockManager dbbm = new DeferredBufferByteBlockManager(1024*64, 1024*32, NO_RECLAIM)) {
+            int p = dbbm.allocate(100);
+            dbbm.deallocate(p);
+            dbbm.drain();
+            try {
+                dbbm.deallocate(p);
+                fail("Deallocation of a free block should fail");
+            } catch (RuntimeException e) {
+                // Expected
+            }
+            assertEquals("Queue should be empty", 0, dbbm.getNumberOfDeallocatedBlocksInQueue());
+        }
+    }
+
+    @Test
+    public void testDoubleDeallocationInQueue() {
+        try (DeferredBufferByteBlockManager dbbm = new DeferredBufferByteBlockManager(1024*64, 1024*32, NO_RECLAIM)) {
+            int orginalSpace = dbbm.getTotalAvailableSpace();
+
+            List<Integer> pointers = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                pointers.add(dbbm.allocate(100));
+            }
+            for (int p : pointers) {
+                dbbm.deallocate(p);
+            }
+            try {
+                dbbm.deallocate(pointers.get(3));
+                fail("Deallocation of a block in the queue should fail");
+            } catch (RuntimeException e) {
+                // Expected
+            }
+            try {
+                dbbm.getBlock(pointers.get(3));
+                fail("Block in the queue should not be read");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+
+            assertEquals("All blocks should be reclaimed once", 10, dbbm.drain());
+            assertEquals("Available space is not correct after drain", orginalSpace, dbbm.getTotalAvailableSpace());
+            assertTrue("Integrity has been compromised", dbbm.verfiyIntegrity());
+            assertTrue("Size of blocks in queue should be zero", dbbm.getDetailsAsString().contains("Size of blocks in queue: 0\n"));
+        }
+    }
+}
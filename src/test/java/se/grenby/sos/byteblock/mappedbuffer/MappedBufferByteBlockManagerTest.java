@@ -0,0 +1,201 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.mappedbuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.grenby.sos.constant.PrimitiveConstants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+public class MappedBufferByteBlockManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReopenAfterClose() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("blocks.sos");
+        final int capacity = 1024*64;
+
+        int p1;
+        int p2;
+        int orginalSpace;
+        try (MappedBufferByteBlockManager mbbm = MappedBufferByteBlockManager.open(file, capacity)) {
+            p1 = mbbm.allocateAndClone(intAndLong(42, 4242L));
+            p2 = mbbm.allocateAndClone(intAndLong(43, 4343L));
+            int p3 = mbbm.allocate(200);
+            mbbm.deallocate(p3);
+            mbbm.setRootBlock(p1);
+            orginalSpace = mbbm.getTotalAvailableSpace();
+        }
+
+        try (MappedBufferByteBlockManager mbbm = MappedBufferByteBlockManager.open(file, capacity)) {
+            assertEquals("Root block was not kept in file", p1, mbbm.getRootBlock());
+            assertEquals("Incorrect int in reopened block", 42, mbbm.getInt(p1, 0));
+            assertEquals("Incorrect long in reopened block", 4343L, mbbm.getLong(p2, Integer.BYTES));
+            assertEquals("Available space is not correct after reopen", orginalSpace, mbbm.getTotalAvailableSpace());
+            assertTrue("Integrity of reopened blocks has been compromised", mbbm.verfiyIntegrity());
+
+            mbbm.deallocate(p2);
+            assertTrue("Integrity of reopened blocks has been compromised", mbbm.verfiyIntegrity());
+        }
+    }
+
+    @Test
+    public void testRecoveryWhenNotClosed() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("blocks.sos");
+        final int capacity = 1024*64;
+
+        MappedBufferByteBlockManager crashed = MappedBufferByteBlockManager.open(file, capacity);
+        int p1 = crashed.allocateAndClone(intAndLong(42, 4242L));
+        int p2 = crashed.allocate(300);
+        int p3 = crashed.allocateAndClone(intAndLong(44, 4444L));
+        crashed.deallocate(p2);
+        int orginalSpace = crashed.getTotalAvailableSpace();
+        crashed.flush();
+        Path copy = Files.copy(file, folder.getRoot().toPath().resolve("crashed.sos"));
+        crashed.close();
+
+        try (MappedBufferByteBlockManager mbbm = MappedBufferByteBlockManager.open(copy, capacity)) {
+            assertTrue("Integrity of recovered blocks has been compromised", mbbm.verfiyIntegrity());
+            assertEquals("Available space is not correct after recovery", orginalSpace, mbbm.getTotalAvailableSpace());
+            assertEquals("Incorrect int in recovered block", 42, mbbm.getInt(p1, 0));
+            assertEquals("Incorrect long in recovered block", 4444L, mbbm.getLong(p3, Integer.BYTES));
+
+            int p4 = mbbm.allocate(300);
+            assertNotEquals("No block allocation pointer was returned", PrimitiveConstants.INT_VALUE_FOR_NULL, p4);
+            mbbm.deallocate(p4);
+            mbbm.deallocate(p1);
+            mbbm.deallocate(p3);
+            assertTrue("Integrity of recovered blocks has been compromised", mbbm.verfiyIntegrity());
+        }
+    }
+
+    @Test
+    public void testRecoveryOfInterruptedMerge() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("blocks.sos");
+        final int capacity = 1024*64;
+
+        int p1, p2, p3, p4;
+        int orginalSpace;
+        try (MappedBufferByteBlockManager mbbm = MappedBufferByteBlockManager.open(file, capacity)) {
+            p1 = mbbm.allocateAndClone(intAndLong(42, 4242L));
+            p2 = mbbm.allocate(100);
+            p3 = mbbm.allocate(100);
+            p4 = mbbm.allocateAndClone(intAndLong(45, 4545L));
+            orginalSpace = mbbm.getTotalAvailableSpace();
+        }
+
+        // Crash after the header of a merge of p2 and p3 has been written but not its footer
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            putBlockByte(channel, p2, (byte) 0);
+            putBlockByte(channel, p3, (byte) 0);
+            putBlockInt(channel, p2 - Integer.BYTES, p4 - p2 - Integer.BYTES*2);
+            markNotClosed(channel);
+        }
+
+        try (MappedBufferByteBlockManager mbbm = MappedBufferByteBlockManager.open(file, capacity)) {
+            assertTrue("Integrity of recovered blocks has been compromised", mbbm.verfiyIntegrity());
+            assertEquals("Space of torn block was not recovered", orginalSpace + p4 - p2 - Integer.BYTES*2, mbbm.getTotalAvailableSpace());
+            assertEquals("Incorrect int in recovered block", 42, mbbm.getInt(p1, 0));
+            assertEquals("Incorrect long in recovered block", 4545L, mbbm.getLong(p4, Integer.BYTES));
+        }
+    }
+
+    @Test
+    public void testRecoveryOfInterruptedSplit() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("blocks.sos");
+        final int capacity = 1024*64;
+
+        int p1, p2, p3;
+        int orginalSpace;
+        try (MappedBufferByteBlockManager mbbm = MappedBufferByteBlockManager.open(file, capacity)) {
+            p1 = mbbm.allocateAndClone(intAndLong(42, 4242L));
+            p2 = mbbm.allocate(100);
+            p3 = mbbm.allocateAndClone(intAndLong(44, 4444L));
+            orginalSpace = mbbm.getTotalAvailableSpace();
+        }
+
+        // Crash after the first part of a split of free block p2 has been written but not the rest
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            putBlockByte(channel, p2, (byte) 0);
+            putBlockInt(channel, p2 - Integer.BYTES, 20);
+            putBlockInt(channel, p2 + 20, 20);
+            putBlockInt(channel, p2 + 20 + Integer.BYTES, 0x7FFF);
+            markNotClosed(channel);
+        }
+
+        try (MappedBufferByteBlockManager mbbm = MappedBufferByteBlockManager.open(file, capacity)) {
+            assertTrue("Integrity of recovered blocks has been compromised", mbbm.verfiyIntegrity());
+            assertEquals("Space of torn block was not recovered", orginalSpace + p3 - p2 - Integer.BYTES*2, mbbm.getTotalAvailableSpace());
+            assertEquals("Incorrect int in recovered block", 42, mbbm.getInt(p1, 0));
+            assertEquals("Incorrect long in recovered block", 4444L, mbbm.getLong(p3, Integer.BYTES));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenTwice() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("blocks.sos");
+        try (MappedBufferByteBlockManager mbbm = MappedBufferByteBlockManager.open(file, 1024*64)) {
+            MappedBufferByteBlockManager.open(file, 1024*64);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReopenWithOtherCapacity() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("blocks.sos");
+        MappedBufferByteBlockManager.open(file, 1024*64).close();
+        MappedBufferByteBlockManager.open(file, 1024*32);
+    }
+
+    private static void putBlockByte(FileChannel channel, int position, byte value) throws IOException {
+        channel.write(ByteBuffer.wrap(new byte[] {value}), MappedBufferByteBlockManager.FILE_HEADER_SIZE_IN_BYTES + position);
+    }
+
+    private static void putBlockInt(FileChannel channel, int position, int value) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+        buffer.putInt(value).flip();
+        channel.write(buffer, MappedBufferByteBlockManager.FILE_HEADER_SIZE_IN_BYTES + position);
+    }
+
+    private static void markNotClosed(FileChannel channel) throws IOException {
+        // Status flag follows magic, version and capacity in the file header
+        channel.write(ByteBuffer.wrap(new byte[] {0}), 3*Integer.BYTES);
+    }
+
+    private static ByteBuffer intAndLong(int i, long l) {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+        buffer.putInt(i).putLong(l).flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.offheapbuffer;
+
+import org.junit.Test;
+import se.grenby.sos.constant.PrimitiveConstants;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OffHeapBufferByteBlockManagerTest {
+
+    @Test
+    public void testAllocationBeyondOneSegmentAndClose() {
+        OffHeapBufferByteBlockManager ohbbm = new OffHeapBufferByteBlockManager(1024*4);
+
+        ByteBuffer buffer = ByteBuffer.allocate(400);
+        List<Long> pointers = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            buffer.putInt(0, i);
+            long p = ohbbm.allocateAndClone(buffer);
+            assertNotEquals("No block allocation pointer was returned", PrimitiveConstants.LONG_VALUE_FOR_NULL, p);
+            pointers.add(p);
+        }
+        assertTrue("More segments should have been added", ohbbm.getNumberOfSegments() > 1);
+        for (int i = 0; i < pointers.size(); i++) {
+            assertEquals("Incorrect int in block", i, ohbbm.getInt(pointers.get(i), 0));
+        }
+        assertTrue("Integrity of segments has been compromised", ohbbm.verfiyIntegrity());
+
+        ohbbm.close();
+        assertTrue("Manager should be closed", ohbbm.isClosed());
+        assertEquals("Segments should be removed", 0, ohbbm.getNumberOfSegments());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAllocationAfterClose() {
+        OffHeapBufferByteBlockManager ohbbm = new OffHeapBufferByteBlockManager(1024*4);
+        ohbbm.close();
+        ohbbm.allocate(100);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReadAfterClose() {
+        OffHeapBufferByteBlockManager ohbbm = new OffHeapBufferByteBlockManager(1024*4);
+        long p = ohbbm.allocate(100);
+        ohbbm.close();
+        ohbbm.getInt(p, 0);
+    }
+}
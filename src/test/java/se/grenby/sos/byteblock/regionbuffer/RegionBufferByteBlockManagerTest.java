@@ -0,0 +1,97 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.regionbuffer;
+
+import org.junit.Test;
+import se.grenby.sos.SosManager;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+import se.grenby.sos.constant.PrimitiveConstants;
+import se.grenby.sos.json.JsonDataMap;
+import se.grenby.sos.object.SosMap;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class RegionBufferByteBlockManagerTest {
+
+    @Test
+    public void testAllocationAndRelease() {
+        SharedBufferByteBlockManager sbbm = new SharedBufferByteBlockManager(1024*64);
+        int orginalSpace = sbbm.getTotalAvailableSpace();
+        RegionBufferByteBlockManager rbbm = new RegionBufferByteBlockManager(sbbm, 1024);
+
+        for (int i = 0; i < 100; i++) {
+            int p = rbbm.allocate(50);
+            assertNotEquals("No block allocation pointer was returned", PrimitiveConstants.INT_VALUE_FOR_NULL, p);
+            assertEquals("Incorrect size of allocated block", 50, rbbm.allocatedSize(p));
+        }
+        assertTrue("More chunks should have been taken", rbbm.getNumberOfChunks() > 1);
+
+        rbbm.release();
+        assertEquals("Only the first chunk should be kept", 1, rbbm.getNumberOfChunks());
+        assertNotEquals("No block allocation pointer was returned", PrimitiveConstants.INT_VALUE_FOR_NULL, rbbm.allocate(50));
+
+        rbbm.dispose();
+        assertEquals("All chunks should be returned", orginalSpace, sbbm.getTotalAvailableSpace());
+        assertTrue("Integrity of shared buffer has been compromised", sbbm.verfiyIntegrity());
+    }
+
+    @Test
+    public void testBlockBiggerThanChunk() {
+        SharedBufferByteBlockManager sbbm = new SharedBufferByteBlockManager(1024*64);
+        RegionBufferByteBlockManager rbbm = new RegionBufferByteBlockManager(sbbm, 1024);
+
+        ByteBuffer buffer = ByteBuffer.allocate(4000);
+        buffer.putLong(3992, 4242L);
+        int p = rbbm.allocateAndClone(buffer);
+        assertEquals("Incorrect long in big block", 4242L, rbbm.getLong(p, 3992));
+
+        int p2 = rbbm.allocateAndClone(buffer.putLong(0, 4343L));
+        assertEquals("Incorrect long in block after big block", 4343L, rbbm.getLong(p2, 0));
+        assertEquals("Big block should not be overwritten", 4242L, rbbm.getLong(p, 3992));
+
+        rbbm.release();
+        for (int i = 0; i < 100; i++) {
+            rbbm.allocate(50);
+        }
+        assertEquals("Incorrect long in block after release", 4343L, rbbm.getLong(rbbm.allocateAndClone(buffer), 0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStaleReaderAfterRelease() {
+        SharedBufferByteBlockManager sbbm = new SharedBufferByteBlockManager(1024*64);
+        RegionBufferByteBlockManager rbbm = new RegionBufferByteBlockManager(sbbm, 1024);
+        SosManager sosManager = new SosManager(rbbm);
+
+        JsonDataMap jdm = new JsonDataMap();
+        jdm.putInt("id", 42);
+        SosMap map = sosManager.createSosMap(jdm);
+        assertEquals("Incorrect integer in map", 42, map.getIntValue("id"));
+
+        rbbm.release();
+        rbbm.allocateAndClear(100);
+        map.getIntValue("id");
+    }
+}
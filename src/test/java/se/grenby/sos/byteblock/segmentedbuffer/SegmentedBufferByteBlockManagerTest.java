@@ -0,0 +1,114 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.segmentedbuffer;
+
+import org.junit.Test;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+import se.grenby.sos.constant.PrimitiveConstants;
+import se.grenby.sos.object.SosMap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static se.grenby.sos.constant.SosConstants.INTEGER_VALUE;
+import static se.grenby.sos.constant.SosConstants.MAP_VALUE;
+
+public class SegmentedBufferByteBlockManagerTest {
+
+    @Test
+    public void testGrowthBeyondOneSegment() {
+        SegmentedBufferByteBlockManager sbbm = new SegmentedBufferByteBlockManager(1024*4);
+
+        List<Long> pointers = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            long p = sbbm.allocate(400);
+            assertNotEquals("No block allocation pointer was returned", PrimitiveConstants.LONG_VALUE_FOR_NULL, p);
+            pointers.add(p);
+        }
+        assertTrue("More segments should have been added", sbbm.getNumberOfSegments() > 1);
+        assertTrue("Pointers should refer to later segments", (pointers.get(pointers.size() - 1) >>> Integer.SIZE) > 0);
+        assertTrue("Integrity of segments has been compromised", sbbm.verfiyIntegrity());
+
+        long orginalSpace = sbbm.getTotalAvailableSpace();
+        for (long p : pointers) {
+            sbbm.deallocate(p);
+        }
+        assertTrue("Available space should increase after deallocation", sbbm.getTotalAvailableSpace() > orginalSpace);
+        assertTrue("Integrity of segments has been compromised", sbbm.verfiyIntegrity());
+    }
+
+    @Test
+    public void testMaxNumberOfSegments() {
+        SegmentedBufferByteBlockManager sbbm = new SegmentedBufferByteBlockManager(1024*4, 2);
+
+        long p;
+        int allocations = 0;
+        while ((p = sbbm.allocate(400)) != PrimitiveConstants.LONG_VALUE_FOR_NULL) {
+            allocations++;
+        }
+        assertTrue("Blocks should have been allocated", allocations > 0);
+        assertEquals("Number of segments should not exceed max", 2, sbbm.getNumberOfSegments());
+    }
+
+    @Test
+    public void testSosMapInLaterSegment() {
+        SegmentedBufferByteBlockManager sbbm = new SegmentedBufferByteBlockManager(1024*4);
+        while (sbbm.getNumberOfSegments() < 3) {
+            sbbm.allocate(400);
+        }
+
+        byte[] key = "answer".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        buffer.put(MAP_VALUE);
+        buffer.putShort((short) (1 + key.length + 1 + Integer.BYTES));
+        buffer.put((byte) key.length).put(key);
+        buffer.put(INTEGER_VALUE).putInt(42);
+        buffer.flip();
+
+        long p = sbbm.allocateAndClone(buffer);
+        assertEquals("Block should be allocated in the last segment", 2, p >>> Integer.SIZE);
+
+        SosMap map = new SosMap(sbbm, p);
+        assertEquals("Incorrect value read from segment", 42, map.getIntValue("answer"));
+    }
+
+    @Test
+    public void testOversizedAllocationCreatesNoSegment() {
+        SegmentedBufferByteBlockManager sbbm = new SegmentedBufferByteBlockManager(1024*4);
+
+        assertEquals("Allocation larger than a segment should fail", PrimitiveConstants.LONG_VALUE_FOR_NULL, sbbm.allocate(1024*4));
+        assertEquals("No segment should be created for an allocation larger than a segment", 0, sbbm.getNumberOfSegments());
+
+        // Fits the capacity but not the segment after its overhead
+        int tooLarge = 1024*4 - SharedBufferByteBlockManager.MANAGED_BLOCK_OVERHEAD_IN_BYTES;
+        assertEquals("Allocation should not fit a segment", PrimitiveConstants.LONG_VALUE_FOR_NULL, sbbm.allocate(tooLarge));
+        assertEquals("No segment should be created for an allocation that does not fit a segment", 0, sbbm.getNumberOfSegments());
+
+        assertNotEquals("Largest payload should fit a segment", PrimitiveConstants.LONG_VALUE_FOR_NULL, sbbm.allocate(sbbm.getMaxSizeOfPayload()));
+        assertEquals("Incorrect number of segments", 1, sbbm.getNumberOfSegments());
+    }
+}
@@ -24,11 +24,17 @@
 package se.grenby.sos.byteblock.sharedbuffer;
 
 import org.junit.Test;
+import se.grenby.sos.byteblock.ByteBlockReadPointer;
+import se.grenby.sos.byteblock.UnsafeByteBlockReadPointer;
 import se.grenby.sos.constant.PrimitiveConstants;
+import se.grenby.sos.util.UnsafeUtil;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -129,4 +135,246 @@ public class SharedBufferByteBlocksManagerTest {
         }
     }
 
+    @Test
+    public void testMixedSizeAllocationAndDeallocation() {
+        List<Integer> pointers = new ArrayList<>();
+        SharedBufferByteBlockManager bbbm = new SharedBufferByteBlockManager(1024*1024);
+
+        int orginalSpace = bbbm.getTotalAvailableSpace();
+
+        for (int i=0; i<5000; i++) {
+            int p = bbbm.allocate(4 + (i % 97));
+            assertNotEquals("No block allocation pointer was returned", PrimitiveConstants.INT_VALUE_FOR_NULL, p);
+            pointers.add(p);
+            if (i % 3 == 0) {
+                bbbm.deallocate(pointers.remove(pointers.size() / 2));
+            }
+        }
+        assertTrue("Integrity of memory management and/or byte block blockbuffer has been compromised", bbbm.verfiyIntegrity());
+
+        for (int p : pointers) {
+            bbbm.deallocate(p);
+        }
+        assertTrue("Integrity of memory management and/or byte block blockbuffer has been compromised", bbbm.verfiyIntegrity());
+        assertEquals("All free blocks should have been merged after deallocation", orginalSpace, bbbm.getTotalAvailableSpace());
+    }
+
+    @Test
+    public void testRandomAllocationInFragmentedBuffer() {
+        List<Integer> pointers = new ArrayList<>();
+        SharedBufferByteBlockManager bbbm = new SharedBufferByteBlockManager(1024*64);
+        Random random = new Random(4711);
+
+        for (int i=0; i<20000; i++) {
+            if (random.nextInt(3) > 0) {
+                int size = 1 + random.nextInt(random.nextBoolean() ? 64 : 2048);
+                int p = bbbm.allocate(size);
+                if (p != PrimitiveConstants.INT_VALUE_FOR_NULL) {
+                    assertTrue("Incorrect size of allocated block", size <= bbbm.allocatedSize(p));
+                    pointers.add(p);
+                }
+            } else if (!pointers.isEmpty()) {
+                bbbm.deallocate(pointers.remove(random.nextInt(pointers.size())));
+            }
+            if (i % 100 == 0) {
+                assertTrue("Integrity of memory management and/or byte block blockbuffer has been compromised", bbbm.verfiyIntegrity());
+            }
+        }
+
+        for (int p : pointers) {
+            bbbm.deallocate(p);
+        }
+        assertTrue("Integrity of memory management and/or byte block blockbuffer has been compromised", bbbm.verfiyIntegrity());
+        int p = bbbm.allocate(bbbm.getTotalAvailableSpace() - SharedBufferByteBlockManager.MANAGED_BLOCK_OVERHEAD_IN_BYTES);
+        assertNotEquals("All free space should be one block after everything has been deallocated", PrimitiveConstants.INT_VALUE_FOR_NULL, p);
+    }
+
+    @Test
+    public void testBatchAllocationAndDeallocation() {
+        SharedBufferByteBlockManager bbbm = new SharedBufferByteBlockManager(1024*64);
+        int orginalSpace = bbbm.getTotalAvailableSpace();
+
+        int[] sizes = new int[100];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = 1 + (i * 37) % 200;
+        }
+        int[] pointers = new int[sizes.length];
+        assertTrue("Batch should have been allocated", bbbm.allocateBatch(sizes, pointers));
+        for (int i = 0; i < pointers.length; i++) {
+            assertTrue("Incorrect size of allocated block", sizes[i] <= bbbm.allocatedSize(pointers[i]));
+            if (i > 0) {
+                assertTrue("Batch should be carved from one block in order", pointers[i - 1] < pointers[i]);
+            }
+        }
+        assertTrue("Integrity of memory management has been compromised", bbbm.verfiyIntegrity());
+
+        // Free every other block one by one and the rest as a batch
+        int[] rest = new int[pointers.length / 2];
+        for (int i = 0; i < pointers.length; i++) {
+            if (i % 2 == 0) {
+                bbbm.deallocate(pointers[i]);
+            } else {
+                rest[i / 2] = pointers[i];
+            }
+        }
+        bbbm.deallocateBatch(rest);
+        assertTrue("Integrity of memory management has been compromised", bbbm.verfiyIntegrity());
+        assertEquals("Available space is not correct after batch deallocation", orginalSpace, bbbm.getTotalAvailableSpace());
+    }
+
+    @Test
+    public void testBatchCloneAndRead() {
+        SharedBufferByteBlockManager bbbm = new SharedBufferByteBlockManager(1024*64);
+
+        ByteBuffer[] buffers = new ByteBuffer[10];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.allocate(Integer.BYTES * (i + 1));
+            buffers[i].putInt(0, i);
+        }
+        int[] pointers = new int[buffers.length];
+        assertTrue("Batch should have been allocated", bbbm.allocateAndCloneBatch(buffers, pointers));
+        for (int i = 0; i < pointers.length; i++) {
+            assertEquals("Incorrect int in cloned block", i, bbbm.getInt(pointers[i], 0));
+        }
+
+        bbbm.deallocateBatch(pointers);
+        assertTrue("Integrity of memory management has been compromised", bbbm.verfiyIntegrity());
+    }
+
+    @Test
+    public void testBatchAllocationInFragmentedBuffer() {
+        SharedBufferByteBlockManager bbbm = new SharedBufferByteBlockManager(1024*8);
+
+        List<Integer> pointers = new ArrayList<>();
+        int p;
+        while ((p = bbbm.allocate(100)) != PrimitiveConstants.INT_VALUE_FOR_NULL) {
+            pointers.add(p);
+        }
+        for (int i = 0; i < pointers.size(); i += 2) {
+            bbbm.deallocate(pointers.get(i));
+        }
+
+        // No free block holds the batch, so the blocks are allocated one by one
+        int[] sizes = {100, 100, 100};
+        assertTrue("Batch should have been allocated", bbbm.allocateBatch(sizes, sizes));
+        assertTrue("Integrity of memory management has been compromised", bbbm.verfiyIntegrity());
+
+        int[] tooMany = new int[pointers.size()];
+        Arrays.fill(tooMany, 100);
+        int orginalSpace = bbbm.getTotalAvailableSpace();
+        assertFalse("Batch should not fit", bbbm.allocateBatch(tooMany, tooMany));
+        assertEquals("A failed batch should not allocate anything", orginalSpace, bbbm.getTotalAvailableSpace());
+        assertTrue("Integrity of memory management has been compromised", bbbm.verfiyIntegrity());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testBatchDeallocationOfSameBlockTwice() {
+        SharedBufferByteBlockManager bbbm = new SharedBufferByteBlockManager(1024*8);
+        int p1 = bbbm.allocate(100);
+        bbbm.allocate(100);
+        bbbm.deallocateBatch(new int[] {p1, p1});
+    }
+
+    @Test
+    public void testBatchDeallocationWithFreeBlockInRun() {
+        SharedBufferByteBlockManager bbbm = new SharedBufferByteBlockManager(1024*8);
+        int p1 = bbbm.allocate(100);
+        int p2 = bbbm.allocate(100);
+        int p3 = bbbm.allocate(100);
+        bbbm.allocate(100);
+        bbbm.deallocate(p2);
+        int availableSpace = bbbm.getTotalAvailableSpace();
+
+        try {
+            bbbm.deallocateBatch(new int[] {p1, p2, p3});
+            fail("Batch with a free block should not be deallocated");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+        assertTrue("Integrity of blocks has been compromised", bbbm.verfiyIntegrity());
+        assertEquals("Available space should not change", availableSpace, bbbm.getTotalAvailableSpace());
+        assertTrue("Blocks of the failed batch should still be allocated", bbbm.isAllocated(p1) && bbbm.isAllocated(p3));
+
+        bbbm.deallocateBatch(new int[] {p1, p3});
+        assertTrue("Integrity of blocks has been compromised", bbbm.verfiyIntegrity());
+    }
+
+    @Test
+    public void testUncheckedAndCheckedReadPointers() {
+        SharedBufferByteBlockManager bbbm = new SharedBufferByteBlockManager(1024*8);
+        bbbm.setCheckedReadPointers(false);
+
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        buffer.put((byte) 7).putShort((short) 312).putInt(-45).putLong(4242L).putFloat(36.4f).putDouble(789.45436).put((byte) 1).put((byte) 2);
+        buffer.flip();
+        int p = bbbm.allocateAndClone(buffer);
+
+        ByteBlockReadPointer unchecked = bbbm.getBlock(p);
+        assertEquals("Read pointer should be unchecked when Unsafe is available", UnsafeUtil.isAvailable(), unchecked instanceof UnsafeByteBlockReadPointer);
+        bbbm.setCheckedReadPointers(true);
+        ByteBlockReadPointer checked = bbbm.getBlock(p);
+        assertTrue("Debug mode should give checked read pointers", checked instanceof SharedBufferByteBlockReadPointer);
+
+        assertEquals("Incorrect byte", checked.getByte(0), unchecked.getByte(0));
+        assertEquals("Incorrect short", checked.getShort(1), unchecked.getShort(1));
+        assertEquals("Incorrect int", checked.getInt(3), unchecked.getInt(3));
+        assertEquals("Incorrect long", checked.getLong(7), unchecked.getLong(7));
+        assertEquals("Incorrect float", checked.getFloat(15), unchecked.getFloat(15), 0.0f);
+        assertEquals("Incorrect double", checked.getDouble(19), unchecked.getDouble(19), 0.0);
+        assertArrayEquals("Incorrect bytes", checked.getBytes(27, 2), unchecked.getBytes(27, 2));
+        assertEquals("Incorrect allocated size", checked.getAllocatedSize(), unchecked.getAllocatedSize());
+    }
+
+    @Test
+    public void testCheckedReadPointersByDefault() {
+        SharedBufferByteBlockManager bbbm = new SharedBufferByteBlockManager(1024*8);
+        assertTrue("Read pointers should be checked by default", bbbm.isCheckedReadPointers());
+
+        int p = bbbm.allocate(100);
+        ByteBlockReadPointer pointer = bbbm.getBlock(p);
+        assertTrue("Read pointer should be checked by default", pointer instanceof SharedBufferByteBlockReadPointer);
+        try {
+            pointer.getLong(pointer.getAllocatedSize() - Long.BYTES + 1);
+            fail("Read outside of the block should fail");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUncheckedReadPointerToFreeBlock() {
+        SharedBufferByteBlockManager bbbm = new SharedBufferByteBlockManager(1024*8);
+        bbbm.setCheckedReadPointers(false);
+        int p = bbbm.allocate(100);
+        bbbm.allocate(100);
+        bbbm.deallocate(p);
+        bbbm.getBlock(p);
+    }
+
+    @Test
+    public void testWritableBlock() {
+        SharedBufferByteBlockManager bbbm = new SharedBufferByteBlockManager(1024*8);
+
+        int p1 = bbbm.allocate(Integer.BYTES + Long.BYTES);
+        int p2 = bbbm.allocateAndClear(Integer.BYTES);
+        ByteBuffer block = bbbm.getWritableBlock(p1);
+        assertEquals("Writable block should start at position 0", 0, block.position());
+        assertEquals("Incorrect size of writable block", bbbm.allocatedSize(p1), block.limit());
+        block.putInt(42).putLong(4242L);
+
+        assertEquals("Incorrect int in written block", 42, bbbm.getInt(p1, 0));
+        assertEquals("Incorrect long in written block", 4242L, bbbm.getLong(p1, Integer.BYTES));
+        assertEquals("Next block should not have been touched", 0, bbbm.getInt(p2, 0));
+        assertTrue("Integrity of blocks has been compromised", bbbm.verfiyIntegrity());
+    }
+
+    @Test
+    public void testMaxSizeOfPayload() {
+        for (int capacity : new int[] {1024, 1024*4 + 17, 1024*64, 1024*1024}) {
+            SharedBufferByteBlockManager bbbm = new SharedBufferByteBlockManager(capacity);
+            int maxSizeOfPayload = SharedBufferByteBlockManager.maxSizeOfPayload(capacity);
+            assertEquals("Incorrect max size of payload", PrimitiveConstants.INT_VALUE_FOR_NULL, bbbm.allocate(maxSizeOfPayload + 1));
+            assertNotEquals("Max size of payload should be allocated", PrimitiveConstants.INT_VALUE_FOR_NULL, bbbm.allocate(maxSizeOfPayload));
+        }
+    }
 }
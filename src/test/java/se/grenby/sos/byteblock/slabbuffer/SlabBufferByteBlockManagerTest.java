@@ -0,0 +1,129 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.slabbuffer;
+
+import org.junit.Test;
+import se.grenby.sos.SosManager;
+import se.grenby.sos.constant.PrimitiveConstants;
+import se.grenby.sos.json.JsonDataMap;
+import se.grenby.sos.object.SosMap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SlabBufferByteBlockManagerTest {
+
+    @Test
+    public void testSizeClasses() {
+        SlabBufferByteBlockManager sbbm = new SlabBufferByteBlockManager(1024*64);
+
+        assertEquals("Incorrect size of smallest slot", 32, sbbm.allocatedSize(sbbm.allocate(1)));
+        assertEquals("Incorrect size of slot", 32, sbbm.allocatedSize(sbbm.allocate(32)));
+        assertEquals("Incorrect size of slot", 64, sbbm.allocatedSize(sbbm.allocate(33)));
+        assertEquals("Incorrect size of slot", 128, sbbm.allocatedSize(sbbm.allocate(100)));
+        assertEquals("Incorrect size of largest slot", 256, sbbm.allocatedSize(sbbm.allocate(256)));
+        assertEquals("There should be one slab per size class", 4, sbbm.getNumberOfSlabs());
+
+        int p = sbbm.allocate(SlabBufferByteBlockManager.LARGEST_SLOT_SIZE + 1);
+        assertTrue("Large block should be allocated from the bins", SlabBufferByteBlockManager.LARGEST_SLOT_SIZE < sbbm.allocatedSize(p));
+        assertEquals("Large block should not add a slab", 4, sbbm.getNumberOfSlabs());
+        assertTrue("Integrity of slabs has been compromised", sbbm.verfiyIntegrity());
+    }
+
+    @Test
+    public void testAllocationAndDeallocationOfManySlots() {
+        SlabBufferByteBlockManager sbbm = new SlabBufferByteBlockManager(1024*256);
+        int orginalSpace = sbbm.getTotalAvailableSpace();
+
+        List<Integer> pointers = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            int p = sbbm.allocate(20 + (i % 200));
+            assertNotEquals("No block allocation pointer was returned", PrimitiveConstants.INT_VALUE_FOR_NULL, p);
+            pointers.add(p);
+        }
+        assertTrue("Integrity of slabs has been compromised", sbbm.verfiyIntegrity());
+
+        for (int i = 0; i < pointers.size(); i += 2) {
+            sbbm.deallocate(pointers.get(i));
+        }
+        assertTrue("Integrity of slabs has been compromised", sbbm.verfiyIntegrity());
+        for (int i = 1; i < pointers.size(); i += 2) {
+            sbbm.deallocate(pointers.get(i));
+        }
+        assertTrue("Integrity of slabs has been compromised", sbbm.verfiyIntegrity());
+        assertTrue("Only one slab per size class should be kept", sbbm.getNumberOfSlabs() <= 4);
+        assertTrue("Empty slabs should be returned to the bins", sbbm.getTotalAvailableSpace() > orginalSpace - 4*256*64);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testDoubleDeallocation() {
+        SlabBufferByteBlockManager sbbm = new SlabBufferByteBlockManager(1024*64);
+        int p1 = sbbm.allocate(40);
+        sbbm.allocate(40);
+        sbbm.deallocate(p1);
+        sbbm.deallocate(p1);
+    }
+
+    @Test
+    public void testCloneAndRead() {
+        SlabBufferByteBlockManager sbbm = new SlabBufferByteBlockManager(1024*64);
+
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+        buffer.putInt(42).putLong(4242L).flip();
+
+        int p1 = sbbm.allocateAndClone(buffer);
+        int p2 = sbbm.allocateAndClone(buffer);
+        assertNotEquals("Slots should not be shared", p1, p2);
+        assertEquals("Incorrect int in cloned slot", 42, sbbm.getInt(p2, 0));
+        assertEquals("Incorrect long in cloned slot", 4242L, sbbm.getLong(p2, Integer.BYTES));
+
+        int p3 = sbbm.allocateAndClear(20);
+        assertEquals("Cleared slot should be zero", 0L, sbbm.getLong(p3, 0));
+    }
+
+    @Test
+    public void testSosMapsInSlots() {
+        SlabBufferByteBlockManager sbbm = new SlabBufferByteBlockManager(1024*64);
+        SosManager sosManager = new SosManager(sbbm);
+
+        List<SosMap> maps = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            JsonDataMap jdm = new JsonDataMap();
+            jdm.putInt("id", i);
+            jdm.putString("name", "map number " + i);
+            maps.add(sosManager.createSosMap(jdm));
+        }
+        for (int i = 0; i < maps.size(); i++) {
+            assertEquals("Incorrect integer in map", i, maps.get(i).getIntValue("id"));
+            assertEquals("Incorrect string in map", "map number " + i, maps.get(i).getStringValue("name"));
+        }
+        for (SosMap map : maps) {
+            sosManager.removeSosObject(map);
+        }
+        assertTrue("Integrity of slabs has been compromised", sbbm.verfiyIntegrity());
+    }
+}
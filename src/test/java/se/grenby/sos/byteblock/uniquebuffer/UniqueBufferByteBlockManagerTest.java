@@ -0,0 +1,161 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.uniquebuffer;
+
+import org.junit.Test;
+import se.grenby.sos.SosManager;
+import se.grenby.sos.byteblock.ByteBlockReadPointer;
+import se.grenby.sos.json.JsonDataMap;
+import se.grenby.sos.object.SosMap;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class UniqueBufferByteBlockManagerTest {
+
+    @Test
+    public void testBatchCloneAndDeallocation() {
+        UniqueBufferByteBlockManager ubbm = new UniqueBufferByteBlockManager();
+
+        ByteBuffer[] buffers = new ByteBuffer[6];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.allocate(Integer.BYTES);
+            buffers[i].putInt(0, i);
+        }
+        int[] pointers = new int[buffers.length];
+        assertTrue("Batch should have been allocated", ubbm.allocateAndCloneBatch(buffers, pointers));
+        for (int i = 0; i < pointers.length; i++) {
+            assertEquals("Incorrect int in cloned block", i, ubbm.getInt(pointers[i], 0));
+        }
+
+        ubbm.deallocateBatch(new int[] {pointers[4], pointers[1], pointers[2]});
+        assertEquals("Incorrect int in block left after batch deallocation", 0, ubbm.getInt(pointers[0], 0));
+        assertEquals("Incorrect int in block left after batch deallocation", 3, ubbm.getInt(pointers[3], 0));
+        assertEquals("Incorrect int in block left after batch deallocation", 5, ubbm.getInt(pointers[5], 0));
+        assertEquals("Incorrect number of allocated blocks", 3, ubbm.getNumberOfAllocatedBlocks());
+    }
+
+    @Test
+    public void testDeallocationKeepsOtherPointers() {
+        UniqueBufferByteBlockManager ubbm = new UniqueBufferByteBlockManager();
+
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+        int[] pointers = new int[100];
+        for (int i = 0; i < pointers.length; i++) {
+            buffer.putInt(0, i);
+            pointers[i] = ubbm.allocateAndClone(buffer);
+        }
+        for (int i = 0; i < pointers.length; i += 2) {
+            ubbm.deallocate(pointers[i]);
+        }
+        for (int i = 1; i < pointers.length; i += 2) {
+            assertEquals("Incorrect int in block after deallocation of other blocks", i, ubbm.getInt(pointers[i], 0));
+        }
+
+        // Freed slots and buffers are reused
+        for (int i = 0; i < pointers.length; i += 2) {
+            buffer.putInt(0, -i);
+            pointers[i] = ubbm.allocateAndClone(buffer);
+        }
+        assertEquals("Freed buffers should have been reused", 0, ubbm.getNumberOfPooledBuffers());
+        for (int i = 0; i < pointers.length; i++) {
+            assertEquals("Incorrect int in block", (i % 2 == 0) ? -i : i, ubbm.getInt(pointers[i], 0));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStalePointer() {
+        UniqueBufferByteBlockManager ubbm = new UniqueBufferByteBlockManager();
+
+        int p1 = ubbm.allocate(16);
+        ubbm.deallocate(p1);
+        int p2 = ubbm.allocate(16);
+        assertNotEquals("Reused slot should have a new generation", p1, p2);
+        ubbm.getInt(p1, 0);
+    }
+
+    @Test
+    public void testPooledBufferIsCleared() {
+        UniqueBufferByteBlockManager ubbm = new UniqueBufferByteBlockManager();
+
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        buffer.putLong(0, -1L);
+        int p = ubbm.allocateAndClone(buffer);
+        ubbm.deallocate(p);
+        assertEquals("Buffer should have been pooled", 1, ubbm.getNumberOfPooledBuffers());
+
+        p = ubbm.allocateAndClear(Integer.BYTES);
+        assertEquals("Incorrect size of reused block", Integer.BYTES, ubbm.allocatedSize(p));
+        assertEquals("Reused block should have been cleared", 0, ubbm.getInt(p, 0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStaleReadPointer() {
+        UniqueBufferByteBlockManager ubbm = new UniqueBufferByteBlockManager();
+
+        int p1 = ubbm.allocate(16);
+        ByteBlockReadPointer pointer = ubbm.getBlock(p1);
+        ubbm.deallocate(p1);
+        int p2 = ubbm.allocateAndClear(16);
+        assertEquals("Pooled buffer should be reused", 1, ubbm.getNumberOfAllocatedBlocks());
+        ubbm.getInt(p2, 0);
+        pointer.getInt(0);
+    }
+
+    @Test
+    public void testExposedBufferIsNotPooled() {
+        UniqueBufferByteBlockManager ubbm = new UniqueBufferByteBlockManager();
+
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        buffer.putLong(0, 4242L);
+        int p1 = ubbm.allocateAndClone(buffer);
+        ByteBuffer view = ubbm.getBlock(p1).getReadOnlyBuffer(0, Long.BYTES);
+        ubbm.deallocate(p1);
+        assertEquals("Exposed buffer should not be pooled", 0, ubbm.getNumberOfPooledBuffers());
+
+        buffer.putLong(0, -1L);
+        ubbm.allocateAndClone(buffer);
+        assertEquals("View should not see the data of another block", 4242L, view.getLong(0));
+    }
+
+    @Test
+    public void testStaleSosMap() {
+        UniqueBufferByteBlockManager ubbm = new UniqueBufferByteBlockManager();
+        SosManager sosManager = new SosManager(ubbm);
+
+        SosMap sosMap = sosManager.createSosMap(new JsonDataMap().putString("name", "first"));
+        assertEquals("Incorrect string in map", "first", sosMap.getStringValue("name"));
+        sosManager.removeSosObject(sosMap);
+
+        SosMap otherMap = sosManager.createSosMap(new JsonDataMap().putString("name", "other"));
+        assertEquals("Incorrect string in map", "other", otherMap.getStringValue("name"));
+        try {
+            sosMap.getStringValue("name");
+            fail("Read of a removed map should fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}
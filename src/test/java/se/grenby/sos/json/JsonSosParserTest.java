@@ -0,0 +1,222 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.json;
+
+import org.junit.Before;
+import org.junit.Test;
+import se.grenby.sos.SosManager;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+import se.grenby.sos.object.SosList;
+import se.grenby.sos.object.SosMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class JsonSosParserTest {
+
+    private SosManager sosManager;
+    private JsonSosParser parser;
+
+    @Before
+    public void initializer() {
+        sosManager = new SosManager(new SharedBufferByteBlockManager(1024*64));
+        parser = new JsonSosParser();
+    }
+
+    private static ByteBuffer utf8(String json) {
+        return ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testMap() {
+        String json = "{ \"by\": 64, \"sh\": 312, \"in\": 45000, \"lo\": 5000000000, \"neg\": -129,\n" +
+                "  \"fl\": 36.4, \"do\": 789.45436, \"ex\": 1.5e300, \"st\": \"ing\",\n" +
+                "  \"tr\": true, \"fa\": false, \"nu\": null,\n" +
+                "  \"list\": [1, \"elem\", {\"deep\": 7}, []], \"map\": {\"string\": \"here it is in a map\"} }";
+
+        SosMap sos = sosManager.createSosMap(parser.parse(utf8(json)));
+
+        assertEquals("Incorrect byte in map", (byte) 64, sos.getByteValue("by"));
+        assertEquals("Incorrect short in map", (short) 312, sos.getShortValue("sh"));
+        assertEquals("Incorrect integer in map", 45000, sos.getIntValue("in"));
+        assertEquals("Incorrect long in map", 5000000000L, sos.getLongValue("lo"));
+        assertEquals("Incorrect short in map", (short) -129, sos.getShortValue("neg"));
+        assertEquals("Incorrect float in map", 36.4f, sos.getFloatValue("fl"), 0.0f);
+        assertEquals("Incorrect double in map", 789.45436, sos.getDoubleValue("do"), 0.0);
+        assertEquals("Incorrect double in map", 1.5e300, sos.getDoubleValue("ex"), 0.0);
+        assertEquals("Incorrect string in map", "ing", sos.getStringValue("st"));
+        assertEquals("Incorrect true in map", (byte) 1, sos.getByteValue("tr"));
+        assertEquals("Incorrect false in map", (byte) 0, sos.getByteValue("fa"));
+        assertEquals("Incorrect string in inner map", "here it is in a map", sos.getMapValue("map").getStringValue("string"));
+
+        Iterator<Object> it = sos.getListValue("list").iterator();
+        assertEquals("Incorrect byte in list", new Byte((byte) 1), it.next());
+        assertEquals("Incorrect string in list", "elem", it.next());
+        assertEquals("Incorrect byte in map in list", (byte) 7, ((SosMap) it.next()).getByteValue("deep"));
+        assertFalse("Inner list should be empty", ((SosList) it.next()).iterator().hasNext());
+        assertFalse("List should have ended", it.hasNext());
+
+        JsonDataMap jdm = sos.extractJSonDataMap();
+        int entries = 0;
+        for (Object o : jdm) {
+            entries++;
+        }
+        assertEquals("Null entry should have been left out", 13, entries);
+
+        sosManager.removeSosObject(sos);
+    }
+
+    @Test
+    public void testStringEscapes() {
+        String json = "[\"a\\\"b\\\\c\\/d\\n\\t\", \"\\u00e5\\u20ac\\ud83d\\ude00\", \"räksmörgås\"]";
+
+        SosList sos = sosManager.createSosList(parser.parse(utf8(json)));
+
+        Iterator<Object> it = sos.iterator();
+        assertEquals("Incorrect escaped string", "a\"b\\c/d\n\t", it.next());
+        assertEquals("Incorrect unicode escapes", "å€😀", it.next());
+        assertEquals("Incorrect UTF-8 string", "räksmörgås", it.next());
+    }
+
+    @Test
+    public void testNumbers() {
+        String json = "[0, -0, 127, -128, 32768, 2147483648, 9223372036854775807, 92233720368547758070, " +
+                "0.5, -0.001, 1e3, 3.141592653589793, 1E-400]";
+
+        SosList sos = sosManager.createSosList(parser.parse(utf8(json)));
+
+        Iterator<Object> it = sos.iterator();
+        assertEquals("Incorrect zero", new Byte((byte) 0), it.next());
+        assertEquals("Incorrect negative zero", new Byte((byte) 0), it.next());
+        assertEquals("Incorrect byte", new Byte((byte) 127), it.next());
+        assertEquals("Incorrect byte", new Byte((byte) -128), it.next());
+        assertEquals("Incorrect integer", new Integer(32768), it.next());
+        assertEquals("Incorrect long", new Long(2147483648L), it.next());
+        assertEquals("Incorrect long", new Long(Long.MAX_VALUE), it.next());
+        assertEquals("Incorrect double", new Double(92233720368547758070.0), it.next());
+        assertEquals("Incorrect float", new Float(0.5f), it.next());
+        assertEquals("Incorrect float", new Float(-0.001f), it.next());
+        assertEquals("Incorrect float", new Float(1000f), it.next());
+        assertEquals("Incorrect double", new Double(Math.PI), it.next());
+        assertEquals("Incorrect underflow to zero", new Float(0.0f), it.next());
+    }
+
+    @Test
+    public void testInputStreamReadOneByteAtATime() throws IOException {
+        StringBuilder sb = new StringBuilder("{\"values\": [");
+        for (int i = 0; i < 3000; i++) {
+            sb.append(i == 0 ? "" : ", ").append(i * 1000);
+        }
+        sb.append("], \"name\": \"many values\"}");
+        final ByteArrayInputStream bytes = new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8));
+        InputStream oneByteAtATime = new InputStream() {
+            @Override
+            public int read() {
+                return bytes.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return bytes.read(b, off, Math.min(len, 1));
+            }
+        };
+
+        SosMap sos = sosManager.createSosMap(parser.parse(oneByteAtATime));
+
+        assertEquals("Incorrect string in map", "many values", sos.getStringValue("name"));
+        int i = 0;
+        for (Object o : sos.getListValue("values")) {
+            assertEquals("Incorrect integer in list", i * 1000L, ((Number) o).longValue());
+            i++;
+        }
+        assertEquals("Incorrect number of values in list", 3000, i);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingComma() {
+        parser.parse(utf8("{\"a\": 1 \"b\": 2}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnterminatedMap() {
+        parser.parse(utf8("{\"a\": [1, 2]"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullInList() {
+        parser.parse(utf8("[1, null]"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLeadingZero() {
+        parser.parse(utf8("{\"a\": 0123}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLeadingZero() {
+        parser.parse(utf8("[-01]"));
+    }
+
+    @Test
+    public void testZero() {
+        SosList sosList = sosManager.createSosList(parser.parse(utf8("[0, -0, 0.5, 0e2]")));
+        Iterator<Object> it = sosList.iterator();
+        assertEquals("Incorrect zero in list", (byte) 0, it.next());
+        assertEquals("Incorrect negative zero in list", (byte) 0, it.next());
+        assertEquals("Incorrect decimal in list", 0.5f, it.next());
+        assertEquals("Incorrect zero with exponent in list", 0.0f, it.next());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testControlCharacterInString() {
+        parser.parse(utf8("{\"a\": \"line\nbreak\"}"));
+    }
+
+    @Test
+    public void testSameInputStreamParsedAgain() throws IOException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream("{\"a\": \"tab\\tbed\"}".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 2; i++) {
+            SosMap sosMap = sosManager.createSosMap(parser.parse(bytes));
+            assertEquals("Incorrect string in map", "tab\tbed", sosMap.getStringValue("a"));
+            bytes.reset();
+        }
+    }
+
+    @Test
+    public void testTwoDocumentsInOneStream() throws IOException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream("{\"a\": 1} [2, 3]\n{\"b\": 4}".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("Incorrect byte in first map", 1, sosManager.createSosMap(parser.parse(bytes)).getByteValue("a"));
+        Iterator<Object> it = sosManager.createSosList(parser.parse(bytes)).iterator();
+        assertEquals("Incorrect first element in list", (byte) 2, it.next());
+        assertEquals("Incorrect second element in list", (byte) 3, it.next());
+        assertEquals("Incorrect byte in second map", 4, sosManager.createSosMap(parser.parse(bytes)).getByteValue("b"));
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.object;
+
+import org.junit.Before;
+import org.junit.Test;
+import se.grenby.sos.SosManager;
+import se.grenby.sos.SosWriter;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+import se.grenby.sos.constant.SosConstants;
+import se.grenby.sos.json.JsonDataList;
+import se.grenby.sos.json.JsonDataMap;
+import se.grenby.sos.json.JsonSosParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class SosJsonSerializerTest {
+
+    private SosManager sosManager;
+    private SosJsonSerializer serializer;
+
+    @Before
+    public void initializer() {
+        sosManager = new SosManager(new SharedBufferByteBlockManager(1024*64));
+        serializer = new SosJsonSerializer(16);
+    }
+
+    private String toJson(SosObject sos) {
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        serializer.serialize(sos, dst);
+        dst.flip();
+        return StandardCharsets.UTF_8.decode(dst).toString();
+    }
+
+    @Test
+    public void testValues() {
+        SosWriter writer = new SosWriter();
+        writer.beginMap()
+                .putByte("by", (byte) -64)
+                .putShort("sh", (short) 312)
+                .putInt("in", Integer.MIN_VALUE)
+                .putLong("lo", Long.MIN_VALUE)
+                .putFloat("fl", 36.4f)
+                .putDouble("do", 789.45436)
+                .putDouble("pi", Math.PI)
+                .putDouble("big", 1.5e300)
+                .putDouble("nan", Double.NaN)
+                .putString("st", "a\"b\\c\n\u0001 räksmörgås 😀")
+                .beginList("li").addInt(1).beginMap().endMap().beginList().endList().endList()
+                .endMap();
+
+        SosMap sos = sosManager.createSosMap(writer);
+
+        assertEquals("Incorrect JSON", "{\"by\":-64,\"sh\":312,\"in\":-2147483648,\"lo\":-9223372036854775808," +
+                "\"fl\":36.4,\"do\":789.45436,\"pi\":3.141592653589793,\"big\":1.5E300,\"nan\":null," +
+                "\"st\":\"a\\\"b\\\\c\\n\\u0001 räksmörgås 😀\"," +
+                "\"li\":[1,{},[]]}", toJson(sos));
+    }
+
+    @Test
+    public void testVersion1List() {
+        SosManager v1Manager = new SosManager(new SharedBufferByteBlockManager(1024*10), SosConstants.FORMAT_VERSION_1);
+        JsonDataList jdl = new JsonDataList().addString("elem").addFloat(0.1f).addDouble(-2.0)
+                .addMap(new JsonDataMap().putString("k", "v"));
+
+        SosList sos = v1Manager.createSosList(jdl);
+
+        assertEquals("Incorrect JSON", "[\"elem\",0.1,-2.0,{\"k\":\"v\"}]", toJson(sos));
+    }
+
+    @Test
+    public void testRoundTripThroughStreamAndChannel() throws IOException {
+        StringBuilder sb = new StringBuilder("{\"values\":[");
+        for (int i = 0; i < 500; i++) {
+            sb.append(i == 0 ? "" : ",").append(i * 1000).append(',').append(i).append(".25");
+        }
+        sb.append("],\"name\":\"many values\"}");
+        String json = sb.toString();
+
+        SosMap sos = sosManager.createSosMap(new JsonSosParser().parse(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8))));
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        serializer.serialize(sos, streamed);
+        assertEquals("Incorrect JSON written to stream", json, new String(streamed.toByteArray(), StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream channelled = new ByteArrayOutputStream();
+        serializer.serialize(sos, Channels.newChannel(channelled));
+        assertEquals("Incorrect JSON written to channel", json, new String(channelled.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
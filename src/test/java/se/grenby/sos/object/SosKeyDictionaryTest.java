@@ -0,0 +1,146 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.object;
+
+import org.junit.Before;
+import org.junit.Test;
+import se.grenby.sos.SosManager;
+import se.grenby.sos.SosWriter;
+import se.grenby.sos.byteblock.ByteBlockReadPointer;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+import se.grenby.sos.constant.PrimitiveConstants;
+import se.grenby.sos.json.JsonDataList;
+import se.grenby.sos.json.JsonDataMap;
+import se.grenby.sos.json.JsonSosParser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SosKeyDictionaryTest {
+
+    private SharedBufferByteBlockManager blockManager;
+    private SosKeyDictionary keyDictionary;
+    private SosManager sosManager;
+
+    @Before
+    public void initializer() {
+        blockManager = new SharedBufferByteBlockManager(1024*64);
+        keyDictionary = new SosKeyDictionary();
+        sosManager = new SosManager(blockManager, keyDictionary);
+    }
+
+    @Test
+    public void testIds() {
+        int id = keyDictionary.getOrAddId("price");
+        assertEquals("Same key should have the same id", id, keyDictionary.getOrAddId("price"));
+        assertNotEquals("Other key should have another id", id, keyDictionary.getOrAddId("name"));
+        assertEquals("Incorrect key of id", "price", keyDictionary.getKey(id));
+        assertEquals("Unknown key should have no id", PrimitiveConstants.INT_VALUE_FOR_NULL, keyDictionary.getId("unknown"));
+        for (int i = 0; i < 1000; i++) {
+            keyDictionary.getOrAddId("key" + i);
+        }
+        assertEquals("Incorrect number of keys", 1002, keyDictionary.size());
+        assertEquals("Incorrect key of id", "key999", keyDictionary.getKey(keyDictionary.getId("key999")));
+    }
+
+    @Test
+    public void testIdsOfUtf8Keys() {
+        int id = keyDictionary.getOrAddId("price");
+        byte[] utf8 = "{\"price\": 1}".getBytes(StandardCharsets.UTF_8);
+        assertEquals("Key as bytes should have the id of the key", id, keyDictionary.getId(utf8, 2, 5));
+        assertEquals("Unknown key should have no id", PrimitiveConstants.INT_VALUE_FOR_NULL, keyDictionary.getId(utf8, 2, 4));
+
+        for (int i = 0; i < 1000; i++) {
+            byte[] key = ("k\u00e4y" + i).getBytes(StandardCharsets.UTF_8);
+            assertEquals("Key as bytes should have the id of the key", keyDictionary.getOrAddId(key, 0, key.length), keyDictionary.getId("k\u00e4y" + i));
+        }
+        byte[] key = "k\u00e4y999".getBytes(StandardCharsets.UTF_8);
+        assertEquals("Incorrect key of id", "k\u00e4y999", keyDictionary.getKey(keyDictionary.getId(key, 0, key.length)));
+        assertEquals("Incorrect number of keys", 1001, keyDictionary.size());
+    }
+
+    @Test
+    public void testMapWithKeyIds() {
+        JsonDataMap jdm = new JsonDataMap();
+        jdm.putInt("price", 45);
+        jdm.putString("name", "product");
+        jdm.putList("variants", new JsonDataList().addMap(new JsonDataMap().putString("color", "red")));
+
+        SosMap sos = sosManager.createSosMap(jdm);
+
+        assertEquals("Incorrect integer in map", 45, sos.getIntValue("price"));
+        assertEquals("Incorrect string in map", "product", sos.getStringValue("name"));
+        assertNull("Unknown key should have no value", sos.getStringValue("unknown"));
+        SosMap variant = (SosMap) sos.getListValue("variants").iterator().next();
+        assertEquals("Incorrect string in map in list", "red", variant.getStringValue("color"));
+
+        int entries = 0;
+        for (Map.Entry<String, Object> entry : sos) {
+            assertNotEquals("Key should be in the dictionary", PrimitiveConstants.INT_VALUE_FOR_NULL, keyDictionary.getId(entry.getKey()));
+            entries++;
+        }
+        assertEquals("Incorrect number of entries", 3, entries);
+
+        ByteBuffer json = ByteBuffer.allocate(256);
+        new SosJsonSerializer().serialize(sos, json);
+        json.flip();
+        String text = StandardCharsets.UTF_8.decode(json).toString();
+        assertTrue("Key should have been written", text.contains("\"color\":\"red\""));
+
+        sosManager.removeSosObject(sos);
+    }
+
+    @Test
+    public void testKeyIdsAreSmallerThanKeys() {
+        SosWriter withKeys = new SosWriter();
+        SosWriter withIds = new SosWriter(64, keyDictionary);
+        for (SosWriter writer : new SosWriter[] {withKeys, withIds}) {
+            writer.beginMap().putInt("quantity", 1).putInt("description", 2).putInt("manufacturer", 3).endMap();
+        }
+        assertTrue("Encoding with key ids should be smaller", withIds.getEncodedSize() < withKeys.getEncodedSize() / 2);
+
+        SosMap sos = sosManager.createSosMap(withIds);
+        assertEquals("Incorrect integer in map", 3, sos.getIntValue("manufacturer"));
+    }
+
+    @Test
+    public void testParserWithKeyIds() {
+        JsonSosParser parser = new JsonSosParser(new SosWriter(64, keyDictionary));
+        SosMap sos = sosManager.createSosMap(parser.parse(ByteBuffer.wrap("{\"a\": 1, \"b\": {\"a\": 2}}".getBytes(StandardCharsets.UTF_8))));
+
+        assertEquals("Incorrect byte in map", (byte) 1, sos.getByteValue("a"));
+        assertEquals("Incorrect byte in inner map", (byte) 2, sos.getMapValue("b").getByteValue("a"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReadWithoutDictionary() {
+        SosMap sos = sosManager.createSosMap(new JsonDataMap().putInt("price", 45));
+        ByteBlockReadPointer block = sos.byteBlockReadPointer;
+
+        new SosMap(ByteBuffer.wrap(block.getBytes(0, block.getAllocatedSize())));
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.object;
+
+import org.junit.Test;
+import se.grenby.sos.SosManager;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+import se.grenby.sos.json.JsonDataList;
+import se.grenby.sos.json.JsonDataMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static se.grenby.sos.constant.SosConstants.FORMAT_VERSION_1;
+import static se.grenby.sos.constant.SosConstants.FORMAT_VERSION_2;
+
+public class SosKeyTest {
+
+    private static final SosKey PRICE = SosKey.of("price");
+    private static final SosKey NAME = SosKey.of("name");
+    private static final SosKey LONG_KEY = SosKey.of("a key longer than sixteen bytes");
+    private static final SosKey LONG_KEY_PREFIX = SosKey.of("a key longer than sixteen");
+    private static final SosKey ID = SosKey.of("id");
+    private static final SosKey RATING = SosKey.of("rating");
+    private static final SosKey VARIANT = SosKey.of("variant");
+    private static final SosKey TAGS = SosKey.of("tags");
+    private static final SosKey UNKNOWN = SosKey.of("unknown");
+
+    private static JsonDataMap product() {
+        JsonDataMap jdm = new JsonDataMap();
+        jdm.putInt("price", 45);
+        jdm.putString("name", "product");
+        jdm.putShort("a key longer than sixteen bytes", (short) 16);
+        jdm.putLong("id", 1L << 40);
+        jdm.putDouble("rating", 4.25);
+        jdm.putMap("variant", new JsonDataMap().putString("color", "red"));
+        jdm.putList("tags", new JsonDataList().addString("new"));
+        return jdm;
+    }
+
+    private static List<SosMap> productInAllLayouts() {
+        SharedBufferByteBlockManager blockManager = new SharedBufferByteBlockManager(1024*64);
+        List<SosMap> maps = new ArrayList<>();
+        maps.add(new SosManager(blockManager, FORMAT_VERSION_1).createSosMap(product()));
+        maps.add(new SosManager(blockManager, FORMAT_VERSION_2).createSosMap(product()));
+        maps.add(new SosManager(blockManager, FORMAT_VERSION_2, 2).createSosMap(product()));
+        maps.add(new SosManager(blockManager, FORMAT_VERSION_2, 0, 2).createSosMap(product()));
+        maps.add(new SosManager(blockManager, new SosKeyDictionary()).createSosMap(product()));
+        maps.add(new SosManager(blockManager, new SosKeyDictionary(8)).createSosMap(product()));
+        return maps;
+    }
+
+    @Test
+    public void testLookups() {
+        for (SosMap sos : productInAllLayouts()) {
+            assertEquals("Incorrect integer in map", 45, sos.getIntValue(PRICE));
+            assertEquals("Incorrect string in map", "product", sos.getStringValue(NAME));
+            assertEquals("Incorrect short in map", 16, sos.getShortValue(LONG_KEY));
+            assertEquals("Incorrect long in map", 1L << 40, sos.getLongValue(ID));
+            assertEquals("Incorrect double in map", 4.25, sos.getDoubleValue(RATING), 0.0);
+            assertEquals("Incorrect string in inner map", "red", sos.getMapValue(VARIANT).getStringValue("color"));
+            assertEquals("Incorrect string in list", "new", sos.getListValue(TAGS).iterator().next());
+            assertNull("Unknown key should have no value", sos.getStringValue(UNKNOWN));
+            assertNull("Prefix of a key should have no value", sos.getMapValue(LONG_KEY_PREFIX));
+        }
+    }
+
+    @Test
+    public void testMissingAndWrongValueType() {
+        for (SosMap sos : productInAllLayouts()) {
+            try {
+                sos.getIntValue(UNKNOWN);
+                fail("Unknown key should not give an int");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            try {
+                sos.getLongValue(PRICE);
+                fail("Int should not be read as long");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testCompareStored() {
+        SharedBufferByteBlockManager blockManager = new SharedBufferByteBlockManager(1024);
+        JsonDataMap jdm = new JsonDataMap();
+        for (String key : new String[]{"abcdefgh", "abcdefghi", "abcdefgg", "abcdefgi", "åäö and more than eight"}) {
+            jdm.putString(key, key);
+        }
+        SosMap sos = new SosManager(blockManager, FORMAT_VERSION_2, 0).createSosMap(jdm);
+        for (String key : new String[]{"abcdefgh", "abcdefghi", "abcdefgg", "abcdefgi", "åäö and more than eight"}) {
+            assertEquals("Incorrect string in sorted map", key, sos.getStringValue(SosKey.of(key)));
+        }
+        assertNull("Unknown key should have no value", sos.getStringValue(SosKey.of("abcdefgha")));
+        assertNull("Unknown key should have no value", sos.getStringValue(SosKey.of("abcdefg")));
+        assertEquals("Same key should be equal", SosKey.of("price"), PRICE);
+        assertEquals("Incorrect length of key", 5, PRICE.length());
+    }
+}
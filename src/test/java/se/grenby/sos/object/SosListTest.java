@@ -23,8 +23,248 @@
  */
 package se.grenby.sos.object;
 
+import org.junit.Test;
+import se.grenby.sos.SosManager;
+import se.grenby.sos.SosWriter;
+import se.grenby.sos.byteblock.buddybuffer.BuddyBufferByteBlockManager;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+import se.grenby.sos.json.JsonDataList;
+import se.grenby.sos.json.JsonDataMap;
+import se.grenby.sos.util.UnsafeUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PrimitiveIterator;
+
+import static org.junit.Assert.*;
+import static se.grenby.sos.constant.SosConstants.FORMAT_VERSION_1;
+
 /**
  * Created by peteri on 6/1/16.
  */
 public class SosListTest {
+
+    private static JsonDataList listWithElements(int numberOfElements) {
+        JsonDataList jdl = new JsonDataList();
+        for (int i = 0; i < numberOfElements; i++) {
+            if (i % 3 == 0) {
+                jdl.addInt(i);
+            } else if (i % 3 == 1) {
+                jdl.addString("element " + i);
+            } else {
+                jdl.addMap(new JsonDataMap().putInt("index", i));
+            }
+        }
+        return jdl;
+    }
+
+    private static void assertElement(int index, Object element) {
+        if (index % 3 == 0) {
+            assertEquals("Incorrect integer in list", index, element);
+        } else if (index % 3 == 1) {
+            assertEquals("Incorrect string in list", "element " + index, element);
+        } else {
+            assertEquals("Incorrect map in list", index, ((SosMap) element).getIntValue("index"));
+        }
+    }
+
+    private static List<SosList> listInAllLayouts(int numberOfElements) {
+        SharedBufferByteBlockManager blockManager = new SharedBufferByteBlockManager(1024*64);
+        List<SosList> lists = new ArrayList<>();
+        lists.add(new SosManager(blockManager).createSosList(listWithElements(numberOfElements)));
+        lists.add(new SosManager(blockManager, FORMAT_VERSION_1).createSosList(listWithElements(numberOfElements)));
+
+        SosWriter writer = new SosWriter();
+        writer.beginList();
+        for (int i = 0; i < numberOfElements; i++) {
+            if (i % 3 == 0) {
+                writer.addInt(i);
+            } else if (i % 3 == 1) {
+                writer.addString("element " + i);
+            } else {
+                writer.beginMap().putInt("index", i).endMap();
+            }
+        }
+        writer.endList();
+        lists.add(new SosManager(blockManager).createSosList(writer));
+        return lists;
+    }
+
+    @Test
+    public void testRandomAccess() {
+        List<SosList> lists = listInAllLayouts(100);
+        assertTrue("List should be indexed", lists.get(0).isIndexed());
+        assertFalse("List of version 1 should not be indexed", lists.get(1).isIndexed());
+
+        for (SosList sos : lists) {
+            assertEquals("Incorrect size of list", 100, sos.size());
+            for (int i = 99; i >= 0; i--) {
+                assertElement(i, sos.get(i));
+            }
+            int i = 0;
+            for (Object element : sos) {
+                assertElement(i++, element);
+            }
+            assertEquals("Incorrect number of elements", 100, i);
+            try {
+                sos.get(100);
+                fail("Index after the last element should not be in the list");
+            } catch (IndexOutOfBoundsException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testSubList() throws IOException {
+        for (SosList sos : listInAllLayouts(50)) {
+            SosList sub = sos.subList(10, 20);
+            assertEquals("Incorrect size of sub list", 10, sub.size());
+            for (int i = 0; i < 10; i++) {
+                assertElement(10 + i, sub.get(i));
+            }
+
+            SosList subSub = sub.subList(5, 10);
+            assertEquals("Incorrect size of sub list", 5, subSub.size());
+            assertElement(15, subSub.get(0));
+            assertElement(19, subSub.get(4));
+            assertEquals("Incorrect size of extracted sub list", 5, subSub.extractJSonDataList().size());
+
+            int count = 0;
+            for (Object element : subSub) {
+                assertElement(15 + count++, element);
+            }
+            assertEquals("Incorrect number of elements in sub list", 5, count);
+
+            assertEquals("Incorrect size of empty sub list", 0, sos.subList(50, 50).size());
+            assertEquals("Incorrect size of sub list to the end", 5, sos.subList(45, 50).size());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new SosJsonSerializer().serialize(sos.subList(12, 15), out);
+            assertEquals("Incorrect JSON of sub list", "[12,\"element 13\",{\"index\":14}]", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testPackedArrays() throws IOException {
+        SharedBufferByteBlockManager blockManager = new SharedBufferByteBlockManager(1024*256);
+        JsonDataList doubles = new JsonDataList();
+        JsonDataList ints = new JsonDataList();
+        JsonDataList longs = new JsonDataList();
+        JsonDataList floats = new JsonDataList();
+        for (int i = 0; i < 1000; i++) {
+            doubles.addDouble(i / 4.0);
+            ints.addInt(-i);
+            longs.addLong((long) i << 33);
+            floats.addFloat(i / 2.0f);
+        }
+        JsonDataMap jdm = new JsonDataMap();
+        jdm.putByte("b", (byte) 1);
+        jdm.putList("doubles", doubles);
+        jdm.putList("ints", ints);
+        jdm.putList("longs", longs);
+        jdm.putList("floats", floats);
+
+        SosMap sos = new SosManager(blockManager).createSosMap(jdm);
+
+        SosList sosDoubles = sos.getListValue("doubles");
+        assertTrue("List of doubles should be packed", sosDoubles.isPacked());
+        assertEquals("Incorrect size of packed list", 1000, sosDoubles.size());
+        assertEquals("Incorrect double in packed list", 249.75, sosDoubles.getDouble(999), 0.0);
+        assertEquals("Incorrect boxed double in packed list", 0.25, sosDoubles.get(1));
+        PrimitiveIterator.OfDouble doubleIterator = sosDoubles.doubleIterator();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Incorrect double of iterator", i / 4.0, doubleIterator.nextDouble(), 0.0);
+        }
+        assertFalse("Iterator should be at the end", doubleIterator.hasNext());
+        DoubleBuffer doubleBuffer = sosDoubles.asDoubleBuffer();
+        assertTrue("Buffer should be read-only", doubleBuffer.isReadOnly());
+        assertEquals("Incorrect size of buffer", 1000, doubleBuffer.remaining());
+        assertEquals("Incorrect double in buffer", 125.0, doubleBuffer.get(500), 0.0);
+
+        SosList sosInts = sos.getListValue("ints");
+        assertEquals("Incorrect int in packed list", -999, sosInts.getInt(999));
+        assertEquals("Incorrect int in buffer", -5, sosInts.asIntBuffer().get(5));
+        assertEquals("Incorrect long of int iterator", 0L, sosInts.longIterator().nextLong());
+
+        SosList sosLongs = sos.getListValue("longs");
+        assertEquals("Incorrect long in packed list", 7L << 33, sosLongs.getLong(7));
+        LongBuffer longBuffer = sosLongs.asLongBuffer();
+        assertEquals("Incorrect long in buffer", 999L << 33, longBuffer.get(999));
+
+        SosList sosFloats = sos.getListValue("floats");
+        assertEquals("Incorrect float in packed list", 1.5f, sosFloats.getFloat(3), 0.0f);
+        assertEquals("Incorrect widened float of iterator", 0.0, sosFloats.doubleIterator().nextDouble(), 0.0);
+        try {
+            sosFloats.asDoubleBuffer();
+            fail("Floats should not be viewed as doubles");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        SosList sub = sosDoubles.subList(100, 110);
+        assertEquals("Incorrect size of packed sub list", 10, sub.size());
+        assertEquals("Incorrect double in packed sub list", 25.25, sub.getDouble(1), 0.0);
+        assertEquals("Incorrect double in sub list buffer", 27.25, sub.asDoubleBuffer().get(9), 0.0);
+
+        JsonDataMap extracted = sos.extractJSonDataMap();
+        assertEquals("Incorrect extracted packed list", 1000, extracted.getList("ints").size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SosJsonSerializer().serialize(sosInts.subList(0, 3), out);
+        assertEquals("Incorrect JSON of packed sub list", "[0,-1,-2]", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        out.reset();
+        new SosJsonSerializer().serialize(sos, out);
+        assertTrue("Incorrect JSON of packed list", new String(out.toByteArray(), StandardCharsets.UTF_8).contains("[0.0,0.25,0.5,0.75,"));
+        assertTrue("Integrity of the buffer has been compromised", blockManager.verfiyIntegrity());
+    }
+
+    @Test
+    public void testPrimitiveAccessOfListThatIsNotPacked() {
+        SharedBufferByteBlockManager blockManager = new SharedBufferByteBlockManager(1024*16);
+        JsonDataList jdl = new JsonDataList().addInt(1).addDouble(2.5).addLong(3L);
+        SosList sos = new SosManager(blockManager).createSosList(jdl);
+
+        assertFalse("Mixed list should not be packed", sos.isPacked());
+        assertEquals("Incorrect unboxed double", 2.5, sos.getDouble(1), 0.0);
+        PrimitiveIterator.OfLong longIterator = sos.longIterator();
+        assertEquals("Incorrect unboxed long", 1L, longIterator.nextLong());
+        longIterator.nextLong();
+        assertEquals("Incorrect unboxed long", 3L, longIterator.nextLong());
+        assertFalse("Iterator should be at the end", longIterator.hasNext());
+    }
+
+    @Test
+    public void testPackedArrayIsAlignedInMemory() {
+        for (int shift = 0; shift < Long.BYTES; shift++) {
+            SharedBufferByteBlockManager directManager = new SharedBufferByteBlockManager(1024*16);
+            if (shift > 0) {
+                directManager.allocate(shift);
+            }
+            JsonDataList longs = new JsonDataList();
+            for (int i = 0; i < 10; i++) {
+                longs.addLong(i * 3L);
+            }
+            SosList sosLongs = new SosManager(directManager).createSosList(longs);
+            LongBuffer longBuffer = sosLongs.asLongBuffer();
+            assertEquals("Incorrect long in buffer", 27L, longBuffer.get(9));
+            if (UnsafeUtil.isAvailable()) {
+                assertEquals("Values should be aligned in memory", 0, UnsafeUtil.addressOf(longBuffer) % Long.BYTES);
+            }
+
+            // Built in a heap buffer and cloned to another alignment, the values are still found after the padding
+            BuddyBufferByteBlockManager cloningManager = new BuddyBufferByteBlockManager(1024*16);
+            if (shift > 0) {
+                cloningManager.allocate(shift);
+            }
+            SosList cloned = new SosManager(cloningManager).createSosList(longs);
+            assertEquals("Incorrect long in cloned list", 27L, cloned.getLong(9));
+            assertEquals("Incorrect long in cloned buffer", 27L, cloned.asLongBuffer().get(9));
+        }
+    }
 }
@@ -23,8 +23,107 @@
  */
 package se.grenby.sos.object;
 
+import org.junit.Test;
+import se.grenby.sos.SosManager;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+import se.grenby.sos.json.JsonDataMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static se.grenby.sos.constant.SosConstants.FORMAT_VERSION_2;
+
 /**
  * Created by peteri on 6/1/16.
  */
 public class SosMapTest {
+
+    private static JsonDataMap mapWithFields(int numberOfFields) {
+        JsonDataMap jdm = new JsonDataMap();
+        for (int i = 0; i < numberOfFields; i++) {
+            jdm.putInt("key" + i, i);
+        }
+        jdm.putString("\u00e5ngstr\u00f6m", "non ascii key");
+        jdm.putString("\ud83d\ude00", "supplementary key");
+        jdm.putString("", "empty key");
+        return jdm;
+    }
+
+    @Test
+    public void testSortedKeys() {
+        SharedBufferByteBlockManager blockManager = new SharedBufferByteBlockManager(1024*64);
+        SosMap sos = new SosManager(blockManager).createSosMap(mapWithFields(100));
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("Incorrect integer in map", i, sos.getIntValue("key" + i));
+        }
+        assertEquals("Incorrect string in map", "non ascii key", sos.getStringValue("\u00e5ngstr\u00f6m"));
+        assertEquals("Incorrect string in map", "supplementary key", sos.getStringValue("\ud83d\ude00"));
+        assertEquals("Incorrect string in map", "empty key", sos.getStringValue(""));
+        assertNull("Unknown key should have no value", sos.getStringValue("key100"));
+        assertNull("Unknown key should have no value", sos.getStringValue("a"));
+        assertNull("Unknown key should have no value", sos.getStringValue("\uffff"));
+
+        Set<String> keys = new HashSet<>();
+        for (Map.Entry<String, Object> entry : sos) {
+            keys.add(entry.getKey());
+        }
+        assertEquals("Incorrect number of entries", 103, keys.size());
+        assertEquals("Incorrect extracted map", 103, sos.extractJSonDataMap().size());
+        assertTrue("Integrity of the buffer has been compromised", blockManager.verfiyIntegrity());
+    }
+
+    @Test
+    public void testSortedMapFieldCount() throws IOException {
+        SharedBufferByteBlockManager blockManager = new SharedBufferByteBlockManager(1024*64);
+        JsonDataMap jdm = mapWithFields(5);
+
+        SosMap scanned = new SosManager(blockManager).createSosMap(jdm);
+        SosMap sorted = new SosManager(blockManager, FORMAT_VERSION_2, 4).createSosMap(jdm);
+        assertTrue("Sorted map should be larger", sorted.byteBlockReadPointer.getAllocatedSize() >= scanned.byteBlockReadPointer.getAllocatedSize());
+        assertEquals("Incorrect integer in map", 3, sorted.getIntValue("key3"));
+        assertEquals("Incorrect integer in map", 3, scanned.getIntValue("key3"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SosJsonSerializer().serialize(sorted, out);
+        String json = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue("JSON should start with the smallest key", json.startsWith("{\"\":\"empty key\",\"key0\":0,"));
+        assertTrue("JSON should end with the largest key", json.endsWith("\"\ud83d\ude00\":\"supplementary key\"}"));
+    }
+
+    @Test
+    public void testHashedKeys() throws IOException {
+        SharedBufferByteBlockManager blockManager = new SharedBufferByteBlockManager(1024*256);
+        JsonDataMap jdm = mapWithFields(3000);
+        SosMap sos = new SosManager(blockManager).createSosMap(jdm);
+
+        for (int i = 0; i < 3000; i++) {
+            assertEquals("Incorrect integer in map", i, sos.getIntValue("key" + i));
+            assertEquals("Incorrect integer in map", i, sos.getIntValue(SosKey.of("key" + i)));
+        }
+        assertEquals("Incorrect string in map", "supplementary key", sos.getStringValue("\ud83d\ude00"));
+        assertEquals("Incorrect string in map", "empty key", sos.getStringValue(SosKey.of("")));
+        assertNull("Unknown key should have no value", sos.getStringValue("key3000"));
+        assertNull("Unknown key should have no value", sos.getStringValue(SosKey.of("unknown")));
+
+        Set<String> keys = new HashSet<>();
+        for (Map.Entry<String, Object> entry : sos) {
+            keys.add(entry.getKey());
+        }
+        assertEquals("Incorrect number of entries", 3003, keys.size());
+        JsonDataMap extracted = sos.extractJSonDataMap();
+        assertEquals("Incorrect extracted map", 3003, extracted.size());
+        assertEquals("Incorrect integer in extracted map", 2999, extracted.getInteger("key2999"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SosJsonSerializer().serialize(sos, out);
+        String json = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue("JSON should hold the entries", json.contains("\"key2999\":2999") && json.contains("\"\":\"empty key\""));
+        assertTrue("Integrity of the buffer has been compromised", blockManager.verfiyIntegrity());
+    }
 }
@@ -0,0 +1,189 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.object;
+
+import org.junit.Before;
+import org.junit.Test;
+import se.grenby.sos.SosManager;
+import se.grenby.sos.byteblock.sharedbuffer.SharedBufferByteBlockManager;
+import se.grenby.sos.constant.SosConstants;
+import se.grenby.sos.json.JsonDataList;
+import se.grenby.sos.json.JsonDataMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SosShapeTest {
+
+    private SharedBufferByteBlockManager blockManager;
+    private SosKeyDictionary keyDictionary;
+    private SosManager sosManager;
+
+    @Before
+    public void initializer() {
+        blockManager = new SharedBufferByteBlockManager(1024*64);
+        keyDictionary = new SosKeyDictionary(16);
+        sosManager = new SosManager(blockManager, keyDictionary);
+    }
+
+    private static JsonDataMap product(int price, String name) {
+        JsonDataMap jdm = new JsonDataMap();
+        jdm.putByte("b", (byte) 7);
+        jdm.putShort("s", (short) 300);
+        jdm.putInt("price", price);
+        jdm.putLong("id", 1L << 40);
+        jdm.putFloat("weight", 1.5f);
+        jdm.putDouble("rating", 4.25);
+        jdm.putString("name", name);
+        jdm.putMap("size", new JsonDataMap().putInt("width", 10));
+        jdm.putList("tags", new JsonDataList().addString("new").addString("sale"));
+        return jdm;
+    }
+
+    @Test
+    public void testShapedMap() {
+        SosMap sos = sosManager.createSosMap(product(45, "product"));
+
+        assertNotNull("Map should have a shape", sos.getShape());
+        assertEquals("Incorrect byte in map", 7, sos.getByteValue("b"));
+        assertEquals("Incorrect short in map", 300, sos.getShortValue("s"));
+        assertEquals("Incorrect integer in map", 45, sos.getIntValue("price"));
+        assertEquals("Incorrect long in map", 1L << 40, sos.getLongValue("id"));
+        assertEquals("Incorrect float in map", 1.5f, sos.getFloatValue("weight"), 0.0f);
+        assertEquals("Incorrect double in map", 4.25, sos.getDoubleValue("rating"), 0.0);
+        assertEquals("Incorrect string in map", "product", sos.getStringValue("name"));
+        assertEquals("Incorrect integer in inner map", 10, sos.getMapValue("size").getIntValue("width"));
+        assertNotNull("Inner map should have a shape", sos.getMapValue("size").getShape());
+        Iterator<Object> tags = sos.getListValue("tags").iterator();
+        tags.next();
+        assertEquals("Incorrect string in list", "sale", tags.next());
+        assertNull("Unknown key should have no value", sos.getStringValue("unknown"));
+
+        int entries = 0;
+        for (Map.Entry<String, Object> entry : sos) {
+            assertNotNull("Entry should have a value", entry.getValue());
+            entries++;
+        }
+        assertEquals("Incorrect number of entries", 9, entries);
+        assertEquals("Incorrect extracted map", "product", sos.extractJSonDataMap().getString("name"));
+    }
+
+    @Test
+    public void testMapsShareShape() {
+        SosMap sos1 = sosManager.createSosMap(product(45, "first"));
+        SosMap sos2 = sosManager.createSosMap(product(46, "second product"));
+
+        assertSame("Maps with the same keys and types should share the shape", sos1.getShape(), sos2.getShape());
+        assertEquals("Incorrect number of shapes", 2, keyDictionary.getNumberOfShapes());
+        assertEquals("Incorrect integer in map", 46, sos2.getIntValue("price"));
+        assertEquals("Incorrect string in map", "second product", sos2.getStringValue("name"));
+
+        JsonDataMap other = product(47, "other");
+        other.putString("price", "47");
+        SosMap sos3 = sosManager.createSosMap(other);
+        assertNotSame("Other value type should give another shape", sos1.getShape(), sos3.getShape());
+        assertEquals("Incorrect string in map", "47", sos3.getStringValue("price"));
+    }
+
+    @Test
+    public void testKeyWithSeparatorGivesOtherShape() {
+        SosMap sos1 = sosManager.createSosMap(new JsonDataMap().putInt("a", 1).putInt("b", 2));
+        // One key that holds the type and key of the second key after a separator
+        SosMap sos2 = sosManager.createSosMap(new JsonDataMap().putInt("a\0" + (char) SosConstants.INTEGER_VALUE + "b", 3));
+
+        assertNotSame("Key with separator should give another shape", sos1.getShape(), sos2.getShape());
+        assertEquals("Incorrect integer in map", 3, sos2.getIntValue("a\0" + (char) SosConstants.INTEGER_VALUE + "b"));
+        assertEquals("Incorrect integer in map", 2, sos1.getIntValue("b"));
+    }
+
+    @Test
+    public void testFailedAllocationAddsNoShape() {
+        SosKeyDictionary dictionary = new SosKeyDictionary(1);
+        SosManager manager = new SosManager(new SharedBufferByteBlockManager(1024), dictionary);
+
+        JsonDataList large = new JsonDataList();
+        for (int i = 0; i < 200; i++) {
+            large.addString("element " + i);
+        }
+        try {
+            manager.createSosMap(new JsonDataMap().putList("large", large));
+            fail("Map should not fit in the blocks");
+        } catch (RuntimeException e) {
+            assertEquals("Shape of map that was not built should not be added", 0, dictionary.getNumberOfShapes());
+        }
+
+        SosMap sos = manager.createSosMap(new JsonDataMap().putInt("a", 1));
+        assertNotNull("Map should get the shape that was not used", sos.getShape());
+        assertEquals("Incorrect integer in map", 1, sos.getIntValue("a"));
+    }
+
+    @Test
+    public void testMapWithoutShape() {
+        SosKeyDictionary dictionary = new SosKeyDictionary(1);
+        SosManager manager = new SosManager(blockManager, dictionary);
+
+        SosMap sos1 = manager.createSosMap(new JsonDataMap().putInt("a", 1));
+        SosMap sos2 = manager.createSosMap(new JsonDataMap().putInt("b", 2));
+
+        assertNotNull("First map should have a shape", sos1.getShape());
+        assertNull("Map should keep key ids when no more shapes are allowed", sos2.getShape());
+        assertEquals("Incorrect integer in map", 2, sos2.getIntValue("b"));
+
+        SosMap sos3 = new SosManager(blockManager, new SosKeyDictionary()).createSosMap(product(45, "product"));
+        assertNull("Dictionary without shapes should give no shape", sos3.getShape());
+        assertEquals("Incorrect integer in map", 45, sos3.getIntValue("price"));
+    }
+
+    @Test
+    public void testShapedMapInList() {
+        JsonDataList jdl = new JsonDataList();
+        jdl.addMap(product(1, "one"));
+        jdl.addMap(product(2, "two"));
+
+        SosList sos = sosManager.createSosList(jdl);
+        Iterator<Object> maps = sos.iterator();
+        assertEquals("Incorrect string in map in list", "one", ((SosMap) maps.next()).getStringValue("name"));
+        assertEquals("Incorrect integer in map in list", 2, ((SosMap) maps.next()).getIntValue("price"));
+        assertTrue("Integrity of the buffer has been compromised", blockManager.verfiyIntegrity());
+    }
+
+    @Test
+    public void testSerializeShapedMap() throws IOException {
+        JsonDataMap jdm = new JsonDataMap();
+        jdm.putInt("price", 45);
+        jdm.putString("name", "product");
+        jdm.putList("tags", new JsonDataList().addString("new"));
+        SosMap sos = sosManager.createSosMap(jdm);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SosJsonSerializer().serialize(sos, out);
+        assertEquals("Incorrect JSON of shaped map", "{\"name\":\"product\",\"price\":45,\"tags\":[\"new\"]}",
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Peter Grenby
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.grenby.sos.byteblock.offheapbuffer;
+
+import org.junit.Test;
+import se.grenby.sos.constant.PrimitiveConstants;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs against the Java 22 version of the manager, in the java22 profile only.
+ */
+public class OffHeapBufferByteBlockManagerArenaTest {
+
+    @Test
+    public void testOversizedAllocationAllocatesNoSegment() {
+        try (OffHeapBufferByteBlockManager ohbbm = new OffHeapBufferByteBlockManager(1024*4)) {
+            assertEquals("Allocation larger than a segment should fail", PrimitiveConstants.LONG_VALUE_FOR_NULL, ohbbm.allocate(1024*4));
+            assertEquals("Allocation larger than a segment should fail", PrimitiveConstants.LONG_VALUE_FOR_NULL, ohbbm.allocate(ohbbm.getMaxSizeOfPayload() + 1));
+            assertEquals("No segment should be allocated from the arena", 0, ohbbm.getNumberOfSegments());
+
+            assertNotEquals("Largest payload should fit a segment", PrimitiveConstants.LONG_VALUE_FOR_NULL, ohbbm.allocate(ohbbm.getMaxSizeOfPayload()));
+            assertEquals("Incorrect number of segments", 1, ohbbm.getNumberOfSegments());
+        }
+    }
+
+    @Test
+    public void testReadAfterClose() {
+        OffHeapBufferByteBlockManager ohbbm = new OffHeapBufferByteBlockManager(1024*4);
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        buffer.putLong(0, 4242L);
+        long p = ohbbm.allocateAndClone(buffer);
+        assertEquals("Incorrect long in block", 4242L, ohbbm.getLong(p, 0));
+
+        ohbbm.close();
+        try {
+            ohbbm.getLong(p, 0);
+            fail("Read after close should fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}